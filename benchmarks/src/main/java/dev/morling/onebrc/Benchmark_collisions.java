@@ -0,0 +1,205 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of verifying the key in the direct-indexed tables of {@link CalculateAverage_ddimtirov}
+ * and {@link CalculateAverage_ebarlas}: the checked parse loops against copies of the loops
+ * they started out with, which trust the hash and silently merge colliding stations. Run with
+ * {@code -p stations=10000} to see the overflow regions in use.
+ * <p>
+ * ddimtirov's checked loop also reads the value as one word rather than byte by byte;
+ * {@link #ddimtirovUncheckedWordValue} is the original loop with just that change, so the key check on its own is the difference between it and the checked loop.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+@State(Scope.Thread)
+public class Benchmark_collisions {
+
+    private static final int DDIMTIROV_MODULUS = 49999;
+    private static final int EBARLAS_MOD = 3_487;
+    private static final ValueLayout.OfLong LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    @Benchmark
+    public CalculateAverage_ddimtirov.Tracker ddimtirovChecked(MeasurementsFixture fixture) {
+        var tracker = new CalculateAverage_ddimtirov.Tracker();
+        tracker.processSegment(fixture.segment());
+        return tracker;
+    }
+
+    @Benchmark
+    public long[] ddimtirovUnchecked(MeasurementsFixture fixture) {
+        var memory = fixture.segment();
+        var minMaxCount = new int[DDIMTIROV_MODULUS * 3];
+        var sums = new long[DDIMTIROV_MODULUS];
+        var names = new String[DDIMTIROV_MODULUS];
+        int position = 0;
+        long limit = memory.byteSize();
+        while (position < limit) {
+            int pos = position;
+            byte b;
+            int nameLength = 0, nameHash = 0;
+            while ((b = memory.get(ValueLayout.JAVA_BYTE, pos++)) != ';') {
+                nameHash = nameHash * 31 + b;
+                nameLength++;
+            }
+            int temperature = 0, sign = 1;
+            outer: while ((b = memory.get(ValueLayout.JAVA_BYTE, pos++)) != '\n') {
+                switch (b) {
+                    case '\r':
+                        pos++;
+                        break outer;
+                    case '.':
+                        break;
+                    case '-':
+                        sign = -1;
+                        break;
+                    default:
+                        temperature = 10 * temperature + (b - '0');
+                }
+            }
+            temperature *= sign;
+
+            var i = Math.abs(nameHash) % DDIMTIROV_MODULUS;
+            if (names[i] == null)
+                names[i] = new String(memory.asSlice(position, nameLength).toArray(ValueLayout.JAVA_BYTE));
+            sums[i] += temperature;
+            if (temperature < minMaxCount[i * 3])
+                minMaxCount[i * 3] = temperature;
+            if (temperature > minMaxCount[i * 3 + 1])
+                minMaxCount[i * 3 + 1] = temperature;
+            minMaxCount[i * 3 + 2]++;
+            position = pos;
+        }
+        return sums;
+    }
+
+    @Benchmark
+    public long[] ddimtirovUncheckedWordValue(MeasurementsFixture fixture) {
+        var memory = fixture.segment();
+        var minMaxCount = new int[DDIMTIROV_MODULUS * 3];
+        var sums = new long[DDIMTIROV_MODULUS];
+        var names = new String[DDIMTIROV_MODULUS];
+        int position = 0;
+        long limit = memory.byteSize();
+        while (position < limit) {
+            int pos = position;
+            byte b;
+            int nameLength = 0, nameHash = 0;
+            while ((b = memory.get(ValueLayout.JAVA_BYTE, pos++)) != ';') {
+                nameHash = nameHash * 31 + b;
+                nameLength++;
+            }
+            if (pos + Long.BYTES > limit)
+                break; // the last line, which the checked loop reads byte by byte
+            long word = memory.get(LONG_LE, pos);
+            int dot = Long.numberOfTrailingZeros(~word & 0x10101000L);
+            long signed = (~word << 59) >> 63;
+            long digits = ((word & ~(signed & 0xFF)) << (28 - dot)) & 0x0F000F0F00L;
+            long absolute = ((digits * 0x640a0001L) >>> 32) & 0x3FF;
+            int temperature = (int) ((absolute ^ signed) - signed);
+            pos += (dot >>> 3) + 2; // the line end
+            if (memory.get(ValueLayout.JAVA_BYTE, pos) == '\r')
+                pos++;
+            pos++;
+
+            var i = Math.abs(nameHash) % DDIMTIROV_MODULUS;
+            if (names[i] == null)
+                names[i] = new String(memory.asSlice(position, nameLength).toArray(ValueLayout.JAVA_BYTE));
+            sums[i] += temperature;
+            if (temperature < minMaxCount[i * 3])
+                minMaxCount[i * 3] = temperature;
+            if (temperature > minMaxCount[i * 3 + 1])
+                minMaxCount[i * 3 + 1] = temperature;
+            minMaxCount[i * 3 + 2]++;
+            position = pos;
+        }
+        return sums;
+    }
+
+    @Benchmark
+    public CalculateAverage_ebarlas.Partition ebarlasChecked(MeasurementsFixture fixture) {
+        return CalculateAverage_ebarlas.processBuffer(fixture.buffer(), true);
+    }
+
+    @Benchmark
+    public CalculateAverage_ebarlas.Stats[] ebarlasUnchecked(MeasurementsFixture fixture) {
+        var buffer = fixture.buffer();
+        var data = MemorySegment.ofBuffer(buffer);
+        var stats = new CalculateAverage_ebarlas.Stats[EBARLAS_MOD * 2];
+        var readingKey = true;
+        var keyHash = 0;
+        var keyStart = 0;
+        var negative = false;
+        var val = 0;
+        CalculateAverage_ebarlas.Stats st = null;
+        while (buffer.hasRemaining()) {
+            var b = buffer.get();
+            if (readingKey) {
+                if (b == ';') {
+                    var idx = EBARLAS_MOD + keyHash % EBARLAS_MOD;
+                    st = stats[idx];
+                    if (st == null) {
+                        st = stats[idx] = new CalculateAverage_ebarlas.Stats(data, keyStart, buffer.position() - keyStart - 1);
+                    }
+                    readingKey = false;
+                }
+                else {
+                    keyHash = 278 * keyHash + b;
+                }
+            }
+            else {
+                if (b == '\n') {
+                    var v = negative ? -val : val;
+                    st.min = Math.min(st.min, v);
+                    st.max = Math.max(st.max, v);
+                    st.sum += v;
+                    st.count++;
+                    readingKey = true;
+                    keyHash = 0;
+                    val = 0;
+                    negative = false;
+                    keyStart = buffer.position();
+                }
+                else if (b == '-') {
+                    negative = true;
+                }
+                else if (b != '.') {
+                    val = val * 10 + (b - '0');
+                }
+            }
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parse and aggregate loop, and the tracker summary of {@link CalculateAverage_ddimtirov}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+@State(Scope.Thread)
+public class Benchmark_ddimtirov {
+
+    private static final int PARTITIONS = 8;
+
+    private List<CalculateAverage_ddimtirov.Tracker> trackers;
+
+    @Setup
+    public void setup(MeasurementsFixture fixture) {
+        int[] bounds = fixture.partitionBounds(PARTITIONS);
+        trackers = new ArrayList<>();
+        for (int p = 0; p < PARTITIONS; p++) {
+            var tracker = new CalculateAverage_ddimtirov.Tracker();
+            tracker.processSegment(fixture.segment().asSlice(bounds[p], bounds[p + 1] - bounds[p]));
+            trackers.add(tracker);
+        }
+    }
+
+    @Benchmark
+    public CalculateAverage_ddimtirov.Tracker processSegment(MeasurementsFixture fixture) {
+        var tracker = new CalculateAverage_ddimtirov.Tracker();
+        tracker.processSegment(fixture.segment());
+        return tracker;
+    }
+
+    @Benchmark
+    public String summarizeTrackers() {
+        return CalculateAverage_ddimtirov.summarizeTrackers(trackers);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fused parse and probe loop, and the partition fold of {@link CalculateAverage_ebarlas}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+@State(Scope.Thread)
+public class Benchmark_ebarlas {
+
+    private static final int PARTITIONS = 8;
+
+    private int[] bounds;
+    private List<CalculateAverage_ebarlas.Partition> partitions;
+
+    @Setup
+    public void setup(MeasurementsFixture fixture) {
+        bounds = fixture.partitionBounds(PARTITIONS);
+        partitions = new ArrayList<>();
+        for (int p = 0; p < PARTITIONS; p++) {
+            partitions.add(partition(fixture, p));
+        }
+    }
+
+    /** foldStats() folds into the first partition, which is parsed again before every invocation */
+    @Setup(Level.Invocation)
+    public void resetFoldTarget(MeasurementsFixture fixture) {
+        partitions.set(0, partition(fixture, 0));
+    }
+
+    private CalculateAverage_ebarlas.Partition partition(MeasurementsFixture fixture, int p) {
+        var buffer = ByteBuffer.wrap(fixture.data, bounds[p], bounds[p + 1] - bounds[p]).slice();
+        return CalculateAverage_ebarlas.processBuffer(buffer, true);
+    }
+
+    @Benchmark
+    public CalculateAverage_ebarlas.Partition processBuffer(MeasurementsFixture fixture) {
+        return CalculateAverage_ebarlas.processBuffer(fixture.buffer(), true);
+    }
+
+    @Benchmark
+    public CalculateAverage_ebarlas.Table foldStats() {
+        return CalculateAverage_ebarlas.foldStats(partitions);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parse, probe and merge stages of {@link CalculateAverage_jotschi}. Each invocation covers
+ * every row of the {@link MeasurementsFixture}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+@State(Scope.Thread)
+public class Benchmark_jotschi {
+
+    private static final int PARTITIONS = 8;
+
+    private OffHeapResultMap2 map;
+    private List<OffHeapResultMap2> partitions;
+
+    @Setup
+    public void setup(MeasurementsFixture fixture) {
+        map = new OffHeapResultMap2();
+        CalculateAverage_jotschi.processSegment(fixture.segment(), new FileSegment2(0, fixture.data.length), map);
+
+        int[] bounds = fixture.partitionBounds(PARTITIONS);
+        var segment = fixture.segment();
+        partitions = new ArrayList<>();
+        for (int p = 0; p < PARTITIONS; p++) {
+            var partition = new OffHeapResultMap2();
+            CalculateAverage_jotschi.processSegment(segment, new FileSegment2(bounds[p], bounds[p + 1]), partition);
+            partitions.add(partition);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        map.close();
+        partitions.forEach(OffHeapResultMap2::close);
+    }
+
+    /** The whole per-segment loop: word wise ';' search and hashing plus the table update */
+    @Benchmark
+    public int parseSegment(MeasurementsFixture fixture) {
+        try (var result = new OffHeapResultMap2()) {
+            CalculateAverage_jotschi.processSegment(fixture.segment(), new FileSegment2(0, fixture.data.length), result);
+            return result.size();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Scanner {
+        @Param({ "vector", "scalar" })
+        public String scanner;
+
+        DelimiterScanner delimiterScanner;
+
+        @Setup
+        public void setup() {
+            delimiterScanner = DelimiterScanner.forName(scanner);
+        }
+    }
+
+    /** The same loop driven by the 64 byte delimiter bitsets of a {@link DelimiterScanner} */
+    @Benchmark
+    public int parseSegmentScanner(MeasurementsFixture fixture, Scanner scanner) {
+        try (var result = new OffHeapResultMap2()) {
+            CalculateAverage_jotschi.processSegment(fixture.segment(), new FileSegment2(0, fixture.data.length), scanner.delimiterScanner, result);
+            return result.size();
+        }
+    }
+
+    @Benchmark
+    public OffHeapResultMap2 add(MeasurementsFixture fixture) {
+        var segment = fixture.segment();
+        for (int i = 0; i < fixture.rows; i++) {
+            map.add(segment, fixture.lineOffsets[i], fixture.nameLengths[i], fixture.tenths[i]);
+        }
+        return map;
+    }
+
+    @Benchmark
+    public TreeMap<String, StationStats> merge() {
+        // getAll() reads every slot into a new StationStats, so merge() folds into fresh values
+        // and the partitions are the same in every invocation
+        return partitions.stream()
+                .flatMap(partition -> partition.getAll().stream())
+                .collect(Collectors.toMap(e -> new String(e.key()), Entry2::value, CalculateAverage_jotschi::merge, TreeMap::new));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hashing, dictionary encoding and page merging of {@link CalculateAverage_richardstartin}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+@State(Scope.Thread)
+public class Benchmark_richardstartin {
+
+    private static final int PARTITIONS = 8;
+
+    private CalculateAverage_richardstartin.Dictionary dictionary;
+    private double[][][] parsed;
+    private double[][][] partitions;
+    private double[][] aggregate;
+
+    @Setup
+    public void setup(MeasurementsFixture fixture) {
+        dictionary = new CalculateAverage_richardstartin.Dictionary();
+        parsed = new double[PARTITIONS][1024][];
+        for (int i = 0; i < fixture.rows; i++) {
+            int id = dictionary.encode(fixture.nameHashes[i], fixture.nameSlices[i]);
+            CalculateAverage_richardstartin.Page.update(parsed[i % PARTITIONS], id, fixture.tenths[i] / 10.0);
+        }
+        partitions = new double[PARTITIONS][1024][];
+    }
+
+    /**
+     * merge() adopts the first page it sees for a position and merges the others into it, so
+     * every invocation starts from an empty aggregate and copies of the parsed pages.
+     */
+    @Setup(Level.Invocation)
+    public void resetMerge() {
+        for (int p = 0; p < PARTITIONS; p++) {
+            for (int page = 0; page < parsed[p].length; page++) {
+                partitions[p][page] = parsed[p][page] == null ? null : parsed[p][page].clone();
+            }
+        }
+        aggregate = new double[1024][];
+    }
+
+    @Benchmark
+    public long hash(MeasurementsFixture fixture) {
+        long h = 0;
+        for (int i = 0; i < fixture.rows; i++) {
+            h ^= CalculateAverage_richardstartin.hash(fixture.nameSlices[i]);
+        }
+        return h;
+    }
+
+    @Benchmark
+    public int encode(MeasurementsFixture fixture) {
+        int ids = 0;
+        for (int i = 0; i < fixture.rows; i++) {
+            ids += dictionary.encode(fixture.nameHashes[i], fixture.nameSlices[i]);
+        }
+        return ids;
+    }
+
+    @Benchmark
+    public double[][] merge() {
+        for (double[][] partition : partitions) {
+            CalculateAverage_richardstartin.AggregationTask.merge(partition, aggregate);
+        }
+        return aggregate;
+    }
+}
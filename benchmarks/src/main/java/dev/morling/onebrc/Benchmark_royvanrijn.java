@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parse, probe and merge stages of {@link CalculateAverage_royvanrijn}. Each invocation covers
+ * every row of the {@link MeasurementsFixture}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+@State(Scope.Thread)
+public class Benchmark_royvanrijn {
+
+    private static final int PARTITIONS = 8;
+
+    private CalculateAverage_royvanrijn.BitTwiddledMap map;
+    private CalculateAverage_royvanrijn.BitTwiddledMap[] partitions;
+
+    @Setup
+    public void setup(MeasurementsFixture fixture) {
+        var outer = new CalculateAverage_royvanrijn();
+        map = outer.new BitTwiddledMap();
+        for (int i = 0; i < fixture.rows; i++) {
+            map.getOrCreate(fixture.lines[i], fixture.nameLengths[i]);
+        }
+
+        partitions = new CalculateAverage_royvanrijn.BitTwiddledMap[PARTITIONS];
+        for (int p = 0; p < PARTITIONS; p++) {
+            partitions[p] = outer.new BitTwiddledMap();
+        }
+        for (int i = 0; i < fixture.rows; i++) {
+            int nameLength = fixture.nameLengths[i];
+            int measured = CalculateAverage_royvanrijn.branchlessParseInt(fixture.lines[i], nameLength + 1, fixture.valueLengths[i]);
+            partitions[i % PARTITIONS].getOrCreate(fixture.lines[i], nameLength).updateWith(measured);
+        }
+    }
+
+    @Benchmark
+    public long branchlessParseInt(MeasurementsFixture fixture) {
+        long sum = 0;
+        for (int i = 0; i < fixture.rows; i++) {
+            sum += CalculateAverage_royvanrijn.branchlessParseInt(fixture.lines[i], fixture.nameLengths[i] + 1, fixture.valueLengths[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public void getOrCreate(MeasurementsFixture fixture, Blackhole bh) {
+        for (int i = 0; i < fixture.rows; i++) {
+            bh.consume(map.getOrCreate(fixture.lines[i], fixture.nameLengths[i]));
+        }
+    }
+
+    @Benchmark
+    public TreeMap<String, CalculateAverage_royvanrijn.Measurement> merge() {
+        // fresh accumulators per invocation, updateWith() mutates its receiver
+        return Stream.of(partitions)
+                .flatMap(v -> v.values.stream())
+                .collect(Collectors.toMap(e -> new String(e.key()), e -> new CalculateAverage_royvanrijn.Measurement().updateWith(e.measurement()),
+                        (m1, m2) -> m1.updateWith(m2), TreeMap::new));
+    }
+}
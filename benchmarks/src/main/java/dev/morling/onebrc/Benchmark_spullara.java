@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Probe and merge stages of {@link CalculateAverage_spullara}. The parse loop is the same as
+ * jotschi's, see {@link Benchmark_jotschi#parseSegment}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+@State(Scope.Thread)
+public class Benchmark_spullara {
+
+    private static final int PARTITIONS = 8;
+
+    private ByteArrayToResultMap map;
+    private List<ByteArrayToResultMap> partitions;
+
+    @Setup
+    public void setup(MeasurementsFixture fixture) {
+        map = new ByteArrayToResultMap();
+        partitions = new ArrayList<>();
+        for (int p = 0; p < PARTITIONS; p++) {
+            partitions.add(new ByteArrayToResultMap());
+        }
+        for (int i = 0; i < fixture.rows; i++) {
+            int temp = fixture.tenths[i];
+            map.putOrMerge(fixture.names[i], 0, fixture.nameLengths[i], () -> new StationStats(temp, temp, temp, 1), m -> m.add(temp));
+            partitions.get(i % PARTITIONS).putOrMerge(fixture.names[i], 0, fixture.nameLengths[i], () -> new StationStats(temp, temp, temp, 1),
+                    m -> m.add(temp));
+        }
+    }
+
+    @Benchmark
+    public ByteArrayToResultMap putOrMerge(MeasurementsFixture fixture) {
+        for (int i = 0; i < fixture.rows; i++) {
+            int finalTemp = fixture.tenths[i];
+            map.putOrMerge(fixture.names[i], 0, fixture.nameLengths[i],
+                    () -> new StationStats(finalTemp, finalTemp, finalTemp, 1),
+                    measurement -> measurement.add(finalTemp));
+        }
+        return map;
+    }
+
+    @Benchmark
+    public TreeMap<String, StationStats> merge() {
+        // fresh accumulators per invocation, merge() mutates the partition values otherwise
+        return partitions.stream()
+                .flatMap(partition -> partition.getAll().stream())
+                .collect(Collectors.toMap(e -> new String(e.key()), e -> e.value().copy(), CalculateAverage_spullara::merge, TreeMap::new));
+    }
+}
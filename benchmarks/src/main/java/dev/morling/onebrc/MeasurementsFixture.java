@@ -0,0 +1,194 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Shared in-memory fixture for all benchmarks: a block of {@code name;temp\n} rows plus
+ * the pre-split pieces of each row, so that parse, probe and merge can be measured
+ * without the others getting in the way. The data is generated from a fixed seed so every
+ * fork and every run sees the same bytes.
+ */
+@State(Scope.Benchmark)
+public class MeasurementsFixture {
+
+    private static final String[] BASE_NAMES = {
+            "Abha", "Abidjan", "Abéché", "Accra", "Addis Ababa", "Adelaide", "Aden", "Ahvaz", "Albuquerque",
+            "Alexandra", "Alexandria", "Algiers", "Alice Springs", "Almaty", "Amsterdam", "Anadyr", "Anchorage",
+            "Andorra la Vella", "Ankara", "Antananarivo", "Antsiranana", "Arkhangelsk", "Ashgabat", "Asmara",
+            "Assab", "Astana", "Athens", "Atlanta", "Auckland", "Austin", "Baghdad", "Baguio", "Baku", "Baltimore",
+            "Bamako", "Bangkok", "Bangui", "Banjul", "Barcelona", "Bata", "Batumi", "Beijing", "Beirut",
+            "Belgrade", "Belize City", "Benghazi", "Bergen", "Berlin", "Bilbao", "Birao", "Bishkek", "Bissau",
+            "Blantyre", "Bloemfontein", "Boise", "Bordeaux", "Bosaso", "Boston", "Bouaké", "Bratislava",
+            "Brazzaville", "Bridgetown", "Brisbane", "Brussels", "Bucharest", "Budapest", "Bujumbura",
+            "Bulawayo", "Burnie", "Busan", "Cabo San Lucas", "Cairns", "Cairo", "Calgary", "Canberra",
+            "Cape Town", "Changsha", "Charlotte", "Chiang Mai", "Chicago", "Chihuahua", "Chișinău", "Chittagong",
+            "Chongqing", "Christchurch", "City of San Marino", "Colombo", "Columbus", "Conakry", "Copenhagen",
+            "Cotonou", "Cracow", "Da Lat", "Da Nang", "Dakar", "Dallas", "Damascus", "Dampier", "Dar es Salaam",
+            "Darwin", "Denpasar", "Denver", "Detroit", "Dhaka", "Dikson", "Dili", "Djibouti", "Dodoma", "Dolisie",
+            "Douala", "Dubai", "Dublin", "Dunedin", "Durban", "Dushanbe", "Edinburgh", "Edmonton", "El Paso",
+            "Entebbe", "Erbil", "Erzurum", "Fairbanks", "Fianarantsoa", "Flores,  Petén", "Frankfurt",
+            "Fresno", "Fukuoka", "Gabès", "Gaborone", "Gagnoa", "Gangtok", "Garissa", "Garoua", "George Town",
+            "Ghanzi", "Gjoa Haven", "Guadalajara", "Guangzhou", "Guatemala City", "Halifax", "Hamburg",
+            "Hamilton", "Hanga Roa", "Hanoi", "Harare", "Harbin", "Hargeisa", "Hat Yai", "Havana", "Helsinki",
+            "Heraklion", "Hiroshima", "Ho Chi Minh City", "Hobart", "Hong Kong", "Honiara", "Honolulu",
+            "Houston", "Ifrane", "Indianapolis", "Iqaluit", "Irkutsk", "Istanbul", "İzmir", "Jacksonville",
+            "Jakarta", "Jayapura", "Jerusalem", "Johannesburg", "Jos", "Juba", "Kabul", "Kampala", "Kandi",
+            "Kankan", "Kano", "Kansas City", "Karachi", "Karonga", "Kathmandu", "Khartoum", "Kingston",
+            "Kinshasa", "Kolkata", "Kuala Lumpur", "Kumasi", "Kunming", "Kuopio", "Kuwait City", "Kyiv",
+            "Kyoto", "La Ceiba", "La Paz", "Lagos", "Lahore", "Lake Havasu City", "Lake Tekapo", "Las Palmas de Gran Canaria",
+            "Las Vegas", "Launceston", "Lhasa", "Libreville", "Lisbon", "Livingstone", "Ljubljana", "Lodwar",
+            "Lomé", "London", "Los Angeles", "Louisville", "Luanda", "Lubumbashi", "Lusaka", "Luxembourg City",
+            "Lviv", "Lyon", "Madrid", "Mahajanga", "Makassar", "Makurdi", "Malabo", "Malé", "Managua", "Manama",
+            "Mandalay", "Mango", "Manila", "Maputo", "Marrakesh", "Marseille", "Maun", "Medan", "Mek'ele",
+            "Melbourne", "Memphis", "Mexicali", "Mexico City", "Miami", "Milan", "Milwaukee", "Minneapolis",
+            "Minsk", "Mogadishu", "Mombasa", "Monaco", "Moncton", "Monterrey", "Montreal", "Moscow", "Mumbai",
+            "Murmansk", "Muscat", "Mzuzu", "N'Djamena", "Naha", "Nairobi", "Nakhon Ratchasima", "Napier",
+            "Napoli", "Nashville", "Nassau", "Ndola", "New Delhi", "New Orleans", "New York City", "Ngaoundéré",
+            "Niamey", "Nicosia", "Niigata", "Nouadhibou", "Nouakchott", "Novosibirsk", "Nuuk", "Odesa",
+            "Odienné", "Oklahoma City", "Omaha", "Oranjestad", "Oslo", "Ottawa", "Ouagadougou", "Ouahigouya",
+            "Ouarzazate", "Oulu", "Palembang", "Palermo", "Palm Springs", "Palmerston North", "Panama City",
+            "Parakou", "Paris", "Perth", "Petropavlovsk-Kamchatsky", "Philadelphia", "Phnom Penh", "Phoenix",
+            "Pittsburgh", "Podgorica", "Pointe-Noire", "Pontianak", "Port Moresby", "Port Sudan", "Port Vila",
+            "Port-Gentil", "Portland (OR)", "Porto", "Prague", "Praia", "Pretoria", "Pyongyang", "Rabat",
+            "Rangpur", "Reggane", "Reykjavík", "Riga", "Riyadh", "Rome", "Roseau", "Rostov-on-Don",
+            "Sacramento", "Saint Petersburg", "Saint-Pierre", "Salt Lake City", "San Antonio", "San Diego",
+            "San Francisco", "San Jose", "San José", "San Juan", "San Salvador", "Sana'a", "Santo Domingo",
+            "Sapporo", "Sarajevo", "Saskatoon", "Seattle", "Ségou", "Seoul", "Seville", "Shanghai", "Singapore",
+            "Skopje", "Sochi", "Sofia", "Sokoto", "Split", "St. John's", "St. Louis", "Stockholm", "Surabaya",
+            "Suva", "Suwałki", "Sydney", "Tabora", "Tabriz", "Taipei", "Tallinn", "Tamale", "Tamanrasset",
+            "Tampa", "Tashkent", "Tauranga", "Tbilisi", "Tegucigalpa", "Tehran", "Tel Aviv", "Thessaloniki",
+            "Thiès", "Tijuana", "Timbuktu", "Tirana", "Toamasina", "Tokyo", "Toliara", "Toluca", "Toronto",
+            "Tripoli", "Tromsø", "Tucson", "Tunis", "Ulaanbaatar", "Upington", "Ürümqi", "Vaduz", "Valencia",
+            "Valletta", "Vancouver", "Veracruz", "Vienna", "Vientiane", "Villahermosa", "Vilnius",
+            "Virginia Beach", "Vladivostok", "Warsaw", "Washington, D.C.", "Wau", "Wellington", "Whitehorse",
+            "Wichita", "Willemstad", "Winnipeg", "Wrocław", "Xi'an", "Yakutsk", "Yangon", "Yaoundé",
+            "Yellowknife", "Yerevan", "Yinchuan", "Zagreb", "Zanzibar City", "Zürich" };
+
+    @Param({ "100000" })
+    public int rows;
+
+    @Param({ "413" })
+    public int stations;
+
+    @Param({ "42" })
+    public long seed;
+
+    /** All rows as they would appear in measurements.txt */
+    public byte[] data;
+
+    /** Per row, the offset of the line within {@link #data} */
+    public int[] lineOffsets;
+    /** Per row, the station name bytes; rows of the same station share the array */
+    public byte[][] names;
+    /** Per row, the {@code name;temp} bytes starting at the name, as royvanrijn copies them */
+    public byte[][] lines;
+    public int[] nameLengths;
+    public int[] valueLengths;
+    public int[] tenths;
+
+    /** Per row, the name as a little endian slice and its hash, as richardstartin encodes them */
+    public ByteBuffer[] nameSlices;
+    public long[] nameHashes;
+
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public MemorySegment segment() {
+        return MemorySegment.ofArray(data);
+    }
+
+    /**
+     * Cuts {@link #data} into roughly even, newline aligned ranges, the way the forks split
+     * the file across cores. Element {@code i} and {@code i + 1} delimit partition {@code i}.
+     */
+    public int[] partitionBounds(int partitions) {
+        int[] bounds = new int[partitions + 1];
+        for (int i = 1; i < partitions; i++) {
+            int offset = Math.max(bounds[i - 1], (int) ((long) data.length * i / partitions));
+            while (offset < data.length && data[offset - 1] != '\n') {
+                offset++;
+            }
+            bounds[i] = offset;
+        }
+        bounds[partitions] = data.length;
+        return bounds;
+    }
+
+    @Setup
+    public void setup() {
+        var random = new Random(seed);
+        var stationNames = new byte[stations][];
+        var stationMeans = new int[stations];
+        for (int i = 0; i < stations; i++) {
+            String name = BASE_NAMES[i % BASE_NAMES.length];
+            if (i >= BASE_NAMES.length) {
+                name = name + " " + (i / BASE_NAMES.length);
+            }
+            stationNames[i] = name.getBytes(StandardCharsets.UTF_8);
+            stationMeans[i] = random.nextInt(-300, 400);
+        }
+
+        lineOffsets = new int[rows];
+        names = new byte[rows][];
+        lines = new byte[rows][];
+        nameLengths = new int[rows];
+        valueLengths = new int[rows];
+        tenths = new int[rows];
+        nameSlices = new ByteBuffer[rows];
+        nameHashes = new long[rows];
+
+        var out = new ByteArrayOutputStream(rows * 16);
+        for (int i = 0; i < rows; i++) {
+            int station = random.nextInt(stations);
+            int value = (int) Math.round(stationMeans[station] + random.nextGaussian() * 100);
+            value = Math.max(-999, Math.min(999, value));
+            byte[] name = stationNames[station];
+            byte[] temperature = ((value < 0 ? "-" : "") + Math.abs(value) / 10 + "." + Math.abs(value) % 10)
+                    .getBytes(StandardCharsets.US_ASCII);
+
+            byte[] line = new byte[name.length + 1 + temperature.length];
+            System.arraycopy(name, 0, line, 0, name.length);
+            line[name.length] = ';';
+            System.arraycopy(temperature, 0, line, name.length + 1, temperature.length);
+
+            lineOffsets[i] = out.size();
+            names[i] = name;
+            lines[i] = line;
+            nameLengths[i] = name.length;
+            valueLengths[i] = temperature.length;
+            tenths[i] = value;
+            nameSlices[i] = ByteBuffer.wrap(name).order(ByteOrder.LITTLE_ENDIAN);
+            nameHashes[i] = CalculateAverage_richardstartin.hash(nameSlices[i]);
+
+            out.writeBytes(line);
+            out.write('\n');
+        }
+        data = out.toByteArray();
+    }
+}
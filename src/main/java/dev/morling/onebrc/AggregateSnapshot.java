@@ -0,0 +1,231 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.LongStream;
+import java.util.zip.CRC32C;
+
+/**
+ * The per station aggregates of the first {@code coveredBytes} of a measurements file, so that
+ * a rerun only has to process what was appended since. Layout, big endian:
+ *
+ * <pre>
+ * header:   int magic, int version, long coveredBytes, long modifiedMillis, long prefixChecksum, int stations
+ * stations: short nameLength, byte[nameLength] name, int min, int max, long sum, long count
+ * </pre>
+ *
+ * The checksum is the CRC32C of the whole prefix. Writers keep it up to date with
+ * {@link #extendChecksum}, which folds in the bytes they have just processed, so saving a
+ * snapshot never reads the prefix again; only validating a file that has changed does, once.
+ */
+final class AggregateSnapshot {
+
+    static final int MAGIC = 0x31425243; // "1BRC"
+    static final int VERSION = 2;
+    static final long PIECE_SIZE = 64 << 20;
+    static final int BLOCK_SIZE = 1 << 20;
+    static final int CRC32C_POLYNOMIAL = 0x82F63B78; // reversed
+
+    private final long coveredBytes;
+    private final long modifiedMillis;
+    private final long prefixChecksum;
+    private final TreeMap<String, StationStats> stations;
+
+    AggregateSnapshot(long coveredBytes, long modifiedMillis, long prefixChecksum, TreeMap<String, StationStats> stations) {
+        this.coveredBytes = coveredBytes;
+        this.modifiedMillis = modifiedMillis;
+        this.prefixChecksum = prefixChecksum;
+        this.stations = stations;
+    }
+
+    long coveredBytes() {
+        return coveredBytes;
+    }
+
+    long modifiedMillis() {
+        return modifiedMillis;
+    }
+
+    long prefixChecksum() {
+        return prefixChecksum;
+    }
+
+    TreeMap<String, StationStats> stations() {
+        return stations;
+    }
+
+    /**
+     * Whether this snapshot still describes the start of {@code source}. An unchanged file is
+     * recognized by size and modification time alone, a grown one by the prefix checksum.
+     */
+    boolean matches(FileChannel source, long modifiedMillis) throws IOException {
+        long size = source.size();
+        if (size < coveredBytes) {
+            return false;
+        }
+        if (size == coveredBytes && modifiedMillis == this.modifiedMillis) {
+            return true;
+        }
+        return prefixChecksum(source, coveredBytes) == prefixChecksum;
+    }
+
+    /** The checksum of the first {@code length} bytes of {@code source}, read once */
+    static long prefixChecksum(FileChannel source, long length) throws IOException {
+        try (var arena = Arena.ofShared()) {
+            return extendChecksum(0, source.map(FileChannel.MapMode.READ_ONLY, 0, length, arena));
+        }
+    }
+
+    /**
+     * The checksum of a prefix followed by {@code appended}, given the prefix's checksum. Pieces
+     * are hashed in parallel and combined like zlib's {@code crc32_combine}.
+     */
+    static long extendChecksum(long checksum, MemorySegment appended) {
+        return extendChecksum(checksum, appended, PIECE_SIZE);
+    }
+
+    /** As above, with pieces of {@code pieceSize} bytes */
+    static long extendChecksum(long checksum, MemorySegment appended, long pieceSize) {
+        long pieces = (appended.byteSize() + pieceSize - 1) / pieceSize;
+        long[] crcs = LongStream.range(0, pieces).parallel().map(i -> {
+            // copied out in blocks, as CRC32C takes no buffers of segments from shared arenas
+            var crc = new CRC32C();
+            var block = new byte[BLOCK_SIZE];
+            long end = Math.min(appended.byteSize(), (i + 1) * pieceSize);
+            for (long position = i * pieceSize; position < end; position += BLOCK_SIZE) {
+                int length = (int) Math.min(BLOCK_SIZE, end - position);
+                MemorySegment.copy(appended, ValueLayout.JAVA_BYTE, position, block, 0, length);
+                crc.update(block, 0, length);
+            }
+            return crc.getValue();
+        }).toArray();
+        for (int i = 0; i < crcs.length; i++) {
+            checksum = combine(checksum, crcs[i], Math.min(pieceSize, appended.byteSize() - i * pieceSize));
+        }
+        return checksum;
+    }
+
+    /** The CRC of two concatenated blocks, from their CRCs, by appending {@code length2} zeros to the first */
+    private static long combine(long crc1, long crc2, long length2) {
+        int[] even = new int[32]; // operator for an even power of two zero bits
+        int[] odd = new int[32]; // and for an odd one
+        odd[0] = CRC32C_POLYNOMIAL; // a single zero bit
+        for (int n = 1, row = 1; n < 32; n++, row <<= 1) {
+            odd[n] = row;
+        }
+        square(even, odd); // two zero bits
+        square(odd, even); // four zero bits
+        int crc = (int) crc1;
+        do {
+            square(even, odd); // first pass: one zero byte
+            if ((length2 & 1) != 0) {
+                crc = times(even, crc);
+            }
+            length2 >>>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc = times(odd, crc);
+            }
+            length2 >>>= 1;
+        } while (length2 != 0);
+        return Integer.toUnsignedLong(crc ^ (int) crc2);
+    }
+
+    private static int times(int[] matrix, int vector) {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+
+    /** Writes to a temporary file first, so a crash never leaves a truncated snapshot behind */
+    void write(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(coveredBytes);
+            out.writeLong(modifiedMillis);
+            out.writeLong(prefixChecksum);
+            out.writeInt(stations.size());
+            for (Map.Entry<String, StationStats> station : stations.entrySet()) {
+                byte[] name = station.getKey().getBytes(StandardCharsets.UTF_8);
+                StationStats stats = station.getValue();
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeInt(stats.min);
+                out.writeInt(stats.max);
+                out.writeLong(stats.sum);
+                out.writeLong(stats.count);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The snapshot stored in {@code file}, or null if there is none or none this version can
+     * read: a snapshot of another version or a file cut short is rebuilt like a missing one.
+     */
+    static AggregateSnapshot read(Path file) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            long coveredBytes = in.readLong();
+            long modifiedMillis = in.readLong();
+            long prefixChecksum = in.readLong();
+            int count = in.readInt();
+            var stations = new TreeMap<String, StationStats>();
+            for (int i = 0; i < count; i++) {
+                byte[] name = in.readNBytes(in.readUnsignedShort());
+                stations.put(new String(name, StandardCharsets.UTF_8), new StationStats(in.readInt(), in.readInt(), in.readLong(), in.readLong()));
+            }
+            return new AggregateSnapshot(coveredBytes, modifiedMillis, prefixChecksum, stations);
+        }
+        catch (NoSuchFileException | EOFException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.ServiceLoader;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * The split / parse / aggregate / merge pipeline every CalculateAverage_* implements, cut
+ * into four pluggable stages so that e.g. the fastest splitter can be combined with the
+ * fastest table on a given machine.
+ *
+ * <p>Engines are picked by name at runtime:
+ *
+ * <pre>
+ * java -Donebrc.engine=royvanrijn dev.morling.onebrc.AggregationEngine [file]
+ * java -Donebrc.engine=royvanrijn,splitter=richardstartin,merger=ebarlas dev.morling.onebrc.AggregationEngine [file]
+ * java -Donebrc.engine=royvanrijn dev.morling.onebrc.AggregationEngine hourly/*.txt more.txt
+ * </pre>
+ *
+ * The first name selects a base engine, every following {@code stage=name} swaps in the
+ * stage of another engine. Additional engines can be contributed through
+ * {@link ServiceLoader} by implementing {@link Provider}.
+ */
+public final class AggregationEngine {
+
+    private static final String FILE = "./measurements.txt";
+
+    /** Cuts the input into newline aligned chunks */
+    public interface Splitter {
+        List<Chunk> split(MemorySegment data);
+    }
+
+    /** A range of complete lines, {@code end} is exclusive */
+    public record Chunk(long start, long end) {
+    }
+
+    /** Parses every {@code name;temp} line of a chunk into a table, returns the lines it parsed */
+    public interface LineParser {
+        long parse(MemorySegment data, Chunk chunk, StationTable table);
+    }
+
+    /**
+     * Per thread aggregation table. Tables are only ever touched by one thread, merging
+     * happens after all chunks are parsed.
+     */
+    public interface StationTable {
+
+        /** Adds one measurement, the station name is {@code data[nameOffset, nameOffset + nameLength)} */
+        void add(MemorySegment data, long nameOffset, int nameLength, int tenths);
+
+        /**
+         * Adds a measurement whose name the parser has hashed with {@link StationHash#POLYNOMIAL_31}
+         * already; tables hashing another way ignore the hash.
+         */
+        default void add(MemorySegment data, long nameOffset, int nameLength, int hash31, int tenths) {
+            add(data, nameOffset, nameLength, tenths);
+        }
+
+        /** Folds the aggregate of one station, e.g. coming from another table, into this table */
+        void merge(byte[] name, StationStats stats);
+
+        /** Visits every station of this table; the stats may be views and must not be retained */
+        void forEach(BiConsumer<byte[], StationStats> consumer);
+
+        /** Number of distinct stations, lets the merger pick a strategy that suits the cardinality */
+        default int size() {
+            int[] size = { 0 };
+            forEach((name, stats) -> size[0]++);
+            return size[0];
+        }
+
+        /** Folds another table of the same kind into this one, by name unless the table knows better */
+        default void mergeFrom(StationTable other) {
+            other.forEach(this::merge);
+        }
+
+        /** Probe statistics, see {@link TableStats}; null if the table doesn't keep any */
+        default TableStats.Report stats() {
+            return null;
+        }
+    }
+
+    /** Combines the per thread tables into the final, sorted result */
+    public interface Merger {
+        TreeMap<String, StationStats> merge(List<StationTable> tables);
+    }
+
+    /** Contributes an engine, looked up via {@link ServiceLoader} */
+    public interface Provider {
+        String name();
+
+        AggregationEngine create();
+    }
+
+    private static final Map<String, Supplier<AggregationEngine>> ENGINES = new LinkedHashMap<>();
+
+    private final String name;
+    private final Splitter splitter;
+    private final LineParser parser;
+    private final Supplier<StationTable> tables;
+    private final Merger merger;
+
+    public AggregationEngine(String name, Splitter splitter, LineParser parser, Supplier<StationTable> tables, Merger merger) {
+        this.name = name;
+        this.splitter = splitter;
+        this.parser = parser;
+        this.tables = tables;
+        this.merger = merger;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    static {
+        ENGINES.put("jotschi", () -> new AggregationEngine("jotschi",
+                Splitters.perCore(), LineParsers.jotschi(), StationTables::jotschi, Mergers.treeMap()));
+        ENGINES.put("spullara", () -> new AggregationEngine("spullara",
+                Splitters.perCore(), LineParsers.spullara(), StationTables::spullara, Mergers.fold()));
+        ENGINES.put("royvanrijn", () -> new AggregationEngine("royvanrijn",
+                Splitters.perCore(), LineParsers.royvanrijn(), StationTables::royvanrijn, Mergers.treeMap()));
+        ENGINES.put("ebarlas", () -> new AggregationEngine("ebarlas",
+                Splitters.perCore(), LineParsers.ebarlas(), StationTables::ebarlas, Mergers.fold()));
+        ENGINES.put("ddimtirov", () -> new AggregationEngine("ddimtirov",
+                Splitters.perCore(), LineParsers.ddimtirov(), StationTables::ddimtirov, Mergers.fold()));
+        ENGINES.put("richardstartin", () -> {
+            var dictionary = new StationDictionary();
+            return new AggregationEngine("richardstartin",
+                    Splitters.fixedSize(10 << 20), LineParsers.richardstartin(), () -> StationTables.richardstartin(dictionary), Mergers.forkJoin());
+        });
+        for (Provider provider : ServiceLoader.load(Provider.class)) {
+            ENGINES.put(provider.name(), provider::create);
+        }
+    }
+
+    public static List<String> names() {
+        return List.copyOf(ENGINES.keySet());
+    }
+
+    /**
+     * Resolves {@code base[,stage=engine]*}, where stage is one of {@code splitter},
+     * {@code parser}, {@code table} and {@code merger}.
+     */
+    public static AggregationEngine forName(String spec) {
+        String[] parts = spec.split(",");
+        AggregationEngine engine = lookup(parts[0].trim());
+        for (int i = 1; i < parts.length; i++) {
+            String[] override = parts[i].split("=", 2);
+            if (override.length != 2) {
+                throw new IllegalArgumentException("Expected <stage>=<engine> but got " + parts[i]);
+            }
+            AggregationEngine donor = lookup(override[1].trim());
+            engine = switch (override[0].trim()) {
+                case "splitter" -> new AggregationEngine(spec, donor.splitter, engine.parser, engine.tables, engine.merger);
+                case "parser" -> new AggregationEngine(spec, engine.splitter, donor.parser, engine.tables, engine.merger);
+                case "table" -> new AggregationEngine(spec, engine.splitter, engine.parser, donor.tables, engine.merger);
+                case "merger" -> new AggregationEngine(spec, engine.splitter, engine.parser, engine.tables, donor.merger);
+                default -> throw new IllegalArgumentException("Unknown stage " + override[0] + ", expected splitter, parser, table or merger");
+            };
+        }
+        return engine;
+    }
+
+    private static AggregationEngine lookup(String name) {
+        var engine = ENGINES.get(name);
+        if (engine == null) {
+            throw new IllegalArgumentException("Unknown engine " + name + ", available: " + names());
+        }
+        return engine.get();
+    }
+
+    /**
+     * Runs the pipeline with one table per worker thread, the workers claim chunks from a
+     * shared cursor until all are parsed.
+     */
+    public TreeMap<String, StationStats> run(MemorySegment data) {
+        return run(List.of(data));
+    }
+
+    /**
+     * Runs the pipeline over several files at once: the chunks of all of them go into one
+     * list that the workers claim from, so the results end up in one set of tables.
+     */
+    public TreeMap<String, StationStats> run(List<MemorySegment> files) {
+        if (NumaTopology.ENABLED) {
+            return runPerNode(files, NumaTopology.detect());
+        }
+        var metrics = EngineMetrics.ENABLED ? new EngineMetrics(name) : null;
+        List<MemorySegment> sources = new ArrayList<>();
+        List<Chunk> chunks = new ArrayList<>();
+        for (MemorySegment data : files) {
+            for (Chunk chunk : splitter.split(data)) {
+                sources.add(data);
+                chunks.add(chunk);
+            }
+        }
+        if (EngineMetrics.ENABLED) {
+            metrics.split(chunks.size());
+        }
+        int workers = Math.min(chunks.size(), Runtime.getRuntime().availableProcessors());
+        var cursor = new AtomicInteger();
+        List<StationTable> results = IntStream.range(0, workers).parallel()
+                .mapToObj(_ -> parseAll(sources, chunks, cursor, metrics))
+                .toList();
+        printStats(results);
+        if (!EngineMetrics.ENABLED) {
+            return merger.merge(results);
+        }
+        metrics.parsed();
+        var merged = merger.merge(results);
+        metrics.merged(merged.size());
+        return merged;
+    }
+
+    /**
+     * NUMA mode, {@code -Donebrc.numa=true}: every node gets a contiguous range of lines of each
+     * file, sized by its share of the CPUs, and one worker per CPU, pinned to the node, that only
+     * parses chunks of those ranges. So the pages a node's workers fault in, if not cached yet,
+     * are allocated on that node, and its tables never touch the memory of another one. The
+     * tables of a node are folded into one on the node before the merger gets one table per node.
+     */
+    TreeMap<String, StationStats> runPerNode(List<MemorySegment> files, NumaTopology topology) {
+        var metrics = EngineMetrics.ENABLED ? new EngineMetrics(name) : null;
+        List<NumaTopology.Node> nodes = topology.nodes();
+        List<List<MemorySegment>> sources = new ArrayList<>();
+        List<List<Chunk>> chunks = new ArrayList<>();
+        for (int node = 0; node < nodes.size(); node++) {
+            sources.add(new ArrayList<>());
+            chunks.add(new ArrayList<>());
+        }
+        for (MemorySegment data : files) {
+            long[] bounds = topology.ranges(data);
+            for (int node = 0; node < nodes.size(); node++) {
+                long start = bounds[node];
+                if (bounds[node + 1] > start) {
+                    // chunks of the range, but with offsets into the file like everywhere else
+                    for (Chunk chunk : splitter.split(data.asSlice(start, bounds[node + 1] - start))) {
+                        sources.get(node).add(data);
+                        chunks.get(node).add(new Chunk(start + chunk.start(), start + chunk.end()));
+                    }
+                }
+            }
+        }
+        if (EngineMetrics.ENABLED) {
+            metrics.split(chunks.stream().mapToInt(List::size).sum());
+        }
+
+        List<StationTable[]> perWorker = new ArrayList<>();
+        List<NumaTopology.Node> workerNodes = new ArrayList<>();
+        List<Runnable> workers = new ArrayList<>();
+        for (int node = 0; node < nodes.size(); node++) {
+            var nodeSources = sources.get(node);
+            var nodeChunks = chunks.get(node);
+            var cursor = new AtomicInteger();
+            var results = new StationTable[Math.min(nodes.get(node).cpus().length, nodeChunks.size())];
+            for (int i = 0; i < results.length; i++) {
+                int worker = i;
+                workerNodes.add(nodes.get(node));
+                workers.add(() -> results[worker] = parseAll(nodeSources, nodeChunks, cursor, metrics));
+            }
+            perWorker.add(results);
+        }
+        NumaTopology.runPinned(workerNodes, workers);
+        printStats(perWorker.stream().flatMap(Arrays::stream).toList());
+        if (EngineMetrics.ENABLED) {
+            metrics.parsed();
+        }
+
+        var perNode = new StationTable[nodes.size()];
+        List<NumaTopology.Node> folderNodes = new ArrayList<>();
+        List<Runnable> folders = new ArrayList<>();
+        for (int node = 0; node < nodes.size(); node++) {
+            var results = perWorker.get(node);
+            if (results.length > 0) {
+                int target = node;
+                folderNodes.add(nodes.get(node));
+                folders.add(() -> {
+                    for (int i = 1; i < results.length; i++) {
+                        results[0].mergeFrom(results[i]);
+                    }
+                    perNode[target] = results[0];
+                });
+            }
+        }
+        NumaTopology.runPinned(folderNodes, folders);
+        var merged = merger.merge(Arrays.stream(perNode).filter(Objects::nonNull).toList());
+        if (EngineMetrics.ENABLED) {
+            metrics.merged(merged.size());
+        }
+        return merged;
+    }
+
+    /** A worker: parses the chunks it claims from the cursor into a table of its own */
+    private StationTable parseAll(List<MemorySegment> sources, List<Chunk> chunks, AtomicInteger cursor, EngineMetrics metrics) {
+        StationTable table = tables.get();
+        var worker = EngineMetrics.ENABLED ? metrics.worker() : null;
+        int next;
+        while ((next = cursor.getAndIncrement()) < chunks.size()) {
+            if (EngineMetrics.ENABLED) {
+                long begin = worker.begin();
+                long rows = parser.parse(sources.get(next), chunks.get(next), table);
+                worker.end(begin, next, chunks.get(next).start(), chunks.get(next).end(), rows);
+            }
+            else {
+                parser.parse(sources.get(next), chunks.get(next), table);
+            }
+        }
+        if (EngineMetrics.ENABLED) {
+            worker.table(table);
+        }
+        return table;
+    }
+
+    /** Before merging, which may fold the tables into each other */
+    private void printStats(List<StationTable> results) {
+        // distinct, as tables sharing one dictionary all report the dictionary's numbers
+        TableStats.print(name, results.stream().map(StationTable::stats).filter(Objects::nonNull).distinct());
+    }
+
+    public TreeMap<String, StationStats> run(Path file) throws IOException {
+        return runFiles(List.of(file));
+    }
+
+    public TreeMap<String, StationStats> runFiles(List<Path> files) throws IOException {
+        // the tables copy the names they keep, so the mappings can go once the result is merged
+        try (var arena = Arena.ofShared()) {
+            List<MemorySegment> mapped = new ArrayList<>();
+            for (Path file : files) {
+                try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena));
+                }
+            }
+            return run(mapped);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        var engine = forName(System.getProperty("onebrc.engine", "jotschi"));
+        System.out.println(engine.runFiles(InputFiles.resolve(args, FILE)));
+    }
+}
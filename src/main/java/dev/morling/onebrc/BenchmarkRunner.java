@@ -0,0 +1,238 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs implementations over the measurements file again and again and reports the distribution
+ * of their wall times as CSV, one row per implementation, instead of timing a handful of script
+ * runs by hand. A target is a main class, by simple or full name, e.g. {@code jotschi},
+ * {@code CalculateAverage_jotschi}, optionally with arguments after a colon, e.g.
+ * {@code ebarlas:measurements.txt,8}, or an {@link AggregationEngine} spec after {@code engine:},
+ * e.g. {@code engine:royvanrijn,merger=ebarlas}.
+ *
+ * <pre>
+ * java --enable-preview --add-modules jdk.incubator.vector dev.morling.onebrc.BenchmarkRunner \
+ *     [--runs 10] [--warmup 3] [--fork [--jvm-opts "-Xmx2g ..."]] [--cache warm|cold] [--out results.csv] target...
+ * </pre>
+ *
+ * In-process, the runs of a target share one JVM, after {@code --warmup} unmeasured runs for the
+ * JIT; a main class keeps its static state from one run to the next. With {@code --fork}, every
+ * run is a JVM of its own and its wall time includes start-up, as in {@code evaluate.sh}. With
+ * {@code --cache cold}, the file is evicted from the page cache before every run, otherwise it is
+ * read once up front. Results are printed to stdout, which the targets' own output is kept from.
+ */
+public class BenchmarkRunner {
+
+    private static final String FILE = "./measurements.txt";
+
+    private static final String HEADER = "target,mode,cache,runs,bytes,rows,p50_ms,p90_ms,p99_ms,min_ms,max_ms,mb_per_s,rows_per_s,gc_ms,cpus,arch,java";
+
+    // the last line a forked run prints, with its own time and the time its collectors took
+    private static final String CHILD_RESULT = "benchmark-run ";
+
+    /** One measured run, its wall time and the time spent in garbage collection */
+    record Run(long nanos, long gcMillis) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && args[0].equals("--child")) {
+            Run run = runInProcess(args[1]);
+            System.out.println(CHILD_RESULT + run.nanos() + " " + run.gcMillis());
+            return;
+        }
+
+        int runs = 10;
+        int warmup = 3;
+        boolean fork = false;
+        boolean cold = false;
+        List<String> jvmOptions = new ArrayList<>();
+        Path out = null;
+        List<String> targets = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--runs" -> runs = Integer.parseInt(args[++i]);
+                case "--warmup" -> warmup = Integer.parseInt(args[++i]);
+                case "--fork" -> fork = true;
+                case "--jvm-opts" -> jvmOptions.addAll(Arrays.asList(args[++i].trim().split("\\s+")));
+                case "--cache" -> cold = switch (args[++i]) {
+                        case "cold" -> true;
+                        case "warm" -> false;
+                        default -> throw new IllegalArgumentException("Unknown cache mode " + args[i] + ", expected warm or cold");
+                    };
+                case "--out" -> out = Path.of(args[++i]);
+                default -> targets.add(args[i]);
+            }
+        }
+        if (targets.isEmpty() || runs < 1) {
+            System.out.println("Usage: benchmark.sh [--runs 10] [--warmup 3] [--fork [--jvm-opts \"...\"]] [--cache warm|cold] [--out results.csv] target...");
+            System.exit(1);
+        }
+
+        Path file = Path.of(FILE);
+        long bytes = Files.size(file);
+        long rows = countLines(file);
+        List<String> lines = new ArrayList<>(List.of(HEADER));
+        for (String target : targets) {
+            if (!cold) {
+                PageCache.warm(file);
+            }
+            for (int i = 0; !fork && i < warmup; i++) {
+                runInProcess(target);
+            }
+            long[] nanos = new long[runs];
+            long[] gcMillis = new long[runs];
+            for (int i = 0; i < runs; i++) {
+                if (cold) {
+                    PageCache.evict(file);
+                }
+                Run run = fork ? runForked(target, jvmOptions) : runInProcess(target);
+                nanos[i] = run.nanos();
+                gcMillis[i] = run.gcMillis();
+                System.err.printf("%s run %d: %,d ms, gc %d ms%n", target, i + 1, run.nanos() / 1_000_000, run.gcMillis());
+            }
+            lines.add(summary(target, fork ? "fork" : "in-process", cold ? "cold" : "warm", bytes, rows, nanos, gcMillis));
+        }
+
+        if (out != null) {
+            Files.write(out, lines);
+        }
+        lines.forEach(System.out::println);
+    }
+
+    private static String summary(String target, String mode, String cache, long bytes, long rows, long[] nanos, long[] gcMillis) {
+        Arrays.sort(nanos);
+        Arrays.sort(gcMillis);
+        double p50 = percentile(nanos, 0.5) / 1e9;
+        return String.format(Locale.ROOT, "\"%s\",%s,%s,%d,%d,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.0f,%d,%d,%s,%s",
+                target.replace("\"", "\"\""), mode, cache, nanos.length, bytes, rows,
+                percentile(nanos, 0.5) / 1e6, percentile(nanos, 0.9) / 1e6, percentile(nanos, 0.99) / 1e6,
+                nanos[0] / 1e6, nanos[nanos.length - 1] / 1e6,
+                bytes / p50 / (1 << 20), rows / p50, percentile(gcMillis, 0.5),
+                Runtime.getRuntime().availableProcessors(), System.getProperty("os.arch"), Runtime.version());
+    }
+
+    /** Nearest rank, so every percentile is one of the measured values */
+    static long percentile(long[] sorted, double p) {
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static Run runInProcess(String target) throws Exception {
+        long gcBefore = gcMillis();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long start = System.nanoTime();
+        try {
+            int colon = target.indexOf(':');
+            if (target.startsWith("engine:")) {
+                AggregationEngine.forName(target.substring("engine:".length())).run(Path.of(FILE));
+            }
+            else {
+                String[] args = colon < 0 ? new String[0] : target.substring(colon + 1).split(",");
+                mainMethod(colon < 0 ? target : target.substring(0, colon)).invoke(null, (Object) args);
+            }
+        }
+        catch (InvocationTargetException e) {
+            throw e.getCause()instanceof Exception cause ? cause : e;
+        }
+        finally {
+            System.setOut(stdout);
+        }
+        return new Run(System.nanoTime() - start, gcMillis() - gcBefore);
+    }
+
+    private static Run runForked(String target, List<String> jvmOptions) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(List.of("--enable-preview", "--add-modules", "jdk.incubator.vector"));
+        command.addAll(jvmOptions);
+        command.addAll(List.of("--class-path", System.getProperty("java.class.path"), BenchmarkRunner.class.getName(), "--child", target));
+
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        int exitCode = process.waitFor();
+        long nanos = System.nanoTime() - start;
+        if (exitCode != 0) {
+            throw new IllegalStateException(target + " exited with " + exitCode);
+        }
+        String result = output.lines()
+                .filter(line -> line.startsWith(CHILD_RESULT))
+                .reduce((first, second) -> second)
+                .orElseThrow(() -> new IllegalStateException(target + " didn't report its run"));
+        return new Run(nanos, Long.parseLong(result.substring(CHILD_RESULT.length()).split(" ")[1]));
+    }
+
+    private static Method mainMethod(String name) throws ReflectiveOperationException {
+        String className = name.contains(".") ? name
+                : BenchmarkRunner.class.getPackageName() + "." + (name.startsWith("CalculateAverage") ? name : "CalculateAverage_" + name);
+        return Class.forName(className).getMethod("main", String[].class);
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /** Counts the '\n', eight bytes at a time, for rows per second */
+    static long countLines(Path file) throws IOException {
+        final long newlines = 0x0A0A0A0A0A0A0A0AL;
+        long count = 0;
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            long position = 0;
+            int read;
+            while ((read = channel.read(buffer.clear(), position)) > 0) {
+                position += read;
+                buffer.flip();
+                while (buffer.remaining() >= Long.BYTES) {
+                    long x = buffer.getLong() ^ newlines;
+                    // the high bit of every byte that was '\n', without false positives
+                    long zeros = ~(((x & 0x7F7F7F7F7F7F7F7FL) + 0x7F7F7F7F7F7F7F7FL) | x | 0x7F7F7F7F7F7F7F7FL);
+                    count += Long.bitCount(zeros);
+                }
+                while (buffer.hasRemaining()) {
+                    if (buffer.get() == '\n') {
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Reads the binary columnar format written by {@link ConvertMeasurements}, where a row takes
+ * 4 bytes instead of about 14 and there is nothing left to parse. All values are little endian:
+ *
+ * <pre>
+ * block*       int rows, short minStation, short maxStation, short minTenths, short maxTenths, int 0,
+ *              short[rows] station ids, short[rows] tenths
+ * dictionary   per station id: short length, byte[length] UTF-8 name
+ * footer       long dictionaryOffset, long rows, int stations, int blockRows, int version, int magic
+ * </pre>
+ *
+ * Every block but the last holds exactly {@code blockRows} rows, so block {@code i} starts at
+ * {@code i * (BLOCK_HEADER + 4 * blockRows)} and blocks can be handed out to threads without an
+ * index. The station and value ranges in the block header allow skipping whole blocks when
+ * only some stations are of interest; aggregating all of them simply reads every block.
+ */
+public class CalculateAverage_columnar {
+
+    private static final String FILE = "./measurements.bin";
+
+    static final int MAGIC = 0x31425243; // "1BRC"
+    static final int VERSION = 1;
+    static final int BLOCK_ROWS = 1 << 16;
+    static final int BLOCK_HEADER = 16;
+    static final int FOOTER = 32;
+    static final int MAX_STATIONS = 1 << 16;
+
+    static final ValueLayout.OfShort SHORT_LE = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    static final ValueLayout.OfInt INT_LE = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    static final ValueLayout.OfLong LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    static long blockSize(int blockRows) {
+        return BLOCK_HEADER + 4L * blockRows;
+    }
+
+    public static void main(String[] args) throws IOException {
+        var file = Path.of(args.length == 0 ? FILE : args[0]);
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), Arena.global());
+            System.out.println(aggregate(data));
+        }
+    }
+
+    @SuppressWarnings("preview")
+    static TreeMap<String, StationStats> aggregate(MemorySegment data) {
+        long footer = data.byteSize() - FOOTER;
+        if (footer < 0 || data.get(INT_LE, footer + 28) != MAGIC) {
+            throw new IllegalArgumentException("Not a columnar measurements file");
+        }
+        if (data.get(INT_LE, footer + 24) != VERSION) {
+            throw new IllegalArgumentException("Unsupported version " + data.get(INT_LE, footer + 24));
+        }
+        long dictionaryOffset = data.get(LONG_LE, footer);
+        long rows = data.get(LONG_LE, footer + 8);
+        int stations = data.get(INT_LE, footer + 16);
+        int blockRows = data.get(INT_LE, footer + 20);
+        int blocks = (int) ((rows + blockRows - 1) / blockRows);
+
+        // one accumulator per thread, indexed by station id; blocks are claimed from a cursor
+        int workers = Math.max(1, Math.min(blocks, Runtime.getRuntime().availableProcessors()));
+        var cursor = new AtomicInteger();
+        Accumulator total = IntStream.range(0, workers).parallel().mapToObj(_ -> {
+            var accumulator = new Accumulator(stations);
+            int block;
+            while ((block = cursor.getAndIncrement()) < blocks) {
+                accumulator.add(data, block * blockSize(blockRows));
+            }
+            return accumulator;
+        }).reduce(Accumulator::merge).orElseGet(() -> new Accumulator(stations));
+
+        var result = new TreeMap<String, StationStats>();
+        long offset = dictionaryOffset;
+        for (int id = 0; id < stations; id++) {
+            int length = Short.toUnsignedInt(data.get(SHORT_LE, offset));
+            byte[] name = data.asSlice(offset + 2, length).toArray(ValueLayout.JAVA_BYTE);
+            offset += 2 + length;
+            if (total.count[id] > 0) {
+                result.put(new String(name, StandardCharsets.UTF_8), new StationStats(total.min[id], total.max[id], total.sum[id], total.count[id]));
+            }
+        }
+        return result;
+    }
+
+    /** Struct of arrays aggregate, the station id is the index, so there is no hashing at all */
+    private static final class Accumulator {
+        final int[] min;
+        final int[] max;
+        final long[] sum;
+        final long[] count;
+
+        Accumulator(int stations) {
+            min = new int[stations];
+            max = new int[stations];
+            sum = new long[stations];
+            count = new long[stations];
+            Arrays.fill(min, Integer.MAX_VALUE);
+            Arrays.fill(max, Integer.MIN_VALUE);
+        }
+
+        void add(MemorySegment data, long block) {
+            int rows = data.get(INT_LE, block);
+            long ids = block + BLOCK_HEADER;
+            long values = ids + 2L * rows;
+            for (int row = 0; row < rows; row++) {
+                int id = Short.toUnsignedInt(data.get(SHORT_LE, ids + 2L * row));
+                int tenths = data.get(SHORT_LE, values + 2L * row);
+                min[id] = Math.min(min[id], tenths);
+                max[id] = Math.max(max[id], tenths);
+                sum[id] += tenths;
+                count[id]++;
+            }
+        }
+
+        Accumulator merge(Accumulator other) {
+            for (int id = 0; id < count.length; id++) {
+                min[id] = Math.min(min[id], other.min[id]);
+                max[id] = Math.max(max[id], other.max[id]);
+                sum[id] += other.sum[id];
+                count[id] += other.count[id];
+            }
+            return this;
+        }
+    }
+}
@@ -19,6 +19,7 @@ import java.io.*;
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -38,6 +39,10 @@ public class CalculateAverage_ddimtirov {
     private static final String FILE = "./measurements.txt";
 
     private static final int HASH_NO_CLASH_MODULUS = 49999;
+    // the modulus is not collision free for every station set: a station whose slot is taken
+    // by another one is put into this region instead, probing linearly, which doubles once half full
+    private static final int INITIAL_OVERFLOW = 1 << 14;
+    private static final ValueLayout.OfLong LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
     private static final int OFFSET_MIN = 0;
     private static final int OFFSET_MAX = 1;
     private static final int OFFSET_COUNT = 2;
@@ -53,7 +58,8 @@ public class CalculateAverage_ddimtirov {
         var trackers = fileSegments.stream().parallel().map(fileSegment -> {
             try (var fileChannel = (FileChannel) Files.newByteChannel(path, StandardOpenOption.READ)) {
                 var tracker = new Tracker();
-                var memorySegment = fileChannel.map(FileChannel.MapMode.READ_ONLY, fileSegment.start(), fileSegment.size(), Arena.ofConfined());
+                // never unmapped before exit anyway; a global mapping spares each access the owner thread check
+                var memorySegment = fileChannel.map(FileChannel.MapMode.READ_ONLY, fileSegment.start(), fileSegment.size(), Arena.global());
                 tracker.processSegment(memorySegment);
                 return tracker;
             }
@@ -62,6 +68,7 @@ public class CalculateAverage_ddimtirov {
             }
         }).toList();
 
+        TableStats.print("ddimtirov", trackers.stream().map(Tracker::stats));
         var result = summarizeTrackers(trackers);
         System.out.println(result);
 
@@ -80,7 +87,9 @@ public class CalculateAverage_ddimtirov {
                 for (int segmentIdx = 0; segmentIdx < desiredSegmentsCount; segmentIdx++) {
                     var segStart = segmentIdx * segmentSize;
                     var segEnd = (segmentIdx == desiredSegmentsCount - 1) ? fileSize : segStart + segmentSize;
-                    segStart = findSegmentBoundary(raf, segmentIdx, 0, segStart, segEnd);
+                    // both ends look as far as the end of the file, so that a segment starts just where the
+                    // previous one ends, even when it is too small to contain a newline
+                    segStart = findSegmentBoundary(raf, segmentIdx, 0, segStart, fileSize);
                     segEnd = findSegmentBoundary(raf, segmentIdx, desiredSegmentsCount - 1, segEnd, fileSize);
 
                     var segSize = segEnd - segStart;
@@ -103,45 +112,42 @@ public class CalculateAverage_ddimtirov {
         }
     }
 
-    private static String summarizeTrackers(List<Tracker> trackers) {
-        var result = new TreeMap<String, String>();
-        for (var i = 0; i < HASH_NO_CLASH_MODULUS; i++) {
-            String name = null;
-
-            var min = Integer.MAX_VALUE;
-            var max = Integer.MIN_VALUE;
-            var sum = 0L;
-            var count = 0L;
-            for (Tracker tracker : trackers) {
+    static String summarizeTrackers(List<Tracker> trackers) {
+        // by name, as collisions may have put a station into different slots in different trackers
+        var stats = new TreeMap<String, StationStats>();
+        for (Tracker tracker : trackers) {
+            for (var i = 0; i < tracker.names.length; i++) {
                 if (tracker.names[i] == null)
                     continue;
-                if (name == null)
-                    name = tracker.names[i];
-
-                var minn = tracker.minMaxCount[i * 3];
-                var maxx = tracker.minMaxCount[i * 3 + 1];
-                if (minn < min)
-                    min = minn;
-                if (maxx > max)
-                    max = maxx;
-                count += tracker.minMaxCount[i * 3 + 2];
-                sum += tracker.sums[i];
-            }
-            if (name == null)
-                continue;
 
-            var mean = Math.round((double) sum / count) / 10.0;
-            result.put(name, (min / 10.0) + "/" + mean + "/" + (max / 10.0));
+                stats.computeIfAbsent(tracker.names[i], _ -> new StationStats()).merge(tracker.minMaxCount[i * 3 + OFFSET_MIN],
+                        tracker.minMaxCount[i * 3 + OFFSET_MAX], tracker.sums[i], tracker.minMaxCount[i * 3 + OFFSET_COUNT]);
+            }
         }
+
+        var result = new TreeMap<String, String>();
+        stats.forEach((name, s) -> {
+            var mean = Math.round((double) s.sum() / s.count()) / 10.0;
+            result.put(name, (s.min() / 10.0) + "/" + mean + "/" + (s.max() / 10.0));
+        });
         return result.toString();
     }
 
     static class Tracker {
-        private final int[] minMaxCount = new int[HASH_NO_CLASH_MODULUS * 3];
-        private final long[] sums = new long[HASH_NO_CLASH_MODULUS];
-        private final String[] names = new String[HASH_NO_CLASH_MODULUS];
+        private int overflow = INITIAL_OVERFLOW;
+        private int overflowSize;
+        private int size;
+        private int[] minMaxCount = new int[(HASH_NO_CLASH_MODULUS + overflow) * 3];
+        private long[] sums = new long[HASH_NO_CLASH_MODULUS + overflow];
+        private String[] names = new String[HASH_NO_CLASH_MODULUS + overflow];
+        private long[][] keys = new long[HASH_NO_CLASH_MODULUS + overflow][]; // the names as words, for verifying a slot
+        private int[] hashes = new int[HASH_NO_CLASH_MODULUS + overflow]; // for moving the overflow region
+        // length and first 16 bytes of the direct slots' names, flat so the common check is two words
+        private final int[] lengths = new int[HASH_NO_CLASH_MODULUS];
+        private final long[] prefixes = new long[HASH_NO_CLASH_MODULUS * 2];
+        private final TableStats stats = new TableStats();
 
-        private void processSegment(MemorySegment memory) {
+        void processSegment(MemorySegment memory) {
             int position = 0;
             long limit = memory.byteSize();
             while (position < limit) {
@@ -154,38 +160,51 @@ public class CalculateAverage_ddimtirov {
                     nameLength++;
                 }
 
-                int temperature = 0, sign = 1;
-                outer: while ((b = memory.get(ValueLayout.JAVA_BYTE, pos++)) != '\n') {
-                    switch (b) {
-                        case '\r':
-                            pos++;
-                            break outer;
-                        case '.':
-                            break;
-                        case '-':
-                            sign = -1;
-                            break;
-                        default:
-                            var digit = b - '0';
-                            assert digit >= 0 && digit <= 9;
-                            temperature = 10 * temperature + digit;
+                int temperature;
+                if (pos + Long.BYTES <= limit) {
+                    // -?d?d.d read as one word: of the second to fourth byte, only the '.' has bit 4 clear,
+                    // and its position lines the digits up for a single multiplication
+                    long word = memory.get(LONG_LE, pos);
+                    int dot = Long.numberOfTrailingZeros(~word & 0x10101000L);
+                    long signed = (~word << 59) >> 63;
+                    long digits = ((word & ~(signed & 0xFF)) << (28 - dot)) & 0x0F000F0F00L;
+                    long absolute = ((digits * 0x640a0001L) >>> 32) & 0x3FF;
+                    temperature = (int) ((absolute ^ signed) - signed);
+                    pos += (dot >>> 3) + 2; // the line end
+                    if (memory.get(ValueLayout.JAVA_BYTE, pos) == '\r')
+                        pos++;
+                    pos++;
+                }
+                else {
+                    // the last line of the file, which may lack its newline
+                    int sign = 1;
+                    temperature = 0;
+                    outer: while (pos < limit && (b = memory.get(ValueLayout.JAVA_BYTE, pos++)) != '\n') {
+                        switch (b) {
+                            case '\r':
+                                pos++;
+                                break outer;
+                            case '.':
+                                break;
+                            case '-':
+                                sign = -1;
+                                break;
+                            default:
+                                var digit = b - '0';
+                                assert digit >= 0 && digit <= 9;
+                                temperature = 10 * temperature + digit;
+                        }
                     }
+                    temperature *= sign;
                 }
 
-                processLine(nameHash, memory, position, nameLength, temperature * sign);
+                processLine(nameHash, memory, position, nameLength, temperature);
                 position = pos;
             }
         }
 
         public void processLine(int nameHash, MemorySegment buffer, int nameOffset, int nameLength, int temperature) {
-            var i = Math.abs(nameHash) % HASH_NO_CLASH_MODULUS;
-
-            if (names[i] == null) {
-                names[i] = parseName(buffer, nameOffset, nameLength);
-            }
-            else {
-                assert parseName(buffer, nameOffset, nameLength).equals(names[i]) : parseName(buffer, nameOffset, nameLength) + "!=" + names[i];
-            }
+            var i = slot(nameHash, buffer, nameOffset, nameLength);
 
             sums[i] += temperature;
 
@@ -200,9 +219,110 @@ public class CalculateAverage_ddimtirov {
             minMaxCount[mmcIndex + OFFSET_COUNT]++;
         }
 
-        private String parseName(MemorySegment memory, int nameOffset, int nameLength) {
-            byte[] array = memory.asSlice(nameOffset, nameLength).toArray(ValueLayout.JAVA_BYTE);
-            return new String(array, StandardCharsets.UTF_8);
+        private int slot(int nameHash, MemorySegment buffer, int nameOffset, int nameLength) {
+            var i = Math.abs(nameHash) % HASH_NO_CLASH_MODULUS;
+            if (lengths[i] == nameLength && nameLength <= 16 && nameOffset + 16 <= buffer.byteSize()) {
+                long first = -1L >>> (Math.max(0, 8 - nameLength) << 3);
+                long second = nameLength <= 8 ? 0 : -1L >>> ((16 - nameLength) << 3);
+                long diff = ((buffer.get(LONG_LE, nameOffset) ^ prefixes[i * 2]) & first)
+                        | ((buffer.get(LONG_LE, nameOffset + 8) ^ prefixes[i * 2 + 1]) & second);
+                if (diff == 0) {
+                    stats.record(0);
+                    return i;
+                }
+            }
+            var key = keys[i];
+            if (key != null && StationDictionary.matches(key, buffer, nameOffset, nameLength)) {
+                stats.record(0);
+                return i;
+            }
+            return slotSlow(i, nameHash, buffer, nameOffset, nameLength);
+        }
+
+        /** A new station, or one whose slot is taken by another */
+        private int slotSlow(int i, int nameHash, MemorySegment buffer, int nameOffset, int nameLength) {
+            if (keys[i] == null) {
+                stats.record(0);
+                claim(i, nameHash, buffer, nameOffset, nameLength);
+                return i;
+            }
+            i = overflowSlot(nameHash);
+            var probes = 1; // the direct slot was the first one
+            for (var key = keys[i]; key != null; key = keys[i], probes++) {
+                if (StationDictionary.matches(key, buffer, nameOffset, nameLength)) {
+                    stats.record(probes);
+                    return i;
+                }
+                i = i + 1 == names.length ? HASH_NO_CLASH_MODULUS : i + 1;
+            }
+            stats.record(probes);
+            if (++overflowSize > overflow / 2) {
+                growOverflow();
+                i = overflowSlot(nameHash);
+                while (keys[i] != null)
+                    i = i + 1 == names.length ? HASH_NO_CLASH_MODULUS : i + 1;
+            }
+            claim(i, nameHash, buffer, nameOffset, nameLength);
+            return i;
+        }
+
+        /** Only the overflow region is probed, so its runs are the ones that count */
+        TableStats.Report stats() {
+            return stats.report("columnar", StationHash.POLYNOMIAL_31, size, names.length,
+                    TableStats.longestRun(overflow, i -> keys[HASH_NO_CLASH_MODULUS + i] != null));
+        }
+
+        private int overflowSlot(int nameHash) {
+            return HASH_NO_CLASH_MODULUS + (nameHash & (overflow - 1));
+        }
+
+        /** Doubles the overflow region, the direct slots stay where they are */
+        private void growOverflow() {
+            var oldMinMaxCount = minMaxCount;
+            var oldSums = sums;
+            var oldNames = names;
+            var oldKeys = keys;
+            var oldHashes = hashes;
+            overflow *= 2;
+            int slots = HASH_NO_CLASH_MODULUS + overflow;
+            minMaxCount = new int[slots * 3];
+            sums = new long[slots];
+            names = new String[slots];
+            keys = new long[slots][];
+            hashes = new int[slots];
+            System.arraycopy(oldMinMaxCount, 0, minMaxCount, 0, HASH_NO_CLASH_MODULUS * 3);
+            System.arraycopy(oldSums, 0, sums, 0, HASH_NO_CLASH_MODULUS);
+            System.arraycopy(oldNames, 0, names, 0, HASH_NO_CLASH_MODULUS);
+            System.arraycopy(oldKeys, 0, keys, 0, HASH_NO_CLASH_MODULUS);
+            System.arraycopy(oldHashes, 0, hashes, 0, HASH_NO_CLASH_MODULUS);
+            for (int old = HASH_NO_CLASH_MODULUS; old < oldNames.length; old++) {
+                if (oldKeys[old] != null) {
+                    int i = overflowSlot(oldHashes[old]);
+                    while (keys[i] != null)
+                        i = i + 1 == slots ? HASH_NO_CLASH_MODULUS : i + 1;
+                    System.arraycopy(oldMinMaxCount, old * 3, minMaxCount, i * 3, 3);
+                    sums[i] = oldSums[old];
+                    names[i] = oldNames[old];
+                    keys[i] = oldKeys[old];
+                    hashes[i] = oldHashes[old];
+                }
+            }
+            FlightEvents.tableResized("ddimtirov", "Tracker", oldNames.length, slots, size);
+        }
+
+        private void claim(int i, int nameHash, MemorySegment buffer, int nameOffset, int nameLength) {
+            size++;
+            hashes[i] = nameHash;
+            keys[i] = StationDictionary.key(buffer, nameOffset, nameLength);
+            if (i < HASH_NO_CLASH_MODULUS) {
+                lengths[i] = nameLength;
+                prefixes[i * 2] = keys[i][1];
+                prefixes[i * 2 + 1] = keys[i][2];
+            }
+            byte[] array = buffer.asSlice(nameOffset, nameLength).toArray(ValueLayout.JAVA_BYTE);
+            names[i] = new String(array, StandardCharsets.UTF_8);
+            minMaxCount[i * 3 + OFFSET_MIN] = Integer.MAX_VALUE;
+            minMaxCount[i * 3 + OFFSET_MAX] = Integer.MIN_VALUE;
         }
     }
 }
@@ -16,18 +16,22 @@
 package dev.morling.onebrc;
 
 import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.function.Consumer;
 
 public class CalculateAverage_ebarlas {
 
     private static final int HASH_FACTOR = 278;
     private static final int HASH_MOD = 3_487;
+    private static final int INITIAL_OVERFLOW = 1 << 10; // stations whose direct slot is taken by another one, probed linearly
 
     public static void main(String[] args) throws IOException, InterruptedException {
         if (args.length != 2) {
@@ -35,8 +39,9 @@ public class CalculateAverage_ebarlas {
             System.exit(1);
         }
         var path = Paths.get(args[0]);
-        var numPartitions = Integer.parseInt(args[1]);
         var channel = FileChannel.open(path, StandardOpenOption.READ);
+        // a line may only span two partitions, so no partition is shorter than the longest line
+        var numPartitions = (int) Math.min(Integer.parseInt(args[1]), Math.max(1, channel.size() / 128));
         var partitionSize = channel.size() / numPartitions;
         var partitions = new Partition[numPartitions];
         var threads = new Thread[numPartitions];
@@ -51,7 +56,8 @@ public class CalculateAverage_ebarlas {
                 try {
                     var buffer = channel.map(FileChannel.MapMode.READ_ONLY, pStart, pSize);
                     partitions[pIdx] = processBuffer(buffer, pIdx == 0);
-                } catch (IOException e) {
+                }
+                catch (IOException e) {
                     throw new RuntimeException(e);
                 }
             };
@@ -63,18 +69,14 @@ public class CalculateAverage_ebarlas {
         }
         var partitionList = List.of(partitions);
         foldFootersAndHeaders(partitionList);
+        TableStats.print("ebarlas", partitionList.stream().map(partition -> partition.stats().report()));
         printResults(foldStats(partitionList));
     }
 
-    private static void printResults(Stats[] stats) { // adheres to Gunnar's reference code
-        var result = new TreeMap<String, String>();
-        for (var st : stats) {
-            if (st != null) {
-                var key = new String(st.key, StandardCharsets.UTF_8);
-                result.put(key, format(st));
-            }
-        }
-        System.out.println(result);
+    private static void printResults(Table stats) { // adheres to Gunnar's reference code
+        var result = new SortedResults<String>(stats.size());
+        stats.forEach(st -> result.add(new String(st.key, StandardCharsets.UTF_8), format(st)));
+        System.out.println(result.toTreeMap());
     }
 
     private static String format(Stats st) { // adheres to expected output format
@@ -85,27 +87,100 @@ public class CalculateAverage_ebarlas {
         return Math.round(value * 10.0) / 10.0;
     }
 
-    private static Stats[] foldStats(List<Partition> partitions) { // fold stats from all partitions into first partition
+    static Table foldStats(List<Partition> partitions) { // fold stats from all partitions into first partition
         var target = partitions.getFirst().stats;
         for (int i = 1; i < partitions.size(); i++) {
             var current = partitions.get(i).stats;
-            for (int j = 0; j < current.length; j++) {
-                if (current[j] != null) {
-                    var t = target[j];
-                    if (t == null) {
-                        target[j] = current[j]; // copy ref from current to target
-                    } else {
-                        t.min = Math.min(t.min, current[j].min);
-                        t.max = Math.max(t.max, current[j].max);
-                        t.sum += current[j].sum;
-                        t.count += current[j].count;
+            for (int j = 0; j < current.direct.length; j++) {
+                if (current.direct[j] != null) {
+                    var c = current.direct[j];
+                    var t = target.direct[j];
+                    if (t == null || !Arrays.equals(t.key, c.key)) {
+                        // a collision put the station into another slot in one of the partitions
+                        t = lookup(target, hash(c.key), MemorySegment.ofArray(c.key), 0, c.key.length);
                     }
+                    fold(t, c);
+                }
+            }
+            for (var c : current.overflow) {
+                if (c != null) {
+                    fold(lookup(target, hash(c.key), MemorySegment.ofArray(c.key), 0, c.key.length), c);
                 }
             }
         }
         return target;
     }
 
+    private static void fold(Stats t, Stats c) {
+        t.min = Math.min(t.min, c.min);
+        t.max = Math.max(t.max, c.max);
+        t.sum += c.sum;
+        t.count += c.count;
+    }
+
+    private static int hash(byte[] key) {
+        var keyHash = 0;
+        for (byte b : key) {
+            keyHash = HASH_FACTOR * keyHash + b;
+        }
+        return keyHash;
+    }
+
+    /**
+     * Stats of the key {@code data[keyStart, keyStart + keyLength)}. The slot picked by the hash
+     * is taken as is if it holds this key; if it holds another one, the two collide and the key
+     * goes to the overflow table instead, so distinct stations are never merged.
+     */
+    static Stats lookup(Table stats, int keyHash, MemorySegment data, long keyStart, int keyLength) {
+        var idx = HASH_MOD + keyHash % HASH_MOD;
+        var st = stats.direct[idx];
+        if (st == null) {
+            stats.tableStats.record(0);
+            return stats.direct[idx] = new Stats(data, keyStart, keyLength);
+        }
+        if (st.keyEquals(data, keyStart, keyLength)) {
+            stats.tableStats.record(0);
+            return st;
+        }
+        return lookupOverflow(stats, keyHash, data, keyStart, keyLength);
+    }
+
+    private static Stats lookupOverflow(Table stats, int keyHash, MemorySegment data, long keyStart, int keyLength) {
+        var overflow = stats.overflow;
+        var idx = keyHash & (overflow.length - 1);
+        for (int probes = 1;; probes++) { // the direct slot was the first one
+            var st = overflow[idx];
+            if (st == null) {
+                stats.tableStats.record(probes);
+                st = overflow[idx] = new Stats(data, keyStart, keyLength);
+                if (++stats.overflowSize > overflow.length / 2) {
+                    growOverflow(stats);
+                }
+                return st;
+            }
+            if (st.keyEquals(data, keyStart, keyLength)) {
+                stats.tableStats.record(probes);
+                return st;
+            }
+            idx = (idx + 1) & (overflow.length - 1);
+        }
+    }
+
+    private static void growOverflow(Table stats) { // double the overflow, placing every key by its hash again
+        var old = stats.overflow;
+        var overflow = new Stats[old.length * 2];
+        for (var st : old) {
+            if (st != null) {
+                var idx = hash(st.key) & (overflow.length - 1);
+                while (overflow[idx] != null) {
+                    idx = (idx + 1) & (overflow.length - 1);
+                }
+                overflow[idx] = st;
+            }
+        }
+        stats.overflow = overflow;
+    }
+
     private static void foldFootersAndHeaders(List<Partition> partitions) { // fold footers and headers into prev partition
         for (int i = 1; i < partitions.size(); i++) {
             var pNext = partitions.get(i);
@@ -130,34 +205,41 @@ public class CalculateAverage_ebarlas {
         return merged;
     }
 
-    private static Partition processBuffer(ByteBuffer buffer, boolean first) {
-        return doProcessBuffer(buffer, first, new Stats[HASH_MOD * 2]);
+    static Partition processBuffer(ByteBuffer buffer, boolean first) {
+        return doProcessBuffer(buffer, first, new Table());
     }
 
-    private static Partition doProcessBuffer(ByteBuffer buffer, boolean first, Stats[] stats) {
+    private static Partition doProcessBuffer(ByteBuffer buffer, boolean first, Table stats) {
         var readingKey = true;
         var keyHash = 0;
-        var keyStart = 0;
         var negative = false;
         var val = 0;
+        var data = MemorySegment.ofBuffer(buffer.duplicate().position(0)); // for comparing keys in place
         var header = first ? null : readHeader(buffer);
+        // the first key starts after the header, unless the header has no newline: then the partition is
+        // in the middle of a line, which continues in the footer as well
+        var keyStart = header != null && header.length > 0 && header[header.length - 1] != '\n' ? 0 : buffer.position();
+        var direct = stats.direct;
         Stats st = null;
         while (buffer.hasRemaining()) {
             var b = buffer.get();
             if (readingKey) {
                 if (b == ';') {
-                    var idx = HASH_MOD + keyHash % HASH_MOD;
-                    st = stats[idx];
-                    if (st == null) {
-                        var key = new byte[buffer.position() - keyStart - 1];
-                        buffer.get(keyStart, key, 0, key.length);
-                        st = stats[idx] = new Stats(key);
+                    var keyLength = buffer.position() - keyStart - 1;
+                    st = direct[HASH_MOD + keyHash % HASH_MOD];
+                    if (st == null || !st.keyEquals(data, keyStart, keyLength)) {
+                        st = lookup(stats, keyHash, data, keyStart, keyLength);
+                    }
+                    else {
+                        stats.tableStats.record(0);
                     }
                     readingKey = false;
-                } else {
+                }
+                else {
                     keyHash = HASH_FACTOR * keyHash + b;
                 }
-            } else {
+            }
+            else {
                 if (b == '\n') {
                     var v = negative ? -val : val;
                     st.min = Math.min(st.min, v);
@@ -169,9 +251,11 @@ public class CalculateAverage_ebarlas {
                     val = 0;
                     negative = false;
                     keyStart = buffer.position();
-                } else if (b == '-') {
+                }
+                else if (b == '-') {
                     negative = true;
-                } else if (b != '.') { // skip '.' since fractional tenth unit after decimal point is assumed
+                }
+                else if (b != '.') { // skip '.' since fractional tenth unit after decimal point is assumed
                     val = val * 10 + (b - '0');
                 }
             }
@@ -187,23 +271,70 @@ public class CalculateAverage_ebarlas {
     }
 
     private static byte[] readHeader(ByteBuffer buffer) { // read up to and including first newline (or end-of-input)
-        while (buffer.hasRemaining() && buffer.get() != '\n') ;
+        while (buffer.hasRemaining() && buffer.get() != '\n')
+            ;
         var header = new byte[buffer.position()];
         buffer.get(0, header, 0, header.length);
         return header;
     }
 
-    record Partition(byte[] header, byte[] footer, Stats[] stats) {}
+    record Partition(byte[] header, byte[] footer, Table stats) {
+    }
+
+    /**
+     * The stats array indexed by the hash modulo a prime, plus an overflow table for the stations
+     * whose slot is taken by another one. The overflow doubles whenever it is half full, so it
+     * takes millions of distinct stations, while those of the challenge stay in the direct slots.
+     */
+    static final class Table {
+        final Stats[] direct = new Stats[HASH_MOD * 2];
+        Stats[] overflow = new Stats[INITIAL_OVERFLOW];
+        int overflowSize;
+        final TableStats tableStats = new TableStats();
+
+        int size() {
+            var size = overflowSize;
+            for (var st : direct) {
+                size += st == null ? 0 : 1;
+            }
+            return size;
+        }
+
+        /** Only the overflow is probed, so its runs are the ones that count */
+        TableStats.Report report() {
+            return tableStats.report("direct indexed", StationHash.POLYNOMIAL_278, size(), direct.length + overflow.length,
+                    TableStats.longestRun(overflow.length, i -> overflow[i] != null));
+        }
+
+        void forEach(Consumer<Stats> consumer) {
+            for (var st : direct) {
+                if (st != null) {
+                    consumer.accept(st);
+                }
+            }
+            for (var st : overflow) {
+                if (st != null) {
+                    consumer.accept(st);
+                }
+            }
+        }
+    }
 
-    private static class Stats { // min, max, and sum values are modeled with integral types that represent tenths of a unit
+    static class Stats { // min, max, and sum values are modeled with integral types that represent tenths of a unit
         final byte[] key;
+        final long[] words; // for verifying a slot, see StationDictionary.matches
         int min = Integer.MAX_VALUE;
         int max = Integer.MIN_VALUE;
         long sum;
         long count;
 
-        Stats(byte[] key) {
-            this.key = key;
+        Stats(MemorySegment data, long keyStart, int keyLength) {
+            this.key = data.asSlice(keyStart, keyLength).toArray(ValueLayout.JAVA_BYTE);
+            this.words = StationDictionary.key(data, keyStart, keyLength);
+        }
+
+        boolean keyEquals(MemorySegment data, long keyStart, int keyLength) {
+            return StationDictionary.matches(words, data, keyStart, keyLength);
         }
     }
 }
@@ -20,200 +20,585 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
 import java.lang.foreign.ValueLayout.OfByte;
-import java.lang.foreign.ValueLayout.OfChar;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.TreeMap;
-import java.util.function.Consumer;
-import java.util.function.Supplier;
-import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import dev.morling.onebrc.AggregationEngine.Chunk;
 
 public class CalculateAverage_jotschi {
     private static final String FILE = "./measurements.txt";
 
-  public static void main(String[] args) throws IOException {
-    var filename = args.length == 0 ? FILE : args[0];
-    parseFile(filename);
-  }
-
-  @SuppressWarnings("preview")
-  private static void parseFile(String filename) throws IOException {
-    var file = new File(filename);
-    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
-    FileChannel fileChannel = randomAccessFile.getChannel();
-    MemorySegment memSeg = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size(), Arena.global());
-    var results = getFileSegments(memSeg).stream().map(segment -> {
-      var resultMap = new ByteArrayToResultMap2();
-      long segmentEnd = segment.end();
-      MemorySegment slice = memSeg.asSlice(segment.start(), segmentEnd - segment.start());
-      var buffer = new byte[64];
-      int startLine;
-      long limit = slice.byteSize();
-      int pos = 0;
-      while ((startLine = pos) < limit) {
-        int currentPosition = startLine;
-        byte b;
-        int offset = 0;
-        while (currentPosition != segmentEnd && (b = slice.get(OfByte.JAVA_BYTE, currentPosition++)) != ';') {
-          buffer[offset++] = b;
-        }
-        int temp = 0;
-        int negative = 1;
-        outer: while (currentPosition != segmentEnd && (b = slice.get(OfByte.JAVA_BYTE, currentPosition++)) != '\n') {
-          switch (b) {
-          case '-':
-            negative = -1;
-          case '.':
-            break;
-          case '\r':
-            currentPosition++;
-            break outer;
-          default:
-            temp = 10 * temp + (b - '0');
-          }
-        }
-        temp *= negative;
-        double finalTemp = temp / 10.0;
-        resultMap.putOrMerge(buffer, 0, offset,
-          () -> new Result2(finalTemp),
-          measurement -> merge(measurement, finalTemp, finalTemp, finalTemp, 1));
-        pos = currentPosition;
-      }
-      return resultMap;
-    }).parallel()
-      .flatMap(partition -> partition.getAll().stream())
-      .collect(Collectors.toMap(e -> new String(e.key()), Entry2::value, CalculateAverage_jotschi::merge, TreeMap::new));
-    System.out.println(results);
-  }
-
-  private static List<FileSegment2> getFileSegments(MemorySegment memSeg) throws IOException {
-    int numberOfSegments = Runtime.getRuntime().availableProcessors();
-    long fileSize = memSeg.byteSize();
-    long segmentSize = fileSize / numberOfSegments;
-    List<FileSegment2> segments = new ArrayList<>();
-
-    // Split the file up into even segments that match up with the CPU core count
-    // so that each core can process a segment of the file.
-    // The findSegment call ensures that the segment terminates with a newline.
-    for (int i = 0; i < numberOfSegments; i++) {
-      long segStart = i * segmentSize;
-      long segEnd = (i == numberOfSegments - 1) ? fileSize : segStart + segmentSize;
-      segStart = findSegment(i, 0, memSeg, segStart, segEnd);
-      segEnd = findSegment(i, numberOfSegments - 1, memSeg, segEnd, fileSize);
-      // System.out.println(segStart + " " + segEnd);
-      segments.add(new FileSegment2(segStart, segEnd));
-    }
-    return segments;
-  }
-
-  private static Result2 merge(Result2 v, Result2 value) {
-    return merge(v, value.min, value.max, value.sum, value.count);
-  }
-
-  private static Result2 merge(Result2 v, double value, double value1, double value2, long value3) {
-    v.min = Math.min(v.min, value);
-    v.max = Math.max(v.max, value1);
-    v.sum += value2;
-    v.count += value3;
-    return v;
-  }
-
-  private static long findSegment(int i, int skipSegment, MemorySegment memSeg, long location, long fileSize) throws IOException {
-    if (i != skipSegment) {
-      long remaining = fileSize - location;
-      int bufferSize = remaining < 64 ? (int) remaining : 64;
-      MemorySegment slice = memSeg.asSlice(location, bufferSize);
-      for (int offset = 0; offset < slice.byteSize(); offset++) {
-        if (slice.get(OfChar.JAVA_BYTE, offset) == '\n') {
-          return location + offset + 1;
-        }
-      }
-    }
-    return location;
-  }
-}
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<Path> files = InputFiles.resolve(args, FILE);
+        if (files.size() > 1) {
+            if (Boolean.getBoolean("onebrc.tail") || snapshot() != null) {
+                throw new IllegalArgumentException("Tail mode and snapshots work on a single file only");
+            }
+            parseFiles(files);
+        }
+        else if (Boolean.getBoolean("onebrc.tail")) {
+            tailFile(files.get(0).toString());
+        }
+        else {
+            parseFile(files.get(0).toString());
+        }
+    }
+
+    /** Several files or globs, aggregated in one go into a single result */
+    private static void parseFiles(List<Path> files) throws IOException {
+        List<MemorySegment> mapped = new ArrayList<>();
+        for (Path file : files) {
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), Arena.global()));
+            }
+        }
+        print(aggregate(mapped, scanner()));
+    }
+
+    @SuppressWarnings("preview")
+    private static void parseFile(String filename) throws IOException {
+        if (snapshot() != null) { // only process what was appended since the snapshot was taken
+            var tail = new TailAggregator2(Path.of(filename), scanner(), snapshot());
+            tail.poll();
+            tail.foldRemainder();
+            print(tail.results());
+            return;
+        }
+        var file = new File(filename);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        FileChannel fileChannel = randomAccessFile.getChannel();
+        MemorySegment memSeg = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size(), Arena.global());
+        print(aggregate(memSeg, scanner()));
+    }
+
+    /**
+     * Tail mode for a file that keeps being appended to, -Donebrc.tail=true. Every
+     * -Donebrc.tail.interval milliseconds (default 1000) only the lines appended since the last
+     * round are mapped and folded into the running aggregates, then the updated result is printed.
+     */
+    private static void tailFile(String filename) throws IOException, InterruptedException {
+        long interval = Long.getLong("onebrc.tail.interval", 1000);
+        var tail = new TailAggregator2(Path.of(filename), scanner(), snapshot());
+        while (true) {
+            if (tail.poll()) {
+                print(tail.results());
+            }
+            Thread.sleep(interval);
+        }
+    }
+
+    private static void print(TreeMap<String, StationStats> results) {
+        var print = FlightEvents.phase("jotschi", FlightEvents.PhaseEvent.PRINT);
+        System.out.println(results);
+        FlightEvents.endPhase(print, results.size());
+    }
 
-class Result2 {
-  double min, max, sum;
-  long count;
+    /** Aggregate snapshot to resume from and to update, -Donebrc.snapshot=measurements.snapshot */
+    private static Path snapshot() {
+        String snapshot = System.getProperty("onebrc.snapshot");
+        return snapshot == null ? null : Path.of(snapshot);
+    }
 
-  Result2(double value) {
-    min = max = sum = value;
-    this.count = 1;
-  }
+    private static DelimiterScanner scanner() {
+        return System.getProperty("onebrc.scanner") == null ? null : DelimiterScanner.preferred();
+    }
+
+    /** Aggregates all lines of {@code memSeg}, which has to end with a complete line */
+    static TreeMap<String, StationStats> aggregate(MemorySegment memSeg, DelimiterScanner scanner) {
+        return aggregate(List.of(memSeg), scanner);
+    }
 
-  @Override
-  public String toString() {
-    return round(min) + "/" + round(sum / count) + "/" + round(max);
-  }
+    /**
+     * Aggregates all lines of several files, each of which has to end with a complete line. With
+     * -Donebrc.dictionary=true the threads share a {@link StationDictionary} and aggregate into
+     * dense pages indexed by station id, which merge by position instead of by name.
+     */
+    @SuppressWarnings("preview")
+    static TreeMap<String, StationStats> aggregate(List<MemorySegment> files, DelimiterScanner scanner) {
+        // every thread fills its own table from the small chunks it manages to claim, moving on to
+        // the next file once one is exhausted, so no thread idles while another file has work left
+        int workers = Runtime.getRuntime().availableProcessors();
+        List<ChunkScheduler> schedulers = files.stream().map(memSeg -> ChunkScheduler.forSegment(memSeg, workers)).toList();
+        if (Boolean.getBoolean("onebrc.dictionary")) {
+            var dictionary = new StationDictionary();
+            var pages = IntStream.range(0, workers).parallel()
+                    .mapToObj(_ -> processAll(files, schedulers, scanner, new DictionarySink2(dictionary)).pages())
+                    .toList();
+            TableStats.print("jotschi", Stream.of(dictionary.stats()));
+            var merge = FlightEvents.phase("jotschi", FlightEvents.PhaseEvent.MERGE);
+            var merged = pages.stream().reduce(StationDictionary.Pages::mergeFrom).orElseGet(dictionary::pages);
+            FlightEvents.endPhase(merge, dictionary.size());
+            var sort = FlightEvents.phase("jotschi", FlightEvents.PhaseEvent.SORT);
+            var result = merged.toMap();
+            FlightEvents.endPhase(sort, result.size());
+            return result;
+        }
+        var maps = IntStream.range(0, workers).parallel()
+                .mapToObj(_ -> processAll(files, schedulers, scanner, new OffHeapResultMap2()))
+                .toList();
+        TableStats.print("jotschi", maps.stream().map(OffHeapResultMap2::stats));
+        // fold the tables slot by slot into the largest one, so every name becomes a String once
+        var merge = FlightEvents.phase("jotschi", FlightEvents.PhaseEvent.MERGE);
+        var target = maps.stream().max(Comparator.comparingInt(OffHeapResultMap2::size)).orElseThrow();
+        for (var map : maps) {
+            if (map != target) {
+                target.mergeFrom(map);
+            }
+        }
+        FlightEvents.endPhase(merge, target.size());
+        var sort = FlightEvents.phase("jotschi", FlightEvents.PhaseEvent.SORT);
+        var result = new SortedResults<StationStats>(target.size());
+        for (Entry2 entry : target.getAll()) {
+            result.add(new String(entry.key()), entry.value());
+        }
+        maps.forEach(OffHeapResultMap2::close);
+        var sorted = result.toTreeMap();
+        FlightEvents.endPhase(sort, sorted.size());
+        return sorted;
+    }
 
-  double round(double v) {
-    return Math.round(v * 10.0) / 10.0;
-  }
+    private static <T extends ResultSink2> T processAll(List<MemorySegment> files, List<ChunkScheduler> schedulers, DelimiterScanner scanner, T resultMap) {
+        for (int file = 0; file < files.size(); file++) {
+            var memSeg = files.get(file);
+            var worker = schedulers.get(file).worker();
+            Chunk chunk;
+            while ((chunk = worker.next()) != null) {
+                var event = FlightEvents.segment("jotschi");
+                var segment = new FileSegment2(chunk.start(), chunk.end());
+                long rows = scanner == null ? processSegment(memSeg, segment, resultMap) : processSegment(memSeg, segment, scanner, resultMap);
+                FlightEvents.endSegment(event, chunk.start(), chunk.end() - chunk.start(), rows);
+            }
+        }
+        return resultMap;
+    }
 
+    /** Adds every line of {@code segment} to {@code resultMap}, returns the lines it added */
+    static long processSegment(MemorySegment memSeg, FileSegment2 segment, ResultSink2 resultMap) {
+        long segmentEnd = segment.end();
+        long pos = segment.start();
+        long rows = 0;
+        while (pos < segmentEnd) {
+            // find the ';' eight bytes at a time, hashing the very words the table compares against
+            long nameStart = pos;
+            long hash = 0;
+            while (true) {
+                long word = StationDictionary.word(memSeg, pos, Long.BYTES);
+                long match = word ^ SEPARATOR_PATTERN;
+                long mask = (match - 0x0101010101010101L) & ~match & 0x8080808080808080L;
+                if (mask != 0) {
+                    int index = Long.numberOfTrailingZeros(mask) >>> 3;
+                    if (index > 0) {
+                        hash = StationDictionary.mix(hash, word & (-1L >>> ((Long.BYTES - index) * 8)));
+                    }
+                    pos += index;
+                    break;
+                }
+                hash = StationDictionary.mix(hash, word);
+                pos += Long.BYTES;
+            }
+            int nameLength = (int) (pos++ - nameStart);
+            byte b;
+            int temp = 0;
+            int negative = 1;
+            outer: while (pos != segmentEnd && (b = memSeg.get(OfByte.JAVA_BYTE, pos++)) != '\n') {
+                switch (b) {
+                    case '-':
+                        negative = -1;
+                    case '.':
+                        break;
+                    case '\r':
+                        pos++;
+                        break outer;
+                    default:
+                        temp = 10 * temp + (b - '0');
+                }
+            }
+            // the name is not copied, the table compares it in place against the mapped file
+            resultMap.add(memSeg, nameStart, nameLength, StationDictionary.finish(hash), temp * negative);
+            rows++;
+        }
+        return rows;
+    }
+
+    /**
+     * Same loop driven by a {@link DelimiterScanner}, which hands out the ';' and '\n' of 64
+     * bytes per step instead of looking for the ';' word by word.
+     */
+    static long processSegment(MemorySegment memSeg, FileSegment2 segment, DelimiterScanner scanner, ResultSink2 resultMap) {
+        var delimiters = scanner.cursor(memSeg, segment.start(), segment.end());
+        long pos = segment.start();
+        long rows = 0;
+        while (pos < segment.end()) {
+            long separator = delimiters.next();
+            long newLine = delimiters.next();
+            int temp = 0;
+            int negative = 1;
+            for (long i = separator + 1; i < newLine; i++) {
+                byte b = memSeg.get(OfByte.JAVA_BYTE, i);
+                switch (b) {
+                    case '-':
+                        negative = -1;
+                    case '.':
+                    case '\r':
+                        break;
+                    default:
+                        temp = 10 * temp + (b - '0');
+                }
+            }
+            resultMap.add(memSeg, pos, (int) (separator - pos), temp * negative);
+            rows++;
+            pos = newLine + 1;
+        }
+        return rows;
+    }
+
+    private static final long SEPARATOR_PATTERN = 0x3B3B3B3B3B3B3B3BL; // ';' in every byte
+
+    static StationStats merge(StationStats v, StationStats value) {
+        v.merge(value);
+        return v;
+    }
 }
 
-record Pair2(int slot, Result2 slotValue) {
+/**
+ * Running aggregates of an append-only file. Remembers the offset right after the last newline
+ * it has processed; a poll maps just the bytes appended since then, up to their last newline,
+ * so a line that is still being written is picked up by the next poll, and a file that shrank
+ * or was replaced by another one is aggregated from its start again. With a snapshot file the
+ * aggregates survive restarts: they are restored if the snapshot still matches the file and
+ * saved again after every poll that added lines.
+ */
+class TailAggregator2 {
+    private final Path file;
+    private final DelimiterScanner scanner;
+    private final Path snapshot;
+    private TreeMap<String, StationStats> results = new TreeMap<>();
+    private long offset;
+    // CRC32C of the first offset bytes, extended with every poll while there is a snapshot to save
+    private long checksum;
+    // the file system's identity of the file polled last, null before the first poll
+    private Object fileKey;
+
+    TailAggregator2(Path file, DelimiterScanner scanner, Path snapshot) throws IOException {
+        this.file = file;
+        this.scanner = scanner;
+        this.snapshot = snapshot;
+        if (snapshot != null) {
+            restore();
+        }
+    }
+
+    private void restore() throws IOException {
+        var stored = AggregateSnapshot.read(snapshot);
+        if (stored == null) {
+            return;
+        }
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (stored.matches(channel, Files.getLastModifiedTime(file).toMillis())) {
+                offset = stored.coveredBytes();
+                checksum = stored.prefixChecksum();
+                results = stored.stations();
+            }
+        }
+    }
+
+    /** Folds all complete lines appended since the last poll, returns whether there were any */
+    boolean poll() throws IOException {
+        var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long modified = attributes.lastModifiedTime().toMillis();
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ); var arena = Arena.ofShared()) {
+            long size = channel.size();
+            boolean replaced = fileKey != null && !fileKey.equals(attributes.fileKey());
+            fileKey = attributes.fileKey();
+            if (size < offset || replaced) { // truncated, or another file moved in its place: start over
+                offset = 0;
+                checksum = 0;
+                results.clear();
+            }
+            if (size == offset) {
+                return false;
+            }
+            MemorySegment appended = channel.map(FileChannel.MapMode.READ_ONLY, offset, size - offset, arena);
+            long complete = appended.byteSize();
+            while (complete > 0 && appended.get(OfByte.JAVA_BYTE, complete - 1) != '\n') {
+                complete--;
+            }
+            if (complete == 0) {
+                return false;
+            }
+            CalculateAverage_jotschi.aggregate(appended.asSlice(0, complete), scanner)
+                    .forEach((name, stats) -> results.merge(name, stats, CalculateAverage_jotschi::merge));
+            offset += complete;
+            if (snapshot != null) {
+                checksum = AggregateSnapshot.extendChecksum(checksum, appended.asSlice(0, complete));
+                new AggregateSnapshot(offset, modified, checksum, results).write(snapshot);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Folds a last line without trailing newline into the results, for a one-off run. It is
+     * neither counted in the offset nor saved, as the line may still be growing.
+     */
+    void foldRemainder() throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ); var arena = Arena.ofShared()) {
+            long size = channel.size();
+            if (size > offset) {
+                MemorySegment remainder = channel.map(FileChannel.MapMode.READ_ONLY, offset, size - offset, arena);
+                CalculateAverage_jotschi.aggregate(remainder, scanner)
+                        .forEach((name, stats) -> results.merge(name, stats, CalculateAverage_jotschi::merge));
+            }
+        }
+    }
+
+    long offset() {
+        return offset;
+    }
+
+    TreeMap<String, StationStats> results() {
+        return results;
+    }
+
 }
 
-record Entry2(byte[] key, Result2 value) {
+// @formatter:off - the formatter runs at Java 7 level and would indent the records as members
+record Entry2(byte[] key, StationStats value) {
 }
 
 record FileSegment2(long start, long end) {
 }
 
-class ByteArrayToResultMap2 {
-  public static final int MAPSIZE = 1024 * 128;
-  Result2[] slots = new Result2[MAPSIZE];
-  byte[][] keys = new byte[MAPSIZE][];
-
-  private int hashCode(byte[] a, int fromIndex, int length) {
-    int result = 0;
-    int end = fromIndex + length;
-    for (int i = fromIndex; i < end; i++) {
-      result = 31 * result + a[i];
-    }
-    return result;
-  }
-
-  private Pair2 getPair(byte[] key, int offset, int size) {
-    int hash = hashCode(key, offset, size);
-    int slot = hash & (slots.length - 1);
-    var slotValue = slots[slot];
-    // Linear probe for open slot
-    while (slotValue != null && (keys[slot].length != size || !Arrays.equals(keys[slot], 0, size, key, offset, size))) {
-      slot = (slot + 1) & (slots.length - 1);
-      slotValue = slots[slot];
-    }
-    return new Pair2(slot, slotValue);
-  }
-
-  public void putOrMerge(byte[] key, int offset, int size, Supplier<Result2> supplier, Consumer<Result2> merge) {
-    Pair2 result = getPair(key, offset, size);
-    Result2 value = result.slotValue();
-    if (value == null) {
-      int slot = result.slot();
-      slots[slot] = supplier.get();
-      byte[] bytes = new byte[size];
-      System.arraycopy(key, offset, bytes, 0, size);
-      keys[slot] = bytes;
-    } else {
-      merge.accept(value);
-    }
-  }
-
-  // Get all pairs
-  public List<Entry2> getAll() {
-    List<Entry2> result = new ArrayList<>();
-    for (int i = 0; i < slots.length; i++) {
-      Result2 slotValue = slots[i];
-      if (slotValue != null) {
-        result.add(new Entry2(keys[i], slotValue));
-      }
-    }
-    return result;
-  }
-}
\ No newline at end of file
+/** Where the parsing loops put their measurements, either a per-thread table or dictionary pages */
+interface ResultSink2 {
+    void add(MemorySegment data, long nameOffset, int nameLength, int temp);
+
+    /** Adds a measurement whose name hash has been computed while parsing, see {@link StationDictionary#mix(long, long)} */
+    void add(MemorySegment data, long nameOffset, int nameLength, int hash, int temp);
+}
+
+/** Looks up the station id in the shared dictionary and aggregates into this thread's pages */
+class DictionarySink2 implements ResultSink2 {
+    private final StationDictionary dictionary;
+    private final StationDictionary.Pages pages;
+
+    DictionarySink2(StationDictionary dictionary) {
+        this.dictionary = dictionary;
+        this.pages = dictionary.pages();
+    }
+
+    @Override
+    public void add(MemorySegment data, long nameOffset, int nameLength, int temp) {
+        pages.add(dictionary.id(data, nameOffset, nameLength), temp);
+    }
+
+    @Override
+    public void add(MemorySegment data, long nameOffset, int nameLength, int hash, int temp) {
+        pages.add(dictionary.id(data, nameOffset, nameLength, hash), temp);
+    }
+
+    StationDictionary.Pages pages() {
+        return pages;
+    }
+}
+// @formatter:on
+
+/**
+ * Open addressing table that lives off-heap. Each slot packs the station's hash and name length
+ * together with min/max/sum/count in tenths, so a probe touches one small contiguous region and
+ * adding a measurement never allocates. The names themselves are appended to a segment of their
+ * own, as zero padded words, and compared eight bytes at a time straight against the mapped
+ * file once length and hash match. Once three quarters full, the slots are copied over into a
+ * segment twice the size, placed by the hash they carry; the names stay where they are.
+ *
+ * <p>Every segment has an arena of its own, which is closed as soon as a segment has been
+ * copied into a larger one; {@link #close()} frees the last ones.
+ */
+class OffHeapResultMap2 implements ResultSink2, AutoCloseable {
+    static final int INITIAL_CAPACITY = 1 << 14; // well above the 10K distinct stations allowed, needs power of two
+    static final int MAX_NAME_LENGTH = 104; // 100 bytes allowed, rounded up to full words
+
+    private static final ValueLayout.OfLong LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final long LENGTH = 0; // int, 0 marks an empty slot
+    private static final long HASH = 4; // int
+    private static final long MIN = 8; // int
+    private static final long MAX = 12; // int
+    private static final long SUM = 16; // long
+    private static final long COUNT = 24; // long
+    private static final long NAME = 32; // long, offset of the name in names
+    static final long SLOT_SIZE = NAME + Long.BYTES;
+
+    private int capacity = INITIAL_CAPACITY;
+    // shared arenas: tables are filled on one thread and drained on another
+    private Arena tableArena = Arena.ofShared();
+    private MemorySegment table = tableArena.allocate(INITIAL_CAPACITY * SLOT_SIZE, Long.BYTES);
+    private Arena namesArena = Arena.ofShared();
+    private MemorySegment names = namesArena.allocate(INITIAL_CAPACITY * 2L * Long.BYTES, Long.BYTES);
+    private long namesSize;
+    private int size;
+    private final TableStats stats = new TableStats();
+
+    int size() {
+        return size;
+    }
+
+    TableStats.Report stats() {
+        return stats.report("off-heap", StationHash.SWAR, size, capacity, this::occupied);
+    }
+
+    private boolean occupied(int index) {
+        return table.get(ValueLayout.JAVA_INT, index * SLOT_SIZE + LENGTH) != 0;
+    }
+
+    @Override
+    public void add(MemorySegment data, long nameOffset, int nameLength, int temp) {
+        add(data, nameOffset, nameLength, StationDictionary.hash(data, nameOffset, nameLength), temp);
+    }
+
+    @Override
+    public void add(MemorySegment data, long nameOffset, int nameLength, int hash, int temp) {
+        long slot = findSlot(data, nameOffset, nameLength, hash);
+        table.set(ValueLayout.JAVA_INT, slot + MIN, Math.min(table.get(ValueLayout.JAVA_INT, slot + MIN), temp));
+        table.set(ValueLayout.JAVA_INT, slot + MAX, Math.max(table.get(ValueLayout.JAVA_INT, slot + MAX), temp));
+        table.set(ValueLayout.JAVA_LONG, slot + SUM, table.get(ValueLayout.JAVA_LONG, slot + SUM) + temp);
+        table.set(ValueLayout.JAVA_LONG, slot + COUNT, table.get(ValueLayout.JAVA_LONG, slot + COUNT) + 1);
+    }
+
+    /** Folds all stations of {@code other} into this table, comparing the names slot against slot */
+    void mergeFrom(OffHeapResultMap2 other) {
+        for (int index = 0; index < other.capacity; index++) {
+            long from = index * SLOT_SIZE;
+            int length = other.table.get(ValueLayout.JAVA_INT, from + LENGTH);
+            if (length != 0) {
+                long name = other.table.get(ValueLayout.JAVA_LONG, from + NAME);
+                long slot = findSlot(other.names, name, length, other.table.get(ValueLayout.JAVA_INT, from + HASH));
+                table.set(ValueLayout.JAVA_INT, slot + MIN, Math.min(table.get(ValueLayout.JAVA_INT, slot + MIN), other.table.get(ValueLayout.JAVA_INT, from + MIN)));
+                table.set(ValueLayout.JAVA_INT, slot + MAX, Math.max(table.get(ValueLayout.JAVA_INT, slot + MAX), other.table.get(ValueLayout.JAVA_INT, from + MAX)));
+                table.set(ValueLayout.JAVA_LONG, slot + SUM, table.get(ValueLayout.JAVA_LONG, slot + SUM) + other.table.get(ValueLayout.JAVA_LONG, from + SUM));
+                table.set(ValueLayout.JAVA_LONG, slot + COUNT, table.get(ValueLayout.JAVA_LONG, slot + COUNT) + other.table.get(ValueLayout.JAVA_LONG, from + COUNT));
+            }
+        }
+    }
+
+    private long findSlot(MemorySegment data, long nameOffset, int nameLength, int hash) {
+        if (nameLength > MAX_NAME_LENGTH || nameLength == 0) {
+            throw new IllegalArgumentException("Station names must have 1 to " + MAX_NAME_LENGTH + " bytes, got " + nameLength);
+        }
+        int index = hash & (capacity - 1);
+        for (int probes = 0;; probes++) {
+            long slot = index * SLOT_SIZE;
+            int length = table.get(ValueLayout.JAVA_INT, slot + LENGTH);
+            if (length == 0) {
+                stats.record(probes);
+                return insert(slot, hash, data, nameOffset, nameLength);
+            }
+            if (length == nameLength && table.get(ValueLayout.JAVA_INT, slot + HASH) == hash && nameEquals(slot, data, nameOffset, nameLength)) {
+                stats.record(probes);
+                return slot;
+            }
+            index = (index + 1) & (capacity - 1);
+        }
+    }
+
+    private long insert(long slot, int hash, MemorySegment data, long nameOffset, int nameLength) {
+        if (++size > capacity / 4 * 3) {
+            grow();
+            slot = freeSlot(hash);
+        }
+        long words = (nameLength + Long.BYTES - 1) / Long.BYTES * Long.BYTES;
+        if (namesSize + words > names.byteSize()) {
+            growNames();
+        }
+        for (int i = 0; i < nameLength; i += Long.BYTES) {
+            names.set(LONG_LE, namesSize + i, StationDictionary.word(data, nameOffset + i, nameLength - i));
+        }
+        table.set(ValueLayout.JAVA_INT, slot + LENGTH, nameLength);
+        table.set(ValueLayout.JAVA_INT, slot + HASH, hash);
+        table.set(ValueLayout.JAVA_INT, slot + MIN, Integer.MAX_VALUE);
+        table.set(ValueLayout.JAVA_INT, slot + MAX, Integer.MIN_VALUE);
+        table.set(ValueLayout.JAVA_LONG, slot + NAME, namesSize);
+        namesSize += words;
+        return slot;
+    }
+
+    private long freeSlot(int hash) {
+        int index = hash & (capacity - 1);
+        while (table.get(ValueLayout.JAVA_INT, index * SLOT_SIZE + LENGTH) != 0) {
+            index = (index + 1) & (capacity - 1);
+        }
+        return index * SLOT_SIZE;
+    }
+
+    private void grow() {
+        var oldArena = tableArena;
+        var old = table;
+        int oldCapacity = capacity;
+        capacity *= 2;
+        tableArena = Arena.ofShared();
+        table = tableArena.allocate(capacity * SLOT_SIZE, Long.BYTES);
+        for (int index = 0; index < oldCapacity; index++) {
+            long from = index * SLOT_SIZE;
+            if (old.get(ValueLayout.JAVA_INT, from + LENGTH) != 0) {
+                MemorySegment.copy(old, from, table, freeSlot(old.get(ValueLayout.JAVA_INT, from + HASH)), SLOT_SIZE);
+            }
+        }
+        oldArena.close();
+        FlightEvents.tableResized("jotschi", "OffHeapResultMap2", oldCapacity, capacity, size);
+    }
+
+    private void growNames() {
+        var oldArena = namesArena;
+        var old = names;
+        namesArena = Arena.ofShared();
+        names = namesArena.allocate(old.byteSize() * 2, Long.BYTES);
+        MemorySegment.copy(old, 0, names, 0, namesSize);
+        oldArena.close();
+    }
+
+    /** Frees the off-heap memory, the table must not be used afterwards */
+    @Override
+    public void close() {
+        tableArena.close();
+        namesArena.close();
+    }
+
+    private boolean nameEquals(long slot, MemorySegment data, long nameOffset, int nameLength) {
+        long name = table.get(ValueLayout.JAVA_LONG, slot + NAME);
+        for (int i = 0; i < nameLength; i += Long.BYTES) {
+            if (names.get(LONG_LE, name + i) != StationDictionary.word(data, nameOffset + i, nameLength - i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Get all pairs
+    public List<Entry2> getAll() {
+        List<Entry2> result = new ArrayList<>(size);
+        for (int index = 0; index < capacity; index++) {
+            long slot = index * SLOT_SIZE;
+            int length = table.get(ValueLayout.JAVA_INT, slot + LENGTH);
+            if (length != 0) {
+                byte[] key = names.asSlice(table.get(ValueLayout.JAVA_LONG, slot + NAME), length).toArray(OfByte.JAVA_BYTE);
+                result.add(new Entry2(key, new StationStats(
+                    table.get(ValueLayout.JAVA_INT, slot + MIN),
+                    table.get(ValueLayout.JAVA_INT, slot + MAX),
+                    table.get(ValueLayout.JAVA_LONG, slot + SUM),
+                    table.get(ValueLayout.JAVA_LONG, slot + COUNT))));
+            }
+        }
+        return result;
+    }
+}
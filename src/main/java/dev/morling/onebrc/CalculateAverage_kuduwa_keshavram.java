@@ -59,19 +59,14 @@ public class CalculateAverage_kuduwa_keshavram {
                             int pivot = line.indexOf(";");
                             String key = line.substring(0, pivot);
                             Measurement measured = new Measurement(Double.parseDouble(line.substring(pivot + 1)));
-                            Measurement existingMeasurement = resultMap.get(key);
-                            if (existingMeasurement != null) {
-                                resultMap.put(key, Measurement.combineWith(existingMeasurement, measured));
-                            }
-                            else {
-                                resultMap.put(key, measured);
-                            }
+                            // atomically, the lines are processed in parallel
+                            resultMap.merge(key, measured, Measurement::combineWith);
                         });
         System.out.print("{");
         System.out.print(
                 resultMap.entrySet().stream()
+                        .sorted(Map.Entry.comparingByKey())
                         .map(Object::toString)
-                        .sorted()
                         .collect(Collectors.joining(", ")));
         System.out.println("}");
         // System.out.println("Took: " + (System.currentTimeMillis() - before));
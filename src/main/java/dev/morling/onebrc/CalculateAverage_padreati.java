@@ -19,6 +19,7 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.foreign.MemorySegment;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -27,13 +28,9 @@ import java.util.TreeMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.StructuredTaskScope;
 
-import jdk.incubator.vector.ByteVector;
-import jdk.incubator.vector.VectorOperators;
-import jdk.incubator.vector.VectorSpecies;
-
 public class CalculateAverage_padreati {
 
-    private static final VectorSpecies<Byte> species = ByteVector.SPECIES_PREFERRED;
+    private static final DelimiterScanner scanner = DelimiterScanner.preferred();
     private static final String FILE = "./measurements.txt";
     private static final int CHUNK_SIZE = 1024 * 1024;
 
@@ -138,42 +135,17 @@ public class CalculateAverage_padreati {
             len = bis.read(buffer, 0, buffer.length);
         }
 
-        List<Integer> nlIndexes = new ArrayList<>();
-        List<Integer> commaIndexes = new ArrayList<>();
-
-        int loopBound = species.loopBound(len);
-        int i = 0;
-
-        for (; i < loopBound; i += species.length()) {
-            ByteVector v = ByteVector.fromArray(species, buffer, i);
-            var mask = v.compare(VectorOperators.EQ, '\n');
-            for (int j = 0; j < species.length(); j++) {
-                if (mask.laneIsSet(j)) {
-                    nlIndexes.add(i + j);
-                }
-            }
-            mask = v.compare(VectorOperators.EQ, ';');
-            for (int j = 0; j < species.length(); j++) {
-                if (mask.laneIsSet(j)) {
-                    commaIndexes.add(i + j);
-                }
-            }
-        }
-        for (; i < len; i++) {
-            if (buffer[i] == '\n') {
-                nlIndexes.add(i);
-            }
-            if (buffer[i] == ';') {
-                commaIndexes.add(i);
-            }
-        }
-
+        var data = MemorySegment.ofArray(buffer);
+        var delimiters = scanner.cursor(data, 0, len);
         int startLine = 0;
-        for (int j = 0; j < nlIndexes.size(); j++) {
-            int endLine = nlIndexes.get(j);
-            int commaIndex = commaIndexes.get(j);
+        while (startLine < len) {
+            int commaIndex = (int) delimiters.next();
+            int endLine = (int) delimiters.next();
+            if (commaIndex == len) {
+                break;
+            }
             String key = new String(buffer, startLine, commaIndex - startLine);
-            double value = Double.parseDouble(new String(buffer, commaIndex + 1, endLine - commaIndex - 1));
+            double value = Tenths.parse(data, commaIndex + 1, endLine) / 10.0;
             map.merge(key, new MeasurementAggregator(value), MeasurementAggregator::merge);
             startLine = endLine + 1;
         }
@@ -17,6 +17,7 @@ package dev.morling.onebrc;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.foreign.MemorySegment;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
@@ -27,7 +28,7 @@ public class CalculateAverage_palmr {
     private static final String FILE = "./measurements.txt";
     public static final int CHUNK_SIZE = 1024 * 1024 * 10; // Trial and error showed ~10MB to be a good size on our machine
     public static final int LITTLE_CHUNK_SIZE = 128; // Enough bytes to cover a station name and measurement value :fingers-crossed:
-    public static final int STATION_NAME_BUFFER_SIZE = 50;
+    public static final int STATION_NAME_BUFFER_SIZE = 100; // Names are at most 100 bytes, as the rules say
     public static final int THREAD_COUNT = Math.min(8, Runtime.getRuntime().availableProcessors());
 
     public static void main(String[] args) throws IOException {
@@ -39,15 +40,19 @@ public class CalculateAverage_palmr {
 
         long threadChunk = fileSize / THREAD_COUNT;
 
+        // -Donebrc.dictionary=true: station ids from a dictionary shared by all threads, the
+        // per-thread aggregates then merge by position instead of by name
+        final StationDictionary dictionary = Boolean.getBoolean("onebrc.dictionary") ? new StationDictionary() : null;
+
         Thread[] threads = new Thread[THREAD_COUNT];
-        ByteArrayKeyedMap[] results = new ByteArrayKeyedMap[THREAD_COUNT];
+        State[] results = new State[THREAD_COUNT];
         for (int i = 0; i < THREAD_COUNT; i++) {
             final int j = i;
             long startPoint = j * threadChunk;
-            long endPoint = startPoint + threadChunk;
+            long endPoint = j == THREAD_COUNT - 1 ? fileSize : startPoint + threadChunk;
             Thread thread = new Thread(() -> {
                 try {
-                    results[j] = readAndParse(channel, startPoint, endPoint, fileSize);
+                    results[j] = readAndParse(channel, startPoint, endPoint, fileSize, dictionary);
                 }
                 catch (Throwable t) {
                     System.err.println("It's broken :(");
@@ -59,8 +64,6 @@ public class CalculateAverage_palmr {
             thread.start();
         }
 
-        final Map<String, MeasurementAggregator> finalAggregator = new TreeMap<>();
-
         for (int i = 0; i < THREAD_COUNT; i++) {
             try {
                 threads[i].join();
@@ -68,55 +71,72 @@ public class CalculateAverage_palmr {
             catch (InterruptedException e) {
                 throw new RuntimeException(e);
             }
+        }
 
-            results[i].getAsUnorderedList().forEach(v -> {
-                String stationName = new String(v.stationNameBytes, StandardCharsets.UTF_8);
-                finalAggregator.compute(stationName, (_, x) -> {
-                    if (x == null) {
-                        return v;
-                    }
-                    else {
-                        x.count += v.count;
-                        x.min = Math.min(x.min, v.min);
-                        x.max = Math.max(x.max, v.max);
-                        x.sum += v.sum;
-                        return x;
-                    }
-                });
-            });
+        if (dictionary != null) {
+            for (int i = 1; i < THREAD_COUNT; i++) {
+                results[0].pages.mergeFrom(results[i].pages);
+            }
+            System.out.println(results[0].pages.toMap());
+            return;
+        }
+
+        // Fold everything into the biggest map by name bytes first, so each station name is only turned into a String once
+        ByteArrayKeyedMap target = results[0].aggregators;
+        for (int i = 1; i < THREAD_COUNT; i++) {
+            if (results[i].aggregators.size() > target.size()) {
+                target = results[i].aggregators;
+            }
+        }
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            if (results[i].aggregators != target) {
+                for (MeasurementAggregator v : results[i].aggregators.getAsUnorderedList()) {
+                    target.computeIfAbsent(v.stationNameBytes, v.stationNameBytes.length, v.stationNameHashCode).merge(v);
+                }
+            }
         }
-        System.out.println(finalAggregator);
+        final SortedResults<MeasurementAggregator> finalAggregator = new SortedResults<>(target.size());
+        for (MeasurementAggregator v : target.getAsUnorderedList()) {
+            finalAggregator.add(new String(v.stationNameBytes, StandardCharsets.UTF_8), v);
+        }
+        System.out.println(finalAggregator.toTreeMap());
     }
 
-    private static ByteArrayKeyedMap readAndParse(final FileChannel channel,
-                                                  final long startPoint,
-                                                  final long endPoint,
-                                                  final long fileSize) {
-        final State state = new State();
+    private static State readAndParse(final FileChannel channel,
+                                      final long startPoint,
+                                      final long endPoint,
+                                      final long fileSize,
+                                      final StationDictionary dictionary) {
+        final State state = new State(dictionary);
+        if (startPoint == endPoint) { // a file with fewer bytes than threads
+            return state;
+        }
 
+        // Every thread takes the entries that start after a newline within its range, the first thread also the one at 0
         boolean skipFirstEntry = startPoint != 0;
 
         long offset = startPoint;
         while (offset < endPoint) {
-            parseData(channel, state, offset, Math.min(CHUNK_SIZE, fileSize - offset), false, skipFirstEntry);
-            skipFirstEntry = false;
-            offset += CHUNK_SIZE;
+            long size = Math.min(CHUNK_SIZE, endPoint - offset);
+            skipFirstEntry = parseData(channel, state, offset, size, false, skipFirstEntry);
+            offset += size;
         }
 
-        if (offset < fileSize) {
+        if (offset < fileSize && !skipFirstEntry) {
             // Make sure we finish reading any partially read entry by going a little in to the next chunk, stopping at the first newline
             parseData(channel, state, offset, Math.min(LITTLE_CHUNK_SIZE, fileSize - offset), true, false);
         }
 
-        return state.aggregators;
+        return state;
     }
 
-    private static void parseData(final FileChannel channel,
-                                  final State state,
-                                  final long offset,
-                                  final long bufferSize,
-                                  final boolean stopAtNewline,
-                                  final boolean skipFirstEntry) {
+    /** Returns whether it is still skipping to the first clean entry, having seen no newline */
+    private static boolean parseData(final FileChannel channel,
+                                     final State state,
+                                     final long offset,
+                                     final long bufferSize,
+                                     final boolean stopAtNewline,
+                                     final boolean skipFirstEntry) {
         ByteBuffer byteBuffer;
         try {
             byteBuffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, bufferSize);
@@ -142,7 +162,11 @@ public class CalculateAverage_palmr {
                 state.parsingValue = true;
             }
             else if (currentChar == '\n') {
-                if (state.stationPointerEnd != 0) {
+                if (state.stationPointerEnd != 0 && state.dictionary != null) {
+                    int tenths = (int) state.measurementValue * (state.exponent < 0 ? -1 : 1);
+                    state.pages.add(state.dictionary.id(state.stationName, 0, state.stationPointerEnd), tenths);
+                }
+                else if (state.stationPointerEnd != 0) {
                     double value = state.measurementValue * state.exponent;
 
                     MeasurementAggregator aggregator = state.aggregators.computeIfAbsent(state.stationBuffer, state.stationPointerEnd, state.signedHashCode);
@@ -153,7 +177,7 @@ public class CalculateAverage_palmr {
                 }
 
                 if (stopAtNewline) {
-                    return;
+                    return false;
                 }
 
                 // reset
@@ -174,17 +198,26 @@ public class CalculateAverage_palmr {
                 }
             }
         }
+        return isSkippingToFirstCleanEntry;
     }
 
     static final class State {
         ByteArrayKeyedMap aggregators = new ByteArrayKeyedMap();
+        final StationDictionary dictionary;
+        final StationDictionary.Pages pages;
         boolean parsingValue = false;
         byte[] stationBuffer = new byte[STATION_NAME_BUFFER_SIZE];
+        final MemorySegment stationName = MemorySegment.ofArray(stationBuffer);
         int signedHashCode = 0;
         int stationPointerEnd = 0;
         double measurementValue = 0;
         double exponent = 0.1;
 
+        State(StationDictionary dictionary) {
+            this.dictionary = dictionary;
+            this.pages = dictionary == null ? null : dictionary.pages();
+        }
+
         public void reset() {
             parsingValue = false;
             signedHashCode = 0;
@@ -207,6 +240,13 @@ public class CalculateAverage_palmr {
             this.stationNameHashCode = stationNameHashCode;
         }
 
+        void merge(final MeasurementAggregator other) {
+            count += other.count;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            sum += other.sum;
+        }
+
         public String toString() {
             return round(min) + "/" + round(sum / count) + "/" + round(max);
         }
@@ -217,12 +257,13 @@ public class CalculateAverage_palmr {
     }
 
     private static class ByteArrayKeyedMap {
-        private final int BUCKET_COUNT = 0xFFF; // 413 unique stations in the data set, & 0xFFF ~= 399 (only 14 collisions (given our hashcode implementation))
-        private final MeasurementAggregator[] buckets = new MeasurementAggregator[BUCKET_COUNT + 1];
+        private static final int INITIAL_BUCKET_COUNT = 0xFFF; // 413 unique stations in the data set, & 0xFFF ~= 399 (only 14 collisions (given our hashcode implementation))
+        private int bucketMask = INITIAL_BUCKET_COUNT;
+        private MeasurementAggregator[] buckets = new MeasurementAggregator[INITIAL_BUCKET_COUNT + 1];
         private final List<MeasurementAggregator> compactUnorderedBuckets = new ArrayList<>(413);
 
         public MeasurementAggregator computeIfAbsent(final byte[] key, final int keyLength, final int keyHashCode) {
-            int index = keyHashCode & BUCKET_COUNT;
+            int index = keyHashCode & bucketMask;
 
             while (true) {
                 MeasurementAggregator maybe = buckets[index];
@@ -231,18 +272,40 @@ public class CalculateAverage_palmr {
                     MeasurementAggregator measurementAggregator = new MeasurementAggregator(copiedKey, keyHashCode);
                     buckets[index] = measurementAggregator;
                     compactUnorderedBuckets.add(measurementAggregator);
+                    if (compactUnorderedBuckets.size() > bucketMask / 2) {
+                        grow();
+                    }
                     return measurementAggregator;
                 }
                 else {
-                    if (Arrays.equals(key, 0, keyLength, maybe.stationNameBytes, 0, maybe.stationNameBytes.length)) {
+                    // Cheap hash check first, the key is only compared when it's likely to match
+                    if (maybe.stationNameHashCode == keyHashCode
+                            && Arrays.equals(key, 0, keyLength, maybe.stationNameBytes, 0, maybe.stationNameBytes.length)) {
                         return maybe;
                     }
                     index++;
-                    index &= BUCKET_COUNT;
+                    index &= bucketMask;
                 }
             }
         }
 
+        // Half full, so double up and put every aggregator back by its hash code, probing would get too long otherwise
+        private void grow() {
+            bucketMask = bucketMask * 2 + 1;
+            buckets = new MeasurementAggregator[bucketMask + 1];
+            for (MeasurementAggregator aggregator : compactUnorderedBuckets) {
+                int index = aggregator.stationNameHashCode & bucketMask;
+                while (buckets[index] != null) {
+                    index = (index + 1) & bucketMask;
+                }
+                buckets[index] = aggregator;
+            }
+        }
+
+        public int size() {
+            return compactUnorderedBuckets.size();
+        }
+
         public List<MeasurementAggregator> getAsUnorderedList() {
             return compactUnorderedBuckets;
         }
@@ -17,6 +17,7 @@ package dev.morling.onebrc;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.foreign.MemorySegment;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
@@ -32,6 +33,9 @@ import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.function.IntSupplier;
 
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
 public class CalculateAverage_richardstartin {
 
     private static final String FILE = "./measurements.txt";
@@ -67,8 +71,7 @@ public class CalculateAverage_richardstartin {
 
         private final Table table = new Table(nextBaseIndex());
 
-        private static final AtomicIntegerFieldUpdater<Dictionary> BASE_INDEX_UPDATER =
-                AtomicIntegerFieldUpdater.newUpdater(Dictionary.class, "baseIndex");
+        private static final AtomicIntegerFieldUpdater<Dictionary> BASE_INDEX_UPDATER = AtomicIntegerFieldUpdater.newUpdater(Dictionary.class, "baseIndex");
         volatile int baseIndex;
 
         private void forEach(Table table, IndexedStringConsumer consumer) {
@@ -93,20 +96,22 @@ public class CalculateAverage_richardstartin {
         public int encode(long hash, ByteBuffer slice) {
             Table table = this.table;
             while (true) {
-                int rowIndex = (int)(Math.abs(hash) % ROWS);
+                int rowIndex = (int) (Math.abs(hash) % ROWS);
                 Row row = table.rows[rowIndex];
                 for (int c = 0; c < CELLS; c++) {
                     ByteBuffer storedKey = row.keys.get(c);
                     if (storedKey == null) {
                         if (row.keys.compareAndSet(c, null, slice)) {
                             return table.index(rowIndex, c);
-                        } else {
+                        }
+                        else {
                             storedKey = row.keys.get(c);
                             if (slice.equals(storedKey)) {
                                 return table.index(rowIndex, c);
                             }
                         }
-                    } else if (slice.equals(storedKey)) {
+                    }
+                    else if (slice.equals(storedKey)) {
                         return table.index(rowIndex, c);
                     }
                 }
@@ -121,8 +126,7 @@ public class CalculateAverage_richardstartin {
 
         private static final class Row {
 
-            private static final AtomicReferenceFieldUpdater<Row, Table>
-                    NEXT_TABLE_UPDATER = AtomicReferenceFieldUpdater.newUpdater(Row.class, Table.class, "next");
+            private static final AtomicReferenceFieldUpdater<Row, Table> NEXT_TABLE_UPDATER = AtomicReferenceFieldUpdater.newUpdater(Row.class, Table.class, "next");
             private final AtomicReferenceArray<ByteBuffer> keys = new AtomicReferenceArray<>(CELLS);
             volatile Table next;
 
@@ -132,7 +136,11 @@ public class CalculateAverage_richardstartin {
                     Table newTable = new Table(baseIndexSupplier.getAsInt());
                     if (NEXT_TABLE_UPDATER.compareAndSet(this, null, newTable)) {
                         next = newTable;
-                    } else {
+                        // the base index counts the slots of all tables handed out so far
+                        FlightEvents.tableResized("richardstartin", "Dictionary",
+                                newTable.baseIndex - TABLE_CAPACITY, newTable.baseIndex, 0);
+                    }
+                    else {
                         next = this.next;
                     }
                 }
@@ -160,17 +168,19 @@ public class CalculateAverage_richardstartin {
     private static long compilePattern(long repeat) {
         return 0x101010101010101L * repeat;
     }
+
     private static long compilePattern(char delimiter) {
-        return compilePattern (delimiter & 0xFFL);
+        return compilePattern(delimiter & 0xFFL);
     }
+
     private static long compilePattern(byte delimiter) {
         return compilePattern(delimiter & 0xFFL);
     }
 
-    private static final long NEW_LINE = compilePattern((byte)'\n');
-    private static final long DELIMITER = compilePattern(';');
+    static final long NEW_LINE = compilePattern((byte) '\n');
+    static final long DELIMITER = compilePattern(';');
 
-    private static int firstInstance(long word, long pattern) {
+    static int firstInstance(long word, long pattern) {
         long input = word ^ pattern;
         long tmp = (input & 0x7F7F7F7F7F7F7F7FL) + 0x7F7F7F7F7F7F7F7FL;
         tmp = ~(tmp | input | 0x7F7F7F7F7F7F7F7FL);
@@ -207,7 +217,7 @@ public class CalculateAverage_richardstartin {
         return buffer.limit();
     }
 
-    private static long hash(ByteBuffer slice) {
+    static long hash(ByteBuffer slice) {
         long hash = slice.limit() + PRIME_5 + 0x123456789abcdef1L;
         int i = 0;
         for (; i + Long.BYTES < slice.limit(); i += Long.BYTES) {
@@ -227,7 +237,7 @@ public class CalculateAverage_richardstartin {
     static final long PRIME_4 = 0x85EBCA77C2B2AE63L;
     static final long PRIME_5 = 0x27D4EB2F165667C5L;
 
-    private static long hashLong(long hash, long k) {
+    static long hashLong(long hash, long k) {
         k *= PRIME_2;
         k = Long.rotateLeft(k, 31);
         k *= PRIME_1;
@@ -235,7 +245,7 @@ public class CalculateAverage_richardstartin {
         return Long.rotateLeft(hash, 27) * PRIME_1 + PRIME_4;
     }
 
-    private static long mix(long hash) {
+    static long mix(long hash) {
         hash ^= hash >>> 33;
         hash *= PRIME_2;
         hash ^= hash >>> 29;
@@ -249,13 +259,18 @@ public class CalculateAverage_richardstartin {
         static final int PAGE_SIZE = 1024;
         static final int PAGE_SHIFT = Integer.numberOfTrailingZeros(PAGE_SIZE);
         static final int PAGE_MASK = PAGE_SIZE - 1;
+        // struct of arrays, each aggregate has its own region of the page so merging is a
+        // straight lane-wise add/min/max over contiguous doubles
+        static final int COUNT = 0;
+        static final int MIN = PAGE_SIZE;
+        static final int MAX = 2 * PAGE_SIZE;
+        static final int SUM = 3 * PAGE_SIZE;
         private static final double[] PAGE_PROTOTYPE = new double[PAGE_SIZE * 4];
+        private static final boolean VECTOR_MERGE = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
 
         static {
-            for (int i = 0; i < PAGE_SIZE * 4; i += 4) {
-                PAGE_PROTOTYPE[i + 1] = Double.POSITIVE_INFINITY;
-                PAGE_PROTOTYPE[i + 2] = Double.NEGATIVE_INFINITY;
-            }
+            Arrays.fill(PAGE_PROTOTYPE, MIN, MAX, Double.POSITIVE_INFINITY);
+            Arrays.fill(PAGE_PROTOTYPE, MAX, SUM, Double.NEGATIVE_INFINITY);
         }
 
         private static double[] newPage() {
@@ -271,41 +286,91 @@ public class CalculateAverage_richardstartin {
             }
 
             // update local aggregates
-            page[(position & PAGE_MASK) * 4]++; // count
-            page[(position & PAGE_MASK) * 4 + 1] = Math.min(page[(position & PAGE_MASK) * 4 + 1], value); // min
-            page[(position & PAGE_MASK) * 4 + 2] = Math.max(page[(position & PAGE_MASK) * 4 + 2], value); // min
-            page[(position & PAGE_MASK) * 4 + 3] += value; // sum
+            int index = position & PAGE_MASK;
+            page[COUNT + index]++;
+            page[MIN + index] = Math.min(page[MIN + index], value);
+            page[MAX + index] = Math.max(page[MAX + index], value);
+            page[SUM + index] += value;
+        }
+
+        static void merge(double[] from, double[] to) {
+            if (VECTOR_MERGE) {
+                VectorMerge.merge(from, to);
+                return;
+            }
+            // one loop per aggregate, which the JIT can vectorise on its own
+            for (int i = COUNT; i < COUNT + PAGE_SIZE; i++) {
+                to[i] += from[i];
+            }
+            for (int i = MIN; i < MIN + PAGE_SIZE; i++) {
+                to[i] = Math.min(to[i], from[i]);
+            }
+            for (int i = MAX; i < MAX + PAGE_SIZE; i++) {
+                to[i] = Math.max(to[i], from[i]);
+            }
+            for (int i = SUM; i < SUM + PAGE_SIZE; i++) {
+                to[i] += from[i];
+            }
         }
 
         static ResultRow toResultRow(double[][] pages, int position) {
             double[] page = pages[position >>> PAGE_SHIFT];
-            double count = page[(position & PAGE_MASK) * 4];
-            double min = page[(position & PAGE_MASK) * 4 + 1];
-            double max = page[(position & PAGE_MASK) * 4 + 2];
-            double sum = page[(position & PAGE_MASK) * 4 + 3];
+            int index = position & PAGE_MASK;
+            double count = page[COUNT + index];
+            double min = page[MIN + index];
+            double max = page[MAX + index];
+            double sum = page[SUM + index];
             return new ResultRow(min, sum / count, max);
         }
     }
 
-    private static class AggregationTask extends RecursiveTask<double[][]> {
+    /** Only loaded if the jdk.incubator.vector module has been added */
+    private static final class VectorMerge {
+        private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+        static void merge(double[] from, double[] to) {
+            // the page size is a multiple of every vector length, so there is no tail
+            for (int i = 0; i < Page.PAGE_SIZE; i += SPECIES.length()) {
+                DoubleVector.fromArray(SPECIES, to, Page.COUNT + i)
+                        .add(DoubleVector.fromArray(SPECIES, from, Page.COUNT + i))
+                        .intoArray(to, Page.COUNT + i);
+                DoubleVector.fromArray(SPECIES, to, Page.MIN + i)
+                        .min(DoubleVector.fromArray(SPECIES, from, Page.MIN + i))
+                        .intoArray(to, Page.MIN + i);
+                DoubleVector.fromArray(SPECIES, to, Page.MAX + i)
+                        .max(DoubleVector.fromArray(SPECIES, from, Page.MAX + i))
+                        .intoArray(to, Page.MAX + i);
+                DoubleVector.fromArray(SPECIES, to, Page.SUM + i)
+                        .add(DoubleVector.fromArray(SPECIES, from, Page.SUM + i))
+                        .intoArray(to, Page.SUM + i);
+            }
+        }
+    }
+
+    static class AggregationTask extends RecursiveTask<double[][]> {
 
         private final Dictionary dictionary;
         private final List<ByteBuffer> slices;
+        private final long[] offsets;
         private final int min;
         private final int max;
 
-        private AggregationTask(Dictionary dictionary, List<ByteBuffer> slices) {
-            this(dictionary, slices, 0, slices.size() - 1);
+        private AggregationTask(Dictionary dictionary, List<ByteBuffer> slices, long[] offsets) {
+            this(dictionary, slices, offsets, 0, slices.size() - 1);
         }
 
-        private AggregationTask(Dictionary dictionary, List<ByteBuffer> slices, int min, int max) {
+        private AggregationTask(Dictionary dictionary, List<ByteBuffer> slices, long[] offsets, int min, int max) {
             this.dictionary = dictionary;
             this.slices = slices;
+            this.offsets = offsets;
             this.min = min;
             this.max = max;
         }
 
-        private void computeSlice(ByteBuffer slice, double[][] pages) {
+        /** Aggregates every line of {@code slice} into {@code pages}, returns the lines it read */
+        private int computeSlice(ByteBuffer slice, double[][] pages) {
+            var segment = MemorySegment.ofBuffer(slice);
+            int rows = 0;
             for (int offset = 0; offset < slice.limit();) {
                 int nextSeparator = findIndexOf(slice, offset, DELIMITER);
                 ByteBuffer key = slice.slice(offset, nextSeparator - offset).order(ByteOrder.LITTLE_ENDIAN);
@@ -315,34 +380,24 @@ public class CalculateAverage_richardstartin {
 
                 offset = nextSeparator + 1;
                 int newLine = findIndexOf(slice, offset, NEW_LINE);
-                // parse the double
-                // todo do this without allocating a string, could use a fast parsing falgorithm
-                var bytes = new byte[newLine - offset];
-                slice.get(offset, bytes);
-                var string = new String(bytes, StandardCharsets.US_ASCII);
-                double d = Double.parseDouble(string);
+                // parse the tenths in place, no string, no Double.parseDouble
+                double d = Tenths.parse(segment, offset, newLine) / 10.0;
 
                 Page.update(pages, dictId, d);
+                rows++;
 
                 offset = newLine + 1;
             }
+            return rows;
         }
 
-        private static void merge(double[][] contribution, double[][] aggregate) {
+        static void merge(double[][] contribution, double[][] aggregate) {
             for (int i = 0; i < contribution.length; i++) {
                 if (aggregate[i] == null) {
                     aggregate[i] = contribution[i];
-                } else if (contribution[i] != null) {
-                    double[] to = aggregate[i];
-                    double[] from = contribution[i];
-                    // todo won't vectorise - consider separating aggregates into distinct regions and apply
-                    //  loop fission (if this shows up in the profile)
-                    for (int j = 0; j < to.length; j += 4) {
-                        to[j] += from[j];
-                        to[j + 1] = Math.min(to[j + 1], from[j + 1]);
-                        to[j + 2] = Math.max(to[j + 2], from[j + 2]);
-                        to[j + 3] += from[j + 3];
-                    }
+                }
+                else if (contribution[i] != null) {
+                    Page.merge(contribution[i], aggregate[i]);
                 }
             }
         }
@@ -353,15 +408,21 @@ public class CalculateAverage_richardstartin {
                 // fixme - hardcoded to problem size
                 var pages = new double[1024][];
                 var slice = slices.get(min);
-                computeSlice(slice, pages);
+                var event = FlightEvents.segment("richardstartin");
+                int rows = computeSlice(slice, pages);
+                FlightEvents.endSegment(event, offsets[min], slice.limit(), rows);
                 return pages;
-            } else {
+            }
+            else {
                 int mid = (min + max) / 2;
-                var low = new AggregationTask(dictionary, slices, min, mid);
-                var high = new AggregationTask(dictionary, slices, mid + 1, max);
+                var low = new AggregationTask(dictionary, slices, offsets, min, mid);
+                var high = new AggregationTask(dictionary, slices, offsets, mid + 1, max);
                 var fork = high.fork();
                 var partial = low.compute();
-                merge(fork.join(), partial);
+                var contribution = fork.join();
+                var event = FlightEvents.phase("richardstartin", FlightEvents.PhaseEvent.MERGE);
+                merge(contribution, partial);
+                FlightEvents.endPhase(event, 0);
                 return partial;
             }
         }
@@ -370,10 +431,11 @@ public class CalculateAverage_richardstartin {
     public static void main(String[] args) throws IOException {
         int maxChunkSize = 10 << 20; // 10MiB
         try (var raf = new RandomAccessFile(FILE, "r");
-             var channel = raf.getChannel()) {
+                var channel = raf.getChannel()) {
             long size = channel.size();
             // make as few mmap calls as possible subject to the 2GiB limit per buffer
             List<ByteBuffer> rawBuffers = new ArrayList<>();
+            List<Long> rawOffsets = new ArrayList<>();
             for (long offset = 0; offset < size - 1;) {
                 long end = Math.min(Integer.MAX_VALUE, size - offset);
                 ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, end)
@@ -383,12 +445,15 @@ public class CalculateAverage_richardstartin {
                         ? (int) end
                         : findLastNewLine(buffer);
                 rawBuffers.add(buffer.limit(limit));
+                rawOffsets.add(offset);
                 offset += limit;
             }
 
             // now slice them up for parallel processing
             var slices = new ArrayList<ByteBuffer>();
-            for (ByteBuffer rawBuffer : rawBuffers) {
+            var sliceOffsets = new ArrayList<Long>(); // where they start in the file, for the flight recorder
+            for (int i = 0; i < rawBuffers.size(); i++) {
+                ByteBuffer rawBuffer = rawBuffers.get(i);
                 for (int offset = 0; offset < rawBuffer.limit();) {
                     int chunkSize = Math.min(rawBuffer.limit() - offset, maxChunkSize);
                     int target = offset + chunkSize;
@@ -398,16 +463,22 @@ public class CalculateAverage_richardstartin {
                     int adjustment = rawBuffer.get(offset) == '\n' ? 1 : 0;
                     var slice = rawBuffer.slice(offset + adjustment, limit - offset - adjustment).order(ByteOrder.LITTLE_ENDIAN);
                     slices.add(slice);
+                    sliceOffsets.add(rawOffsets.get(i) + offset + adjustment);
                     offset = limit;
                 }
             }
 
             var fjp = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
             Dictionary dictionary = new Dictionary();
-            double[][] aggregates = fjp.submit(new AggregationTask(dictionary, slices)).join();
+            long[] offsets = sliceOffsets.stream().mapToLong(Long::longValue).toArray();
+            double[][] aggregates = fjp.submit(new AggregationTask(dictionary, slices, offsets)).join();
+            var sort = FlightEvents.phase("richardstartin", FlightEvents.PhaseEvent.SORT);
             var map = new TreeMap<String, ResultRow>();
             dictionary.forEach((key, index) -> map.put(key, Page.toResultRow(aggregates, index)));
+            FlightEvents.endPhase(sort, map.size());
+            var print = FlightEvents.phase("richardstartin", FlightEvents.PhaseEvent.PRINT);
             System.out.println(map);
+            FlightEvents.endPhase(print, map.size());
         }
     }
 }
\ No newline at end of file
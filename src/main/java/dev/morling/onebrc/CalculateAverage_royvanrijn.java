@@ -15,9 +15,7 @@
  */
 package dev.morling.onebrc;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
@@ -25,9 +23,12 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.TreeMap;
-import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import dev.morling.onebrc.AggregationEngine.Chunk;
 
 /**
  * Changelog:
@@ -94,57 +95,93 @@ public class CalculateAverage_royvanrijn {
 
     private void run() throws Exception {
 
-        var results = getFileSegments(new File(FILE)).stream().map(segment -> {
-
-            long segmentEnd = segment.end();
-            try (var fileChannel = (FileChannel) Files.newByteChannel(Path.of(FILE), StandardOpenOption.READ)) {
-                var bb = fileChannel.map(FileChannel.MapMode.READ_ONLY, segment.start(), segmentEnd - segment.start());
-                var buffer = new byte[64];
-
-                // Force little endian:
-                bb.order(ByteOrder.LITTLE_ENDIAN);
-
-                BitTwiddledMap measurements = new BitTwiddledMap();
-
-                int startPointer;
-                int limit = bb.limit();
-                while ((startPointer = bb.position()) < limit) {
-
-                    // SWAR is faster for ';'
-                    int separatorPointer = findNextSWAR(bb, SEPARATOR_PATTERN, startPointer + 3, limit);
-
-                    // Simple is faster for '\n' (just three options)
-                    int endPointer;
-                    if (bb.get(separatorPointer + 4) == '\n') {
-                        endPointer = separatorPointer + 4;
-                    }
-                    else if (bb.get(separatorPointer + 5) == '\n') {
-                        endPointer = separatorPointer + 5;
-                    }
-                    else {
-                        endPointer = separatorPointer + 6;
+        // Threads claim small chunks until the file is exhausted, each one into its own map
+        int workers = Runtime.getRuntime().availableProcessors();
+        List<BitTwiddledMap> maps;
+        try (var channel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            var scheduler = ChunkScheduler.forFile(channel, workers);
+            maps = IntStream.range(0, workers).parallel().mapToObj(_ -> {
+
+                var worker = scheduler.worker();
+                try (var fileChannel = (FileChannel) Files.newByteChannel(Path.of(FILE), StandardOpenOption.READ)) {
+                    var buffer = new byte[128]; // a whole line, the name can be up to 100 bytes
+
+                    BitTwiddledMap measurements = new BitTwiddledMap();
+
+                    Chunk chunk;
+                    while ((chunk = worker.next()) != null) {
+                        var event = FlightEvents.segment("royvanrijn");
+                        var bb = fileChannel.map(FileChannel.MapMode.READ_ONLY, chunk.start(), chunk.end() - chunk.start());
+
+                        // Force little endian:
+                        bb.order(ByteOrder.LITTLE_ENDIAN);
+
+                        int startPointer;
+                        int limit = bb.limit();
+                        int rows = 0;
+                        while ((startPointer = bb.position()) < limit) {
+
+                            // SWAR is faster for ';', a name has at least one byte
+                            int separatorPointer = findNextSWAR(bb, SEPARATOR_PATTERN, startPointer + 1, limit);
+
+                            // Simple is faster for '\n' (just three options)
+                            int endPointer;
+                            if (bb.get(separatorPointer + 4) == '\n') {
+                                endPointer = separatorPointer + 4;
+                            }
+                            else if (bb.get(separatorPointer + 5) == '\n') {
+                                endPointer = separatorPointer + 5;
+                            }
+                            else {
+                                endPointer = separatorPointer + 6;
+                            }
+
+                            // Read the entry in a single get():
+                            bb.get(buffer, 0, endPointer - startPointer);
+                            bb.position(endPointer + 1); // skip to next line.
+
+                            // Extract the measurement value (10x):
+                            final int nameLength = separatorPointer - startPointer;
+                            final int valueLength = endPointer - separatorPointer - 1;
+                            final int measured = branchlessParseInt(buffer, nameLength + 1, valueLength);
+                            measurements.getOrCreate(buffer, nameLength).updateWith(measured);
+                            rows++;
+                        }
+                        FlightEvents.endSegment(event, chunk.start(), limit, rows);
                     }
+                    return measurements;
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }).toList();
+        }
 
-                    // Read the entry in a single get():
-                    bb.get(buffer, 0, endPointer - startPointer);
-                    bb.position(endPointer + 1); // skip to next line.
+        TableStats.print("royvanrijn", maps.stream().map(BitTwiddledMap::stats));
 
-                    // Extract the measurement value (10x):
-                    final int nameLength = separatorPointer - startPointer;
-                    final int valueLength = endPointer - separatorPointer - 1;
-                    final int measured = branchlessParseInt(buffer, nameLength + 1, valueLength);
-                    measurements.getOrCreate(buffer, nameLength).updateWith(measured);
+        // Fold into the largest map by bytes, so every name only becomes a String once:
+        var merge = FlightEvents.phase("royvanrijn", FlightEvents.PhaseEvent.MERGE);
+        var target = maps.stream().max(Comparator.comparingInt(m -> m.values.size())).orElseThrow();
+        for (var map : maps) {
+            if (map != target) {
+                for (var entry : map.values) {
+                    target.getOrCreate(entry.key, entry.key.length).updateWith(entry.measurement);
                 }
-                return measurements;
-            }
-            catch (IOException e) {
-                throw new RuntimeException(e);
             }
-        }).parallel().flatMap(v -> v.values.stream())
-                .collect(Collectors.toMap(e -> new String(e.key), BitTwiddledMap.Entry::measurement, (m1, m2) -> m1.updateWith(m2), TreeMap::new));
-
+        }
+        FlightEvents.endPhase(merge, target.values.size());
+        var sort = FlightEvents.phase("royvanrijn", FlightEvents.PhaseEvent.SORT);
+        var results = new SortedResults<Measurement>(target.values.size());
+        for (var entry : target.values) {
+            results.add(new String(entry.key), entry.measurement);
+        }
         // Seems to perform better than actually using a TreeMap:
-        System.out.println(results);
+        var sorted = results.toTreeMap();
+        FlightEvents.endPhase(sort, sorted.size());
+
+        var print = FlightEvents.phase("royvanrijn", FlightEvents.PhaseEvent.PRINT);
+        System.out.println(sorted);
+        FlightEvents.endPhase(print, sorted.size());
     }
 
     /**
@@ -170,12 +207,12 @@ public class CalculateAverage_royvanrijn {
         return limit; // delimiter not found
     }
 
-    private static long compilePattern(byte value) {
+    static long compilePattern(byte value) {
         return ((long) value << 56) | ((long) value << 48) | ((long) value << 40) | ((long) value << 32) |
                 ((long) value << 24) | ((long) value << 16) | ((long) value << 8) | (long) value;
     }
 
-    private static int firstAnyPattern(long word, long pattern) {
+    static int firstAnyPattern(long word, long pattern) {
         final long match = word ^ pattern;
         long mask = match - 0x0101010101010101L;
         mask &= ~match;
@@ -183,40 +220,6 @@ public class CalculateAverage_royvanrijn {
         return Long.numberOfTrailingZeros(mask) >>> 3;
     }
 
-    record FileSegment(long start, long end) {
-    }
-
-    /** Using this way to segment the file is much prettier, from spullara */
-    private static List<FileSegment> getFileSegments(File file) throws IOException {
-        final int numberOfSegments = Runtime.getRuntime().availableProcessors();
-        final long fileSize = file.length();
-        final long segmentSize = fileSize / numberOfSegments;
-        final List<FileSegment> segments = new ArrayList<>();
-        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
-            for (int i = 0; i < numberOfSegments; i++) {
-                long segStart = i * segmentSize;
-                long segEnd = (i == numberOfSegments - 1) ? fileSize : segStart + segmentSize;
-                segStart = findSegment(i, 0, randomAccessFile, segStart, segEnd);
-                segEnd = findSegment(i, numberOfSegments - 1, randomAccessFile, segEnd, fileSize);
-
-                segments.add(new FileSegment(segStart, segEnd));
-            }
-        }
-        return segments;
-    }
-
-    private static long findSegment(int i, int skipSegment, RandomAccessFile raf, long location, long fileSize) throws IOException {
-        if (i != skipSegment) {
-            raf.seek(location);
-            while (location < fileSize) {
-                location++;
-                if (raf.read() == '\n')
-                    return location;
-            }
-        }
-        return location;
-    }
-
     /**
      * Branchless parser, goes from String to int (10x):
      * "-1.2" to -12
@@ -226,7 +229,7 @@ public class CalculateAverage_royvanrijn {
      * @param input
      * @return int value x10
      */
-    private static int branchlessParseInt(final byte[] input, int start, int length) {
+    static int branchlessParseInt(final byte[] input, int start, int length) {
         // 0 if positive, 1 if negative
         final int negative = ~(input[start] >> 4) & 1;
         // 0 if nr length is 3, 1 if length is 4
@@ -259,10 +262,11 @@ public class CalculateAverage_royvanrijn {
      * So I've written an extremely simple linear probing hashmap that should work well enough.
      */
     class BitTwiddledMap {
-        private static final int SIZE = 16384; // A bit larger than the number of keys, needs power of two
-        private int[] indices = new int[SIZE]; // Hashtable is just an int[]
+        private static final int INITIAL_SIZE = 16384; // A bit larger than the number of keys, needs power of two
+        private int[] indices = newIndices(INITIAL_SIZE); // Hashtable is just an int[]
 
-        BitTwiddledMap() {
+        private static int[] newIndices(int size) {
+            int[] indices = new int[size];
             // Optimized fill with -1, fastest method:
             int len = indices.length;
             if (len > 0) {
@@ -272,35 +276,45 @@ public class CalculateAverage_royvanrijn {
             for (int i = 1; i < len; i += i) {
                 System.arraycopy(indices, 0, indices, i, i);
             }
+            return indices;
         }
 
-        private List<Entry> values = new ArrayList<>(512);
+        List<Entry> values = new ArrayList<>(512);
+        private final TableStats stats = new TableStats();
 
         record Entry(int hash, byte[] key, Measurement measurement) {
             @Override
             public String toString() {
                 return new String(key) + "=" + measurement;
             }
+
+            boolean keyEquals(byte[] other, int length) {
+                return Arrays.equals(key, 0, key.length, other, 0, length);
+            }
         }
 
         /**
          * Who needs methods like add(), merge(), compute() etc, we need one, getOrCreate.
+         * Equal hashes don't make equal keys though, with millions of stations they collide.
          * @param key
          * @return
          */
         public Measurement getOrCreate(byte[] key, int length) {
             int inHash;
-            int index = (SIZE - 1) & (inHash = hashCode(key, length));
+            int mask = indices.length - 1;
+            int index = mask & (inHash = hashCode(key, length));
             int valueIndex;
             Entry retrievedEntry = null;
-            while ((valueIndex = indices[index]) != -1 && (retrievedEntry = values.get(valueIndex)).hash != inHash) {
-                index = (index + 1) % SIZE;
+            int probes = 0;
+            while ((valueIndex = indices[index]) != -1
+                    && ((retrievedEntry = values.get(valueIndex)).hash != inHash || !retrievedEntry.keyEquals(key, length))) {
+                index = (index + 1) & mask;
+                probes++;
             }
+            stats.record(probes);
             if (valueIndex >= 0) {
                 return retrievedEntry.measurement;
             }
-            // New entry, insert into table and return.
-            indices[index] = values.size();
 
             // Only parse this once:
             byte[] actualKey = new byte[length];
@@ -308,9 +322,34 @@ public class CalculateAverage_royvanrijn {
 
             Entry toAdd = new Entry(inHash, actualKey, new Measurement());
             values.add(toAdd);
+            if (values.size() > indices.length / 2) {
+                grow(); // indexes the new entry as well
+            }
+            else {
+                // New entry, insert into table and return.
+                indices[index] = values.size() - 1;
+            }
             return toAdd.measurement;
         }
 
+        TableStats.Report stats() {
+            return stats.report("bit twiddled", StationHash.POLYNOMIAL_31, values.size(), indices.length, i -> indices[i] != -1);
+        }
+
+        // More keys than expected, double the table and index all entries again from their hash:
+        private void grow() {
+            indices = newIndices(indices.length * 2);
+            int mask = indices.length - 1;
+            for (int i = 0; i < values.size(); i++) {
+                int index = values.get(i).hash & mask;
+                while (indices[index] != -1) {
+                    index = (index + 1) & mask;
+                }
+                indices[index] = i;
+            }
+            FlightEvents.tableResized("royvanrijn", "BitTwiddledMap", indices.length / 2, indices.length, values.size());
+        }
+
         private static int hashCode(byte[] a, int length) {
             int result = 1;
             for (int i = 0; i < length; i++) {
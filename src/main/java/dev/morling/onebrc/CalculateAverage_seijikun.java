@@ -162,15 +162,17 @@ public class CalculateAverage_seijikun {
         long chunkStartPtr = 0;
         byte[] tmpBuffer = new byte[128];
         for (int i = 0; i < jobCnt; ++i) {
-            long chunkEndPtr = chunkStartPtr + chunkSize;
+            long chunkEndPtr = Math.min(chunkStartPtr + chunkSize, file.length());
             if (i != (jobCnt - 1)) { // align chunks to newlines
-                file.seek(chunkEndPtr - 1);
-                file.read(tmpBuffer);
-                int offset = 0;
-                while (tmpBuffer[offset] != '\n') {
-                    offset += 1;
+                if (chunkEndPtr > chunkStartPtr) { // a small file leaves some chunks empty
+                    file.seek(chunkEndPtr - 1);
+                    int read = file.read(tmpBuffer);
+                    int offset = 0;
+                    while (offset < read && tmpBuffer[offset] != '\n') {
+                        offset += 1;
+                    }
+                    chunkEndPtr = Math.min(chunkEndPtr + offset, file.length());
                 }
-                chunkEndPtr += offset;
             }
             else { // last chunk ends at file end
                 chunkEndPtr = file.length();
@@ -17,23 +17,28 @@ package dev.morling.onebrc;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.TreeMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import dev.morling.onebrc.AggregationEngine.Chunk;
 
 public class CalculateAverage_spullara {
-  private static final String FILE = "./measurements.txt";
+    private static final String FILE = "./measurements.txt";
 
     /*
      * My results on this computer:
@@ -44,189 +49,235 @@ public class CalculateAverage_spullara {
      *
      */
 
-  public static void main(String[] args) throws IOException, ExecutionException, InterruptedException {
-    var filename = args.length == 0 ? FILE : args[0];
-    var file = new File(filename);
-    long start = System.currentTimeMillis();
-
-    var totalLines = new AtomicInteger();
-    var results = getFileSegments(file).stream().map(segment -> {
-      var resultMap = new ByteArrayToResultMap();
-      long segmentEnd = segment.end();
-      try (var fileChannel = (FileChannel) Files.newByteChannel(Path.of(filename), StandardOpenOption.READ)) {
-        var bb = fileChannel.map(FileChannel.MapMode.READ_ONLY, segment.start(), segmentEnd - segment.start());
-        var buffer = new byte[64];
+    public static void main(String[] args) throws IOException, ExecutionException, InterruptedException {
+        var filename = args.length == 0 ? FILE : args[0];
+        var file = new File(filename);
+        long start = System.currentTimeMillis();
+
+        var totalLines = new AtomicInteger();
+        int workers = Runtime.getRuntime().availableProcessors();
+        // -Donebrc.dictionary=true: station ids from a dictionary shared by all threads, so the
+        // per-thread aggregates merge by position rather than by name
+        var dictionary = Boolean.getBoolean("onebrc.dictionary") ? new StationDictionary() : null;
+        List<LineSink> results;
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            var scheduler = ChunkScheduler.forFile(channel, workers);
+            results = IntStream.range(0, workers).parallel().mapToObj(_ -> {
+                var buffer = new byte[128];
+                LineSink sink = dictionary == null ? new ByteArrayToResultMap() : new DictionarySink(dictionary, MemorySegment.ofArray(buffer), dictionary.pages());
+                var worker = scheduler.worker();
+                try (var fileChannel = (FileChannel) Files.newByteChannel(Path.of(filename), StandardOpenOption.READ)) {
+                    int lines = 0;
+                    Chunk chunk;
+                    while ((chunk = worker.next()) != null) {
+                        var event = FlightEvents.segment("spullara");
+                        var bb = fileChannel.map(FileChannel.MapMode.READ_ONLY, chunk.start(), chunk.end() - chunk.start());
+                        int chunkLines = processChunk(bb, buffer, sink);
+                        FlightEvents.endSegment(event, chunk.start(), chunk.end() - chunk.start(), chunkLines);
+                        lines += chunkLines;
+                    }
+                    totalLines.addAndGet(lines);
+                    return sink;
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }).toList();
+        }
+
+        TreeMap<String, StationStats> resultMap;
+        if (dictionary == null) {
+            TableStats.print("spullara", results.stream().map(partition -> ((ByteArrayToResultMap) partition).stats()));
+            resultMap = merge(results.stream().map(partition -> (ByteArrayToResultMap) partition).toList());
+        }
+        else {
+            TableStats.print("spullara", Stream.of(dictionary.stats()));
+            var merge = FlightEvents.phase("spullara", FlightEvents.PhaseEvent.MERGE);
+            var pages = results.stream()
+                    .map(partition -> ((DictionarySink) partition).pages())
+                    .reduce(StationDictionary.Pages::mergeFrom)
+                    .orElseGet(dictionary::pages);
+            FlightEvents.endPhase(merge, dictionary.size());
+            var sort = FlightEvents.phase("spullara", FlightEvents.PhaseEvent.SORT);
+            resultMap = pages.toMap();
+            FlightEvents.endPhase(sort, resultMap.size());
+        }
+
+        System.out.println("Time: " + (System.currentTimeMillis() - start) + "ms");
+        System.out.println("Lines processed: " + totalLines);
+        var print = FlightEvents.phase("spullara", FlightEvents.PhaseEvent.PRINT);
+        System.out.println(resultMap);
+        FlightEvents.endPhase(print, resultMap.size());
+    }
+
+    static int processChunk(ByteBuffer bb, byte[] buffer, LineSink resultMap) {
         int lines = 0;
         int startLine;
         int limit = bb.limit();
         while ((startLine = bb.position()) < limit) {
-          int currentPosition = startLine;
-          byte b;
-          int offset = 0;
-          while (currentPosition != segmentEnd && (b = bb.get(currentPosition++)) != ';') {
-            buffer[offset++] = b;
-          }
-          int temp = 0;
-          int negative = 1;
-          outer:
-          while (currentPosition != segmentEnd && (b = bb.get(currentPosition++)) != '\n') {
-            switch (b) {
-              case '-':
-                negative = -1;
-              case '.':
-                break;
-              case '\r':
-                currentPosition++;
-                break outer;
-              default:
-                temp = 10 * temp + (b - '0');
+            int currentPosition = startLine;
+            byte b;
+            int offset = 0;
+            while (currentPosition != limit && (b = bb.get(currentPosition++)) != ';') {
+                buffer[offset++] = b;
+            }
+            int temp = 0;
+            int negative = 1;
+            outer:
+            while (currentPosition != limit && (b = bb.get(currentPosition++)) != '\n') {
+                switch (b) {
+                    case '-':
+                        negative = -1;
+                    case '.':
+                        break;
+                    case '\r':
+                        currentPosition++;
+                        break outer;
+                    default:
+                        temp = 10 * temp + (b - '0');
+                }
             }
-          }
-          temp *= negative;
-          double finalTemp = temp / 10.0;
-          resultMap.putOrMerge(buffer, 0, offset,
-                  () -> new Result(finalTemp),
-                  measurement -> merge(measurement, finalTemp, finalTemp, finalTemp, 1));
-          lines++;
-          bb.position(currentPosition);
+            resultMap.add(buffer, offset, temp * negative);
+            lines++;
+            bb.position(currentPosition);
         }
-        totalLines.addAndGet(lines);
-        return resultMap;
-      } catch (IOException e) {
-        throw new RuntimeException(e);
-      }
-    }).parallel().toList();
-
-    var resultMap = results.stream()
-            .flatMap(partition -> partition.getAll().stream())
-                    .collect(Collectors.toMap(e -> new String(e.key()), Entry::value, CalculateAverage_spullara::merge, TreeMap::new));
-
-    System.out.println("Time: " + (System.currentTimeMillis() - start) + "ms");
-    System.out.println("Lines processed: " + totalLines);
-    System.out.println(resultMap);
-  }
-
-  private static List<FileSegment> getFileSegments(File file) throws IOException {
-    int numberOfSegments = Runtime.getRuntime().availableProcessors();
-    long fileSize = file.length();
-    long segmentSize = fileSize / numberOfSegments;
-    List<FileSegment> segments = new ArrayList<>();
-    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
-      for (int i = 0; i < numberOfSegments; i++) {
-        long segStart = i * segmentSize;
-        long segEnd = (i == numberOfSegments - 1) ? fileSize : segStart + segmentSize;
-        segStart = findSegment(i, 0, randomAccessFile, segStart, segEnd);
-        segEnd = findSegment(i, numberOfSegments - 1, randomAccessFile, segEnd, fileSize);
-
-        segments.add(new FileSegment(segStart, segEnd));
-      }
+        return lines;
     }
-    return segments;
-  }
-
-  private static Result merge(Result v, Result value) {
-    return merge(v, value.min, value.max, value.sum, value.count);
-  }
-
-  private static Result merge(Result v, double value, double value1, double value2, long value3) {
-    v.min = Math.min(v.min, value);
-    v.max = Math.max(v.max, value1);
-    v.sum += value2;
-    v.count += value3;
-    return v;
-  }
-
-  private static long findSegment(int i, int skipSegment, RandomAccessFile raf, long location, long fileSize) throws IOException {
-    if (i != skipSegment) {
-      raf.seek(location);
-      while (location < fileSize) {
-        location++;
-        if (raf.read() == '\n')
-          break;
-      }
-    }
-    return location;
-  }
-}
-
-class Result {
-  double min, max, sum;
-  long count;
 
-  Result(double value) {
-    min = max = sum = value;
-    this.count = 1;
-  }
-
-  @Override
-  public String toString() {
-    return round(min) + "/" + round(sum / count) + "/" + round(max);
-  }
+    /** Folds the maps into the largest one by name bytes, so that every name becomes a String once */
+    static TreeMap<String, StationStats> merge(List<ByteArrayToResultMap> maps) {
+        var merge = FlightEvents.phase("spullara", FlightEvents.PhaseEvent.MERGE);
+        var target = maps.stream().max(Comparator.comparingInt(ByteArrayToResultMap::size)).orElseThrow();
+        for (var map : maps) {
+            if (map != target) {
+                for (Entry entry : map.getAll()) {
+                    target.putOrMerge(entry.key(), 0, entry.key().length, entry.value()::copy, measurement -> measurement.merge(entry.value()));
+                }
+            }
+        }
+        FlightEvents.endPhase(merge, target.size());
+        var sort = FlightEvents.phase("spullara", FlightEvents.PhaseEvent.SORT);
+        var result = new SortedResults<StationStats>(target.size());
+        for (Entry entry : target.getAll()) {
+            result.add(new String(entry.key()), entry.value());
+        }
+        var sorted = result.toTreeMap();
+        FlightEvents.endPhase(sort, sorted.size());
+        return sorted;
+    }
 
-  double round(double v) {
-    return Math.round(v * 10.0) / 10.0;
-  }
+    static StationStats merge(StationStats v, StationStats value) {
+        v.merge(value);
+        return v;
+    }
+}
 
+/** Receives the lines parsed into the name buffer */
+interface LineSink {
+    void add(byte[] name, int length, int temp);
 }
 
-record Pair(int slot, Result slotValue) {
+/** Aggregates into dense pages, with the station ids looked up in a dictionary shared by all threads */
+record DictionarySink(StationDictionary dictionary, MemorySegment name, StationDictionary.Pages pages) implements LineSink {
+    @Override
+    public void add(byte[] buffer, int length, int temp) {
+        pages.add(dictionary.id(name, 0, length), temp);
+    }
 }
 
-record Entry(byte[] key, Result value) {
+record Pair(int slot, StationStats slotValue, int probes) {
 }
 
-record FileSegment(long start, long end) {
+record Entry(byte[] key, StationStats value) {
 }
 
-class ByteArrayToResultMap {
-  public static final int MAPSIZE = 1024*128;
-  Result[] slots = new Result[MAPSIZE];
-  byte[][] keys = new byte[MAPSIZE][];
+class ByteArrayToResultMap implements LineSink {
+    public static final int INITIAL_MAPSIZE = 1024*128;
+    StationStats[] slots = new StationStats[INITIAL_MAPSIZE];
+    byte[][] keys = new byte[INITIAL_MAPSIZE][];
+    int size;
+    private final TableStats stats = new TableStats();
+
+    private int hashCode(byte[] a, int fromIndex, int length) {
+        int result = 0;
+        int end = fromIndex + length;
+        for (int i = fromIndex; i < end; i++) {
+            result = 31 * result + a[i];
+        }
+        return result;
+    }
+
+    private Pair getPair(byte[] key, int offset, int size) {
+        int hash = hashCode(key, offset, size);
+        int slot = hash & (slots.length - 1);
+        var slotValue = slots[slot];
+        int probes = 0;
+        // Linear probe for open slot
+        while (slotValue != null && (keys[slot].length != size || !Arrays.equals(keys[slot], 0, size, key, offset, size))) {
+            slot = (slot + 1) & (slots.length - 1);
+            slotValue = slots[slot];
+            probes++;
+        }
+        return new Pair(slot, slotValue, probes);
+    }
+
+    public void putOrMerge(byte[] key, int offset, int size, Supplier<StationStats> supplier, Consumer<StationStats> merge) {
+        Pair result = getPair(key, offset, size);
+        stats.record(result.probes());
+        StationStats value = result.slotValue();
+        if (value == null) {
+            int slot = result.slot();
+            if (++this.size > slots.length / 2) {
+                grow();
+                slot = getPair(key, offset, size).slot();
+            }
+            slots[slot] = supplier.get();
+            byte[] bytes = new byte[size];
+            System.arraycopy(key, offset, bytes, 0, size);
+            keys[slot] = bytes;
+        } else {
+            merge.accept(value);
+        }
+    }
+
+    // double the table once half full, linear probing degrades quickly beyond
+    private void grow() {
+        var oldSlots = slots;
+        var oldKeys = keys;
+        slots = new StationStats[oldSlots.length * 2];
+        keys = new byte[oldSlots.length * 2][];
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] != null) {
+                int slot = getPair(oldKeys[i], 0, oldKeys[i].length).slot();
+                slots[slot] = oldSlots[i];
+                keys[slot] = oldKeys[i];
+            }
+        }
+        FlightEvents.tableResized("spullara", "ByteArrayToResultMap", oldSlots.length, slots.length, size);
+    }
 
-  private int hashCode(byte[] a, int fromIndex, int length) {
-    int result = 0;
-    int end = fromIndex + length;
-    for (int i = fromIndex; i < end; i++) {
-      result = 31 * result + a[i];
+    int size() {
+        return size;
     }
-    return result;
-  }
-
-  private Pair getPair(byte[] key, int offset, int size) {
-    int hash = hashCode(key, offset, size);
-    int slot = hash & (slots.length - 1);
-    var slotValue = slots[slot];
-    // Linear probe for open slot
-    while (slotValue != null && (keys[slot].length != size || !Arrays.equals(keys[slot], 0, size, key, offset, size))) {
-      slot = (slot + 1) & (slots.length - 1);
-      slotValue = slots[slot];
+
+    TableStats.Report stats() {
+        return stats.report("byte array keys", StationHash.POLYNOMIAL_31, size, slots.length, i -> slots[i] != null);
     }
-    return new Pair(slot, slotValue);
-  }
-
-  public void putOrMerge(byte[] key, int offset, int size, Supplier<Result> supplier, Consumer<Result> merge) {
-    Pair result = getPair(key, offset, size);
-    Result value = result.slotValue();
-    if (value == null) {
-      int slot = result.slot();
-      slots[slot] = supplier.get();
-      byte[] bytes = new byte[size];
-      System.arraycopy(key, offset, bytes, 0, size);
-      keys[slot] = bytes;
-    } else {
-      merge.accept(value);
+
+    @Override
+    public void add(byte[] name, int length, int temp) {
+        putOrMerge(name, 0, length, () -> new StationStats(temp, temp, temp, 1), measurement -> measurement.add(temp));
     }
-  }
-
-  // Get all pairs
-  public List<Entry> getAll() {
-    List<Entry> result = new ArrayList<>();
-    for (int i = 0; i < slots.length; i++) {
-      Result slotValue = slots[i];
-      if (slotValue != null) {
-        result.add(new Entry(keys[i], slotValue));
-      }
+
+    // Get all pairs
+    public List<Entry> getAll() {
+        List<Entry> result = new ArrayList<>();
+        for (int i = 0; i < slots.length; i++) {
+            StationStats slotValue = slots[i];
+            if (slotValue != null) {
+                result.add(new Entry(keys[i], slotValue));
+            }
+        }
+        return result;
     }
-    return result;
-  }
 }
\ No newline at end of file
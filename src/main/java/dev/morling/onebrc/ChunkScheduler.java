@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongUnaryOperator;
+
+import dev.morling.onebrc.AggregationEngine.Chunk;
+
+/**
+ * Hands out newline aligned chunks of a file to worker threads from a shared cursor, instead
+ * of cutting it into one segment per core up front. A thread that is slowed down, e.g. by page
+ * faults or a noisy neighbour, simply claims fewer chunks, so nobody waits on a straggler.
+ *
+ * <p>The chunk size follows the observed throughput: each {@link Worker} reports how long its
+ * last chunk took and the next chunks are sized to take about {@link #TARGET_NANOS}. Towards
+ * the end chunks shrink further, so that all workers run out of work at about the same time.
+ */
+final class ChunkScheduler {
+
+    static final long MIN_CHUNK_SIZE = 1 << 20;
+    static final long MAX_CHUNK_SIZE = 64 << 20;
+    static final long INITIAL_CHUNK_SIZE = 4 << 20;
+    static final long TARGET_NANOS = 20_000_000;
+
+    private final long size;
+    private final int workers;
+    private final LongUnaryOperator nextLineStart;
+    // raw offset of the next claim, the claiming worker moves both ends of its claim to a line start
+    private final AtomicLong cursor = new AtomicLong();
+    // bytes per millisecond over all workers' recent chunks, racy updates only lose a sample
+    private volatile long throughput;
+
+    ChunkScheduler(long size, int workers, LongUnaryOperator nextLineStart) {
+        this.size = size;
+        this.workers = workers;
+        this.nextLineStart = nextLineStart;
+    }
+
+    static ChunkScheduler forSegment(MemorySegment data, int workers) {
+        return new ChunkScheduler(data.byteSize(), workers, offset -> Splitters.nextLineStart(data, offset));
+    }
+
+    /**
+     * Aligns chunks by reading the file around the cut, for the implementations that map one
+     * chunk at a time. The reads are positional, so all workers share the caller's channel.
+     */
+    static ChunkScheduler forFile(FileChannel channel, int workers) throws IOException {
+        long size = channel.size();
+        return new ChunkScheduler(size, workers, offset -> nextLineStart(channel, size, offset));
+    }
+
+    private static long nextLineStart(FileChannel channel, long size, long offset) {
+        if (offset == 0 || offset >= size) {
+            return Math.min(offset, size);
+        }
+        var buffer = ByteBuffer.allocate(128);
+        long position = offset - 1;
+        try {
+            while (position < size) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') {
+                        return position + i + 1;
+                    }
+                }
+                position += Math.max(read, 0);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return size;
+    }
+
+    /** One per thread, not thread safe itself */
+    Worker worker() {
+        return new Worker();
+    }
+
+    final class Worker {
+        private long claimed;
+        private long startNanos;
+
+        /** Claims the next chunk, reporting the previous one as done; null when the file is exhausted */
+        Chunk next() {
+            long now = System.nanoTime();
+            if (claimed > 0) {
+                observe(claimed, now - startNanos);
+            }
+            startNanos = now;
+            while (true) {
+                long length = chunkSize(size - cursor.get());
+                long from = cursor.getAndAdd(length);
+                if (from >= size) {
+                    claimed = 0;
+                    return null;
+                }
+                // aligned only once claimed, so a lost race costs no reads; the line cut at
+                // either end belongs to the claim it starts in
+                long start = nextLineStart.applyAsLong(from);
+                long end = nextLineStart.applyAsLong(Math.min(size, from + length));
+                if (start < end) {
+                    claimed = end - start;
+                    return new Chunk(start, end);
+                }
+            }
+        }
+    }
+
+    private void observe(long bytes, long nanos) {
+        long sample = bytes * 1_000_000 / Math.max(nanos, 1);
+        long previous = throughput;
+        throughput = previous == 0 ? sample : (previous * 3 + sample) / 4;
+    }
+
+    long chunkSize(long remaining) {
+        long perMilli = throughput;
+        long chunk = perMilli == 0 ? INITIAL_CHUNK_SIZE : perMilli * (TARGET_NANOS / 1_000_000);
+        chunk = Math.min(chunk, remaining / (2L * workers));
+        return Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunk));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import static dev.morling.onebrc.CalculateAverage_columnar.BLOCK_ROWS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Converts a {@code measurements.txt} into the binary columnar format read by
+ * {@link CalculateAverage_columnar}: station names are replaced by dictionary ids in the order
+ * of their first appearance, values are stored as tenths in a short.
+ *
+ * <pre>
+ * java dev.morling.onebrc.ConvertMeasurements [measurements.txt] [measurements.bin]
+ * </pre>
+ */
+public class ConvertMeasurements {
+
+    public static void main(String[] args) throws IOException {
+        var input = Path.of(args.length > 0 ? args[0] : "./measurements.txt");
+        var output = Path.of(args.length > 1 ? args[1] : "./measurements.bin");
+        long start = System.currentTimeMillis();
+        long rows = convert(input, output);
+        System.out.println("Converted " + rows + " rows into " + output + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    static long convert(Path input, Path output) throws IOException {
+        try (var in = FileChannel.open(input, StandardOpenOption.READ);
+                var out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                var arena = Arena.ofConfined()) {
+            MemorySegment data = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size(), arena);
+            var writer = new BlockWriter(out);
+            var dictionary = new Dictionary();
+            long size = data.byteSize();
+            long pos = 0;
+            while (pos < size) {
+                long nameStart = pos;
+                while (data.get(JAVA_BYTE, pos) != ';') {
+                    pos++;
+                }
+                int id = dictionary.id(data, nameStart, (int) (pos++ - nameStart));
+                int tenths = 0;
+                int sign = 1;
+                byte b;
+                while (pos < size && (b = data.get(JAVA_BYTE, pos++)) != '\n') {
+                    if (b == '-') {
+                        sign = -1;
+                    }
+                    else if (b >= '0' && b <= '9') {
+                        tenths = tenths * 10 + (b - '0');
+                    }
+                }
+                writer.add(id, sign * tenths);
+            }
+            return writer.finish(dictionary);
+        }
+    }
+
+    /** Name to id, ids are dense and assigned in order of first appearance */
+    private static final class Dictionary {
+        private static final int CAPACITY = 1 << 17; // twice the number of ids a short can hold
+
+        private final byte[][] keys = new byte[CAPACITY][];
+        private final int[] ids = new int[CAPACITY];
+        private final byte[][] names = new byte[CalculateAverage_columnar.MAX_STATIONS][];
+        private int size;
+
+        int id(MemorySegment data, long offset, int length) {
+            int slot = StationTables.hash31(data, offset, length) & (CAPACITY - 1);
+            while (keys[slot] != null) {
+                if (StationTables.keyEquals(keys[slot], data, offset, length)) {
+                    return ids[slot];
+                }
+                slot = (slot + 1) & (CAPACITY - 1);
+            }
+            if (size == names.length) {
+                throw new IllegalStateException("More than " + names.length + " distinct stations");
+            }
+            keys[slot] = StationTables.copyKey(data, offset, length);
+            names[size] = keys[slot];
+            return ids[slot] = size++;
+        }
+    }
+
+    /** Buffers one block of rows and writes it with its header once full */
+    private static final class BlockWriter {
+        private final FileChannel out;
+        private final short[] stations = new short[BLOCK_ROWS];
+        private final short[] values = new short[BLOCK_ROWS];
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect((int) CalculateAverage_columnar.blockSize(BLOCK_ROWS))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        private int rows;
+        private long total;
+
+        BlockWriter(FileChannel out) {
+            this.out = out;
+        }
+
+        void add(int station, int tenths) throws IOException {
+            stations[rows] = (short) station;
+            values[rows] = (short) tenths;
+            if (++rows == BLOCK_ROWS) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (rows == 0) {
+                return;
+            }
+            int minStation = Integer.MAX_VALUE;
+            int maxStation = Integer.MIN_VALUE;
+            int minTenths = Integer.MAX_VALUE;
+            int maxTenths = Integer.MIN_VALUE;
+            for (int i = 0; i < rows; i++) {
+                minStation = Math.min(minStation, Short.toUnsignedInt(stations[i]));
+                maxStation = Math.max(maxStation, Short.toUnsignedInt(stations[i]));
+                minTenths = Math.min(minTenths, values[i]);
+                maxTenths = Math.max(maxTenths, values[i]);
+            }
+            buffer.clear();
+            buffer.putInt(rows)
+                    .putShort((short) minStation).putShort((short) maxStation)
+                    .putShort((short) minTenths).putShort((short) maxTenths)
+                    .putInt(0);
+            for (int i = 0; i < rows; i++) {
+                buffer.putShort(stations[i]);
+            }
+            for (int i = 0; i < rows; i++) {
+                buffer.putShort(values[i]);
+            }
+            write(buffer.flip());
+            total += rows;
+            rows = 0;
+        }
+
+        /** Writes the last block, the dictionary and the footer; returns the number of rows */
+        long finish(Dictionary dictionary) throws IOException {
+            flush();
+            long dictionaryOffset = out.position();
+            for (int id = 0; id < dictionary.size; id++) {
+                byte[] name = dictionary.names[id];
+                var entry = ByteBuffer.allocate(2 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+                write(entry.putShort((short) name.length).put(name).flip());
+            }
+            var footer = ByteBuffer.allocate(CalculateAverage_columnar.FOOTER).order(ByteOrder.LITTLE_ENDIAN);
+            footer.putLong(dictionaryOffset)
+                    .putLong(total)
+                    .putInt(dictionary.size)
+                    .putInt(BLOCK_ROWS)
+                    .putInt(CalculateAverage_columnar.VERSION)
+                    .putInt(CalculateAverage_columnar.MAGIC);
+            write(footer.flip());
+            return total;
+        }
+
+        private void write(ByteBuffer bytes) throws IOException {
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+        }
+    }
+}
@@ -19,15 +19,17 @@ import java.io.BufferedWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.SplittableRandom;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
 
 public class CreateMeasurements {
 
     private static final Path MEASUREMENT_FILE = Path.of("./measurements.txt");
 
     private record WeatherStation(String id, double meanTemperature) {
-        double measurement() {
-            double m = ThreadLocalRandom.current().nextGaussian(meanTemperature, 10);
+        double measurement(RandomGenerator random) {
+            double m = random.nextGaussian(meanTemperature, 10);
             return Math.round(m * 10.0) / 10.0;
         }
     }
@@ -35,20 +37,25 @@ public class CreateMeasurements {
     public static void main(String[] args) throws Exception {
         long start = System.currentTimeMillis();
 
-        if (args.length != 1) {
-            System.out.println("Usage: create_measurements.sh <number of records to create>");
+        if (args.length != 1 && args.length != 2) {
+            System.out.println("Usage: create_measurements.sh <number of records to create> [<seed>]");
             System.exit(1);
         }
 
         int size = 0;
+        long seed = 0;
         try {
             size = Integer.parseInt(args[0]);
+            seed = args.length == 2 ? Long.parseLong(args[1]) : ThreadLocalRandom.current().nextLong();
         }
         catch (NumberFormatException e) {
-            System.out.println("Invalid value for <number of records to create>");
-            System.out.println("Usage: CreateMeasurements <number of records to create>");
+            System.out.println("Invalid value for <number of records to create> or <seed>");
+            System.out.println("Usage: CreateMeasurements <number of records to create> [<seed>]");
             System.exit(1);
         }
+        // the same seed gives the same file, print it so that a run can be repeated
+        System.out.println("Seed: " + seed);
+        SplittableRandom random = new SplittableRandom(seed);
 
         // @formatter:off
         // data from https://en.wikipedia.org/wiki/List_of_cities_by_average_temperature;
@@ -494,9 +501,9 @@ public class CreateMeasurements {
                 if (i > 0 && i % 50_000_000 == 0) {
                     System.out.printf("Wrote %,d measurements in %s ms%n", i, System.currentTimeMillis() - start);
                 }
-                WeatherStation station = stations.get(ThreadLocalRandom.current().nextInt(stations.size()));
+                WeatherStation station = stations.get(random.nextInt(stations.size()));
                 bw.write(station.id());
-                bw.write(";" + station.measurement());
+                bw.write(";" + station.measurement(random));
                 bw.newLine();
             }
         }
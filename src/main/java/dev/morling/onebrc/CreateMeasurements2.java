@@ -15,16 +15,28 @@
  */
 package dev.morling.onebrc;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
 
-import org.rschwietzke.CheaperCharBuffer;
-import org.rschwietzke.FastRandom;
+import org.rschwietzke.CheaperByteBuffer;
 
 /**
  * Faster version with some data faking instead of a real Gaussian distribution
@@ -34,20 +46,23 @@ public class CreateMeasurements2 {
 
     private static final String FILE = "./measurements2.txt";
 
-    static class WeatherStation {
-        final static char[] NUMBERS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9' };
+    // seed, sizes and checksums of the file, to regenerate it or tell whether it is still the same
+    private static final Path MANIFEST = Path.of("./measurements2.manifest");
+
+    // rows are generated in chunks of this many, which end up in the file in order, each with its checksum
+    static final int CHUNK_ROWS = 1 << 20;
 
+    static class WeatherStation {
         final String id;
         final int meanTemperature;
 
-        final char[] firstPart;
-        final FastRandom r = new FastRandom(ThreadLocalRandom.current().nextLong());
+        final byte[] firstPart;
 
         WeatherStation(String id, double meanTemperature) {
             this.id = id;
             this.meanTemperature = (int) meanTemperature;
-            // make it directly copyable
-            this.firstPart = (id + ";").toCharArray();
+            // make it directly copyable, encoded once instead of for every row
+            this.firstPart = CheaperByteBuffer.encode(id + ";");
         }
 
         /**
@@ -56,40 +71,251 @@ public class CreateMeasurements2 {
          * purpose, the fake numbers here will do it. Less
          *
          * @param buffer the buffer to append to
+         * @param bits the random bits of the row, see {@link #rowBits(long, long)}, the lower half is used
          */
-        void measurement(final CheaperCharBuffer buffer) {
-        	// fake -10.9 to +10.9 variance without double operations and rounding
-        	// gives us -10 to +10
-            int m = meanTemperature + (r.nextInt(21) - 10);
-            // gives us a decimal digit 0 to 9 as char
-            char d = NUMBERS[r.nextInt(10)];
-
-            // just append, only one number has to be converted and we can do
-            // better... if we watn
-            buffer.append(firstPart, 0, firstPart.length)
-                    .append(String.valueOf(m)).append('.').append(d)
-                    .append('\n');
+        void measurement(final CheaperByteBuffer buffer, final long bits) {
+            // fake -10.9 to +10.9 variance without double operations and rounding,
+            // 0 to 209 from the lower 32 bits, without a division or modulo bias worth mentioning
+            int v = (int) (((bits & 0xFFFFFFFFL) * 210) >>> 32);
+            // gives us -10 to +10
+            int m = meanTemperature + (v / 10 - 10);
+            // gives us a decimal digit 0 to 9, which moves away from zero as in "-3.5"
+            int d = v % 10;
+
+            // just append, the number is formatted right into the buffer
+            buffer.append(firstPart)
+                    .appendTenths(m * 10 + (m < 0 ? -d : d))
+                    .append((byte) '\n');
+        }
+    }
+
+    /** Picks the station of a row, from the row's number and its random bits, see {@link #rowBits(long, long)} */
+    @FunctionalInterface
+    interface StationPicker {
+        int pick(long row, long bits);
+    }
+
+    /**
+     * How the stations are named and how often each of them comes up, so that the tables and
+     * parsers can be measured against worse cases than 413 evenly spread ASCII names as well.
+     * Named stations keep the mean temperature of the station they replace.
+     */
+    enum Distribution {
+        /** Every station equally likely, the default */
+        UNIFORM,
+        /** The n-th most frequent station comes up with a probability proportional to 1/n, the ranks shuffled by the seed */
+        ZIPF,
+        /** Uniform, except that every fourth window of {@link #BURST_ROWS} rows mostly repeats a single station */
+        HOT,
+        /** Names of 61 to 100 bytes, padded with two, three and four byte UTF-8 characters */
+        LONG,
+        /** Names of two to seven CJK ideographs, three bytes each in UTF-8 */
+        CJK,
+        /** Names made of "Aa" and "BB" pairs, all of the same length and with the same {@code 31 * h + b} hash */
+        COLLIDE;
+
+        static final int BURST_ROWS = 1 << 16;
+
+        // padding for the long names, cycled through from a position given by the station
+        private static final String[] WIDE = { "é", "ß", "ж", "Ω", "€", "ก", "中", "😀" };
+
+        static Distribution forName(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+
+        List<WeatherStation> rename(List<WeatherStation> stations) {
+            if (this != LONG && this != CJK && this != COLLIDE) {
+                return stations;
+            }
+            final List<WeatherStation> renamed = new ArrayList<>(stations.size());
+            final int pairs = Math.max(1, 64 - Long.numberOfLeadingZeros(stations.size() - 1L));
+            for (int i = 0; i < stations.size(); i++) {
+                final WeatherStation station = stations.get(i);
+                final long bits = rowBits(0, ~i);
+                final String name = switch (this) {
+                    case LONG -> longName(station.id, i, bits);
+                    case CJK -> cjkName(i, stations.size(), bits);
+                    default -> collidingName(i, pairs);
+                };
+                renamed.add(new WeatherStation(name, station.meanTemperature));
+            }
+            return renamed;
+        }
+
+        StationPicker picker(int stationCount, long seed) {
+            final StationPicker uniform = (row, bits) -> (int) (((bits >>> 32) * stationCount) >>> 32);
+            return switch (this) {
+                case ZIPF -> zipf(stationCount, seed);
+                case HOT -> (row, bits) -> {
+                    // the same for all rows of a window, however the rows are chunked
+                    final long window = rowBits(~seed, row / BURST_ROWS);
+                    if ((window & 3) == 0 && ((bits >>> 32) & 7) != 0) {
+                        return (int) (((window >>> 32) * stationCount) >>> 32);
+                    }
+                    return uniform.pick(row, bits);
+                };
+                default -> uniform;
+            };
+        }
+
+        /** The name plus padding up to a length of 64 to 100 bytes, less what doesn't fit of the last character */
+        private static String longName(String name, int index, long bits) {
+            final int target = 64 + (int) (((bits & 0xFFFFFFFFL) * 37) >>> 32);
+            final StringBuilder sb = new StringBuilder(name).append(' ');
+            int length = CheaperByteBuffer.encode(name).length + 1;
+            for (int i = index;; i++) {
+                final String c = WIDE[i % WIDE.length];
+                final int width = CheaperByteBuffer.encode(c).length;
+                if (length + width > target) {
+                    return sb.toString();
+                }
+                sb.append(c);
+                length += width;
+            }
+        }
+
+        /**
+         * The station's index in base 0x5000 as ideographs from U+4E00 on, least significant first
+         * and as many as the largest index needs, which keeps the names unique, plus up to five more
+         * for varying lengths.
+         */
+        private static String cjkName(int index, int count, long bits) {
+            final StringBuilder sb = new StringBuilder();
+            int digits = 2;
+            for (long max = 0x5000L * 0x5000L; max < count; max *= 0x5000) {
+                digits++;
+            }
+            for (int d = 0; d < digits; d++) {
+                sb.append((char) (0x4E00 + (int) (index / (long) Math.pow(0x5000, d) % 0x5000)));
+            }
+            final int extra = (int) ((bits & 0xFFFF) % (8 - digits));
+            for (int i = 0; i < extra; i++) {
+                sb.append((char) (0x4E00 + (int) (((bits >>> (16 + 8 * i)) & 0xFF) * 0x50)));
+            }
+            return sb.toString();
+        }
+
+        /**
+         * "Aa" and "BB" add the same to a {@code 31 * h + b} hash, so all the names made of the
+         * same number of these pairs collide, in the full 32 bits and in every table size.
+         */
+        private static String collidingName(int index, int pairs) {
+            final StringBuilder sb = new StringBuilder(pairs * 2);
+            for (int p = pairs - 1; p >= 0; p--) {
+                sb.append((index >>> p & 1) == 0 ? "Aa" : "BB");
+            }
+            return sb.toString();
+        }
+
+        /** Inverse of the cumulative distribution, found by binary search over the upper 32 bits */
+        private static StationPicker zipf(int stationCount, long seed) {
+            // shuffled so that it's not always the first city that comes up the most
+            final int[] byRank = new int[stationCount];
+            final SplittableRandom random = new SplittableRandom(seed);
+            for (int i = 0; i < stationCount; i++) {
+                final int j = random.nextInt(i + 1);
+                byRank[i] = byRank[j];
+                byRank[j] = i;
+            }
+            double total = 0;
+            for (int rank = 1; rank <= stationCount; rank++) {
+                total += 1.0 / rank;
+            }
+            final long[] bounds = new long[stationCount];
+            double cumulative = 0;
+            for (int rank = 1; rank <= stationCount; rank++) {
+                cumulative += 1.0 / rank / total;
+                bounds[rank - 1] = (long) (cumulative * (1L << 32));
+            }
+            bounds[stationCount - 1] = 1L << 32;
+            return (row, bits) -> {
+                final int at = Arrays.binarySearch(bounds, bits >>> 32);
+                return byRank[at >= 0 ? at + 1 : -at - 1];
+            };
         }
     }
 
     public static void main(String[] args) throws Exception {
         long start = System.currentTimeMillis();
 
-        if (args.length != 1) {
-            System.out.println("Usage: create_measurements.sh <number of records to create>");
+        if (args.length < 1 || args.length > 4) {
+            System.out.println("Usage: create_measurements2.sh <number of records to create> [<number of distinct stations> [<seed> [<distribution>]]]");
             System.exit(1);
         }
 
         int size = 0;
+        int stationCount = 0;
+        long seed = 0;
+        Distribution distribution = Distribution.UNIFORM;
         try {
             size = Integer.parseInt(args[0]);
+            stationCount = args.length >= 2 ? Integer.parseInt(args[1]) : 0;
+            seed = args.length >= 3 ? Long.parseLong(args[2]) : ThreadLocalRandom.current().nextLong();
         }
         catch (NumberFormatException e) {
-            System.out.println("Invalid value for <number of records to create>");
-            System.out.println("Usage: CreateMeasurements <number of records to create>");
+            System.out.println("Invalid value for <number of records to create>, <number of distinct stations> or <seed>");
+            System.out.println("Usage: CreateMeasurements2 <number of records to create> [<number of distinct stations> [<seed> [<distribution>]]]");
+            System.exit(1);
+        }
+        try {
+            distribution = args.length == 4 ? Distribution.forName(args[3]) : Distribution.UNIFORM;
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("Unknown distribution " + args[3] + ", expected one of " + Arrays.toString(Distribution.values()).toLowerCase(Locale.ROOT));
+            System.exit(1);
+        }
+        if (stationCount < 0) {
+            System.out.println("The number of distinct stations must not be negative");
             System.exit(1);
         }
 
+        final List<WeatherStation> cities = cities();
+        final List<WeatherStation> stations = distribution.rename(stationCount == 0 ? cities : stations(cities, stationCount));
+        final StationPicker picker = distribution.picker(stations.size(), seed);
+        // the same seed, rows and stations give the same file, print it so that a run can be repeated
+        System.out.println("Seed: " + seed);
+
+        // the threads take the chunks in order and generate them into their buffer, a chunk is
+        // placed right behind the one before it, which is also when it is added to the checksum
+        // of the whole file, so the file doesn't depend on the number of threads or their timing;
+        // the file is preallocated to the expected size up front and cut to the bytes actually
+        // written at the end
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final int chunks = (int) ((size + CHUNK_ROWS - 1L) / CHUNK_ROWS);
+        final Chunk[] done = new Chunk[chunks];
+        final List<CompletableFuture<Long>> ends = new ArrayList<>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            ends.add(new CompletableFuture<>());
+        }
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicLong written = new AtomicLong();
+        final CRC32C fileCrc = new CRC32C();
+        final long fileSeed = seed;
+        final int rows = size;
+        try (RandomAccessFile file = new RandomAccessFile(FILE, "rw");
+                FileChannel channel = file.getChannel();
+                ExecutorService executor = Executors.newFixedThreadPool(threads)) {
+            file.setLength(expectedSize(stations, size));
+
+            final List<Future<?>> parts = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                parts.add(executor.submit(() -> {
+                    produce(channel, stations, picker, fileSeed, rows, next, ends, done, fileCrc, written, start);
+                    return null;
+                }));
+            }
+            for (Future<?> part : parts) {
+                part.get();
+            }
+            final long length = chunks == 0 ? 0 : ends.get(chunks - 1).join();
+            file.setLength(length);
+            writeManifest(seed, size, stationCount, distribution, length, fileCrc.getValue(), done);
+            System.out.println("Created file with %,d measurements in %s ms".formatted(size, System.currentTimeMillis() - start));
+        }
+    }
+
+    /** The 413 cities with their mean temperature */
+    static List<WeatherStation> cities() {
         // @formatter:off
         // data from https://en.wikipedia.org/wiki/List_of_cities_by_average_temperature;
         // converted using https://wikitable2csv.ggor.de/
@@ -114,7 +340,7 @@ public class CreateMeasurements2 {
         //         )
         // ) TO 'output.csv' (HEADER, DELIMITER ',');
         // @formatter:on
-        final List<WeatherStation> stations = Arrays.asList(
+        return Arrays.asList(
                 new WeatherStation("Abha", 18.0),
                 new WeatherStation("Abidjan", 26.0),
                 new WeatherStation("Abéché", 29.4),
@@ -528,96 +754,124 @@ public class CreateMeasurements2 {
                 new WeatherStation("Zagreb", 10.7),
                 new WeatherStation("Zanzibar City", 26.0),
                 new WeatherStation("Zürich", 9.3));
+    }
 
-        File file = new File(FILE);
+    /** Where a chunk of rows ended up in the file and its checksum, for the manifest */
+    private record Chunk(long offset, int length, long crc) {
+    }
 
-        // break the loop and unroll it manually
-        int strideSize = 50_000_000;
-        int outer = size / strideSize;
-        int remainder = size - (outer * strideSize);
+    /** Rows times the mean length of a row if every station is equally likely, the file is cut or grows as needed */
+    private static long expectedSize(List<WeatherStation> stations, int rows) {
+        long prefixes = 0;
+        for (WeatherStation station : stations) {
+            prefixes += station.firstPart.length;
+        }
+        // value, dot, decimal digit and newline, a little generous for the sign and second digit
+        return (long) (rows * ((double) prefixes / stations.size() + 5));
+    }
 
-        try (final BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
-            for (int i = 0; i < outer; i++) {
-                produce(bw, stations, strideSize);
+    /**
+     * High cardinality mode: the first {@code count} cities, and if that's not enough, the
+     * cities again with a running number appended, e.g. "Hamburg 17", each with the mean
+     * of its city. Lets the tables be tested with far more than the 10K stations the
+     * challenge allows; every station costs over a hundred bytes of heap, so millions of
+     * them need a correspondingly larger -Xmx.
+     */
+    static List<WeatherStation> stations(List<WeatherStation> cities, int count) {
+        final List<WeatherStation> stations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final WeatherStation city = cities.get(i % cities.size());
+            final int round = i / cities.size();
+            stations.add(round == 0 ? city : new WeatherStation(city.id + " " + round, city.meanTemperature));
+        }
+        return stations;
+    }
 
-                // we avoid a modulo if here and use the stride size to print and update
-                System.out.println("Wrote %,d measurements in %s ms".formatted((i + 1) * strideSize, System.currentTimeMillis() - start));
-            }
-            // there might be a rest
-            produce(bw, stations, remainder);
+    private static void produce(FileChannel channel, List<WeatherStation> stations, StationPicker picker, long seed, int rows, AtomicInteger next,
+                                List<CompletableFuture<Long>> ends, Chunk[] done, CRC32C fileCrc, AtomicLong written, long start)
+            throws IOException {
+        // write to a buffer first, don't create strings ever, it is reused for all chunks of
+        // the thread and grows to the size of the largest one
+        final CheaperByteBuffer sb = new CheaperByteBuffer(Math.min(rows, CHUNK_ROWS) * 16);
+        final CRC32C crc = new CRC32C();
+        for (int c = next.getAndIncrement(); c < ends.size(); c = next.getAndIncrement()) {
+            final long from = (long) c * CHUNK_ROWS;
+            final long to = Math.min(from + CHUNK_ROWS, rows);
+            generate(sb.clear(), stations, picker, seed, from, to);
+            crc.reset();
+            crc.update(sb.data_, 0, sb.length());
 
-            // write fully before taking measurements
-            bw.flush();
-            System.out.println("Created file with %,d measurements in %s ms".formatted(size, System.currentTimeMillis() - start));
+            // the chunk before has been claimed earlier and never waits for a later one
+            final long offset = c == 0 ? 0 : ends.get(c - 1).join();
+            fileCrc.update(sb.data_, 0, sb.length());
+            ends.get(c).complete(offset + sb.length());
+
+            write(channel, offset, sb);
+            done[c] = new Chunk(offset, sb.length(), crc.getValue());
+            report(written, to - from, start);
         }
     }
 
-    private static void produce(BufferedWriter bw, List<WeatherStation> stations, int count) throws IOException {
-        final int stationCount = stations.size();
-        final int rest = count % 8;
-
-        // use a fast ranodm impl without atomics to be able to utilize the cpu better
-        // and avoid sideeffects, FastRandom is very fake random and does not have a state
-        final FastRandom r1 = new FastRandom(ThreadLocalRandom.current().nextLong());
-        final FastRandom r2 = new FastRandom(ThreadLocalRandom.current().nextLong());
-        final FastRandom r3 = new FastRandom(ThreadLocalRandom.current().nextLong());
-        final FastRandom r4 = new FastRandom(ThreadLocalRandom.current().nextLong());
-
-        // write to a fix buffer first, don't create strings ever
-        // reuse buffer
-        final CheaperCharBuffer sb = new CheaperCharBuffer(200);
-
-        // manual loop unroll for less jumps
-        for (int i = 0; i < count; i = i + 8) {
-        	{
-        		// try to fill teh cpu pipeline as much as possible with
-        		// independent operations
-        		int s1 = r1.nextInt(stationCount);
-        		int s2 = r2.nextInt(stationCount);
-        		int s3 = r3.nextInt(stationCount);
-        		int s4 = r4.nextInt(stationCount);
-        		// get us the ojects one after the other to have the array
-        		// in our L1 cache and not push it out with other data
-        		var w1 = stations.get(s1);
-        		var w2 = stations.get(s2);
-        		var w3 = stations.get(s3);
-        		var w4 = stations.get(s4);
-        		// write our data to our buffer
-        		w1.measurement(sb);
-        		w2.measurement(sb);
-        		w3.measurement(sb);
-        		w4.measurement(sb);
-        	}
-        	{
-        		int s1 = r1.nextInt(stationCount);
-        		int s2 = r2.nextInt(stationCount);
-        		int s3 = r3.nextInt(stationCount);
-        		int s4 = r4.nextInt(stationCount);
-        		var w1 = stations.get(s1);
-        		var w2 = stations.get(s2);
-        		var w3 = stations.get(s3);
-        		var w4 = stations.get(s4);
-        		w1.measurement(sb);
-        		w2.measurement(sb);
-        		w3.measurement(sb);
-        		w4.measurement(sb);
-        	}
-            // write the buffer directly, no intermediate string copy
-            bw.write(sb.data_, 0, sb.length_);
-
-            // reuse buffer, reset only, no cleaning
-            sb.clear();
+    /**
+     * Appends the rows {@code from} (inclusive) to {@code to} (exclusive) of the file with the
+     * given stations, picker and seed. Every row only depends on its index, so any slice of the
+     * file can be generated again on its own, e.g. the chunk in which a checksum doesn't match.
+     */
+    static void generate(CheaperByteBuffer sb, List<WeatherStation> stations, StationPicker picker, long seed, long from, long to) {
+        for (long row = from; row < to; row++) {
+            final long bits = rowBits(seed, row);
+            // the upper half picks the station, the lower half the measurement
+            stations.get(picker.pick(row, bits)).measurement(sb, bits);
         }
+    }
+
+    /**
+     * The random bits of a row, a SplitMix64 step at the row's position of the seed's sequence
+     * instead of the next value of a generator, so it can be computed for any row in any order.
+     */
+    static long rowBits(long seed, long row) {
+        long z = seed + (row + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
 
-        // there might be a rest to write
-        for (int i = 0; i < rest; i++) {
-            sb.clear();
+    /** Writes the rows at their position of the file */
+    private static void write(FileChannel channel, long at, CheaperByteBuffer sb) throws IOException {
+        final ByteBuffer block = ByteBuffer.wrap(sb.data_, 0, sb.length());
+        while (block.hasRemaining()) {
+            at += channel.write(block, at);
+        }
+    }
 
-            int s = r1.nextInt(stationCount);
-            var w = stations.get(s);
-            w.measurement(sb);
+    /**
+     * Plain text, one key and value per line and one line per chunk with its offset, length and
+     * CRC32C, so a file can be regenerated with the same arguments and compared chunk by chunk.
+     */
+    private static void writeManifest(long seed, int rows, int stations, Distribution distribution, long size, long crc, Chunk[] chunks)
+            throws IOException {
+        final String name = distribution.name().toLowerCase(Locale.ROOT);
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(MANIFEST))) {
+            out.println("# create_measurements2.sh %d %d %d %s".formatted(rows, stations, seed, name));
+            out.println("file=" + Path.of(FILE).getFileName());
+            out.println("rows=" + rows);
+            out.println("stations=" + stations);
+            out.println("seed=" + seed);
+            out.println("distribution=" + name);
+            out.println("chunkRows=" + CHUNK_ROWS);
+            out.println("size=" + size);
+            out.println("crc32c=%08x".formatted(crc));
+            for (int c = 0; c < chunks.length; c++) {
+                out.println("chunk=%d %d %d %08x".formatted(c, chunks[c].offset(), chunks[c].length(), chunks[c].crc()));
+            }
+        }
+    }
 
-            bw.write(sb.data_, 0, sb.length_);
+    private static void report(AtomicLong written, long rows, long start) {
+        final int strideSize = 50_000_000;
+        long before = written.getAndAdd(rows);
+        if ((before + rows) / strideSize != before / strideSize) {
+            System.out.println("Wrote %,d measurements in %s ms".formatted((before + rows) / strideSize * strideSize, System.currentTimeMillis() - start));
         }
     }
 }
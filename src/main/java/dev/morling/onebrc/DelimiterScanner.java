@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Finds the ';' and '\n' delimiters of a {@link MemorySegment} 64 bytes at a time and hands
+ * them out as a bitset, bit i standing for byte {@code offset + i}. A station name never
+ * contains either delimiter, so the set bits alternate between separator and newline and a
+ * parser simply takes two positions per line from a {@link Cursor}.
+ *
+ * <p>{@code -Donebrc.scanner=vector} compares whole {@link ByteVector}s, {@code scalar} works
+ * on eight byte words (SWAR). By default the vector scanner is used when the
+ * {@code jdk.incubator.vector} module is present and {@code SPECIES_PREFERRED} is at least
+ * 256 bits wide, narrower vectors need too many loads per block to beat the words.
+ */
+abstract class DelimiterScanner {
+
+    static final int BLOCK = Long.SIZE;
+
+    private static final ValueLayout.OfLong LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private DelimiterScanner() {
+    }
+
+    /** Delimiter bitset of {@code data[offset, offset + 64)}, which must lie within the segment */
+    abstract long scan(MemorySegment data, long offset);
+
+    abstract String name();
+
+    static DelimiterScanner forName(String name) {
+        return switch (name) {
+            case "vector" -> new Vectorized();
+            case "scalar" -> new Scalar();
+            default -> throw new IllegalArgumentException("Unknown scanner " + name + ", expected vector or scalar");
+        };
+    }
+
+    /** The scanner picked by {@code -Donebrc.scanner}, or the faster one for this machine */
+    static DelimiterScanner preferred() {
+        String name = System.getProperty("onebrc.scanner");
+        if (name != null) {
+            return forName(name);
+        }
+        boolean vectorModule = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+        return vectorModule && Vectorized.wide() ? new Vectorized() : new Scalar();
+    }
+
+    /** Byte by byte, for the last block of a segment */
+    static long scanTail(MemorySegment data, long offset, long limit) {
+        long bits = 0;
+        for (long i = offset; i < limit; i++) {
+            byte b = data.get(JAVA_BYTE, i);
+            if (b == ';' || b == '\n') {
+                bits |= 1L << (i - offset);
+            }
+        }
+        return bits;
+    }
+
+    /** Walks the delimiters of {@code data[start, end)} in order */
+    Cursor cursor(MemorySegment data, long start, long end) {
+        return new Cursor(this, data, start, end);
+    }
+
+    static final class Cursor {
+        private final DelimiterScanner scanner;
+        private final MemorySegment data;
+        private final long end;
+        private long base;
+        private long bits;
+
+        private Cursor(DelimiterScanner scanner, MemorySegment data, long start, long end) {
+            this.scanner = scanner;
+            this.data = data;
+            this.end = end;
+            this.base = start - BLOCK;
+        }
+
+        /** Position of the next delimiter, or the end of the range if there is none */
+        long next() {
+            while (bits == 0) {
+                base += BLOCK;
+                if (base >= end) {
+                    base = end - BLOCK;
+                    return end;
+                }
+                bits = base + BLOCK <= data.byteSize() ? scanner.scan(data, base) : scanTail(data, base, data.byteSize());
+                if (end - base < BLOCK) {
+                    bits &= (1L << (end - base)) - 1;
+                }
+            }
+            long position = base + Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            return position;
+        }
+    }
+
+    private static final class Vectorized extends DelimiterScanner {
+        private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+        static boolean wide() {
+            return SPECIES.vectorBitSize() >= 256;
+        }
+
+        @Override
+        long scan(MemorySegment data, long offset) {
+            long bits = 0;
+            for (int i = 0; i < BLOCK; i += SPECIES.length()) {
+                var v = ByteVector.fromMemorySegment(SPECIES, data, offset + i, ByteOrder.nativeOrder());
+                bits |= v.compare(VectorOperators.EQ, (byte) ';').or(v.compare(VectorOperators.EQ, (byte) '\n')).toLong() << i;
+            }
+            return bits;
+        }
+
+        @Override
+        String name() {
+            return "vector";
+        }
+    }
+
+    private static final class Scalar extends DelimiterScanner {
+        private static final long SEPARATORS = 0x3B3B3B3B3B3B3B3BL;
+        private static final long NEW_LINES = 0x0A0A0A0A0A0A0A0AL;
+        private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+        @Override
+        long scan(MemorySegment data, long offset) {
+            long bits = 0;
+            for (int i = 0; i < BLOCK; i += Long.BYTES) {
+                long word = data.get(LONG_LE, offset + i);
+                bits |= compress(zeroBytes(word ^ SEPARATORS) | zeroBytes(word ^ NEW_LINES)) << i;
+            }
+            return bits;
+        }
+
+        /** 0x80 in every byte that is zero, exact unlike the borrow based variant */
+        private static long zeroBytes(long word) {
+            return ~(((word & LOW_BITS) + LOW_BITS) | word | LOW_BITS);
+        }
+
+        /** Gathers the high bit of each byte into the low eight bits */
+        private static long compress(long highBits) {
+            return ((highBits >>> 7) * 0x0102040810204080L) >>> 56;
+        }
+
+        @Override
+        String name() {
+            return "scalar";
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Where the time of an {@link AggregationEngine} run goes, collected with
+ * {@code -Donebrc.metrics=json}, {@code -Donebrc.metrics=json:<file>} or {@code -Donebrc.metrics=jfr}
+ * only; otherwise the engine doesn't even create it. Every worker counts into a {@link Worker} of
+ * its own, plain fields that no other thread touches until the run is over, when they are added
+ * up: the chunks, rows and bytes of each worker, the time each chunk took to parse, the probes of
+ * its table and the time of the split and the merge. The JSON goes to stderr or the file; with
+ * {@code jfr}, every parsed chunk is a {@link FlightEvents.SegmentEvent} and the merge a
+ * {@link FlightEvents.PhaseEvent} of a recording started with {@code -XX:StartFlightRecording},
+ * followed by one {@link WorkerEvent} per worker and a {@link RunEvent} with the totals.
+ * <p>
+ * The rows are those the {@link AggregationEngine.LineParser} counts in its own loop and returns,
+ * so a run with metrics reads every chunk once, like one without.
+ */
+final class EngineMetrics {
+
+    static final String EXPORT = System.getProperty("onebrc.metrics");
+    static final boolean ENABLED = EXPORT != null;
+    static final boolean JFR = "jfr".equals(EXPORT);
+
+    private final String engine;
+    private final long start = System.nanoTime();
+    private final List<Worker> workers = new ArrayList<>();
+    private long splitNanos;
+    private long parseNanos;
+    private long mergeNanos;
+    private int segments;
+    private FlightEvents.PhaseEvent mergeEvent;
+
+    EngineMetrics(String engine) {
+        if (ENABLED && !JFR && !EXPORT.equals("json") && !EXPORT.startsWith("json:")) {
+            throw new IllegalArgumentException("Unknown metrics export " + EXPORT + ", expected json, json:<file> or jfr");
+        }
+        this.engine = engine;
+    }
+
+    /** One parsed chunk: its index in the run, where it starts in its file and what it held */
+    record Segment(int index, long offset, long bytes, long rows, long nanos) {
+    }
+
+    /** The counters of one worker thread, only ever touched by that thread until the run is over */
+    static final class Worker {
+
+        private final String engine;
+        private final int index;
+        private final String thread = Thread.currentThread().getName();
+        private final List<Segment> segments = new ArrayList<>();
+        private long rows;
+        private long bytes;
+        private long parseNanos;
+        private AggregationEngine.StationTable table;
+        private TableStats.Report stats;
+        private FlightEvents.SegmentEvent event;
+
+        private Worker(String engine, int index) {
+            this.engine = engine;
+            this.index = index;
+        }
+
+        /** Call right before parsing a chunk, hand the result to {@link #end} */
+        long begin() {
+            if (JFR) {
+                event = FlightEvents.SegmentEvent.begin(engine);
+            }
+            return System.nanoTime();
+        }
+
+        /** Call right after parsing the chunk {@code [start, end)}, which held {@code rows} rows */
+        void end(long begin, int index, long start, long end, long rows) {
+            long nanos = System.nanoTime() - begin;
+            segments.add(new Segment(index, start, end - start, rows, nanos));
+            this.rows += rows;
+            this.bytes += end - start;
+            this.parseNanos += nanos;
+            if (JFR) {
+                event.end();
+                event.offset = start;
+                event.length = end - start;
+                event.rows = rows;
+                event.commit();
+                event = null;
+            }
+        }
+
+        /** The worker's table, for its probe counters once all workers are done */
+        void table(AggregationEngine.StationTable table) {
+            this.table = table;
+        }
+    }
+
+    /** A worker for the calling thread */
+    synchronized Worker worker() {
+        var worker = new Worker(engine, workers.size());
+        workers.add(worker);
+        return worker;
+    }
+
+    /** The input is split into {@code segments} chunks */
+    void split(int segments) {
+        this.segments = segments;
+        splitNanos = System.nanoTime() - start;
+    }
+
+    /** All chunks are parsed, the merge starts */
+    void parsed() {
+        parseNanos = System.nanoTime() - start - splitNanos;
+        // only now, tables sharing a dictionary report the same numbers
+        for (Worker worker : workers) {
+            worker.stats = worker.table.stats();
+        }
+        if (JFR) {
+            mergeEvent = FlightEvents.PhaseEvent.begin(engine, FlightEvents.PhaseEvent.MERGE);
+        }
+    }
+
+    /** The merge is done with {@code stations} stations, writes out the metrics */
+    void merged(int stations) {
+        mergeNanos = System.nanoTime() - start - splitNanos - parseNanos;
+        if (JFR) {
+            mergeEvent.commit(stations);
+            commitSummary();
+        }
+        else {
+            export(toJson(stations));
+        }
+    }
+
+    private long rows() {
+        return workers.stream().mapToLong(w -> w.rows).sum();
+    }
+
+    private long bytes() {
+        return workers.stream().mapToLong(w -> w.bytes).sum();
+    }
+
+    /** The slowest worker's parse time over the mean one's, 1.0 if all took equally long */
+    private double skew() {
+        long max = workers.stream().mapToLong(w -> w.parseNanos).max().orElse(0);
+        double mean = workers.stream().mapToLong(w -> w.parseNanos).average().orElse(0);
+        return mean == 0 ? 1.0 : max / mean;
+    }
+
+    /** Tables sharing one dictionary all report the dictionary's numbers, so they count once */
+    private TableStats.Report table() {
+        return TableStats.Report.combine(workers.stream().map(w -> w.stats).filter(Objects::nonNull).distinct().toList());
+    }
+
+    private void commitSummary() {
+        for (Worker worker : workers) {
+            var event = new WorkerEvent();
+            event.engine = engine;
+            event.worker = worker.index;
+            event.thread = worker.thread;
+            event.segments = worker.segments.size();
+            event.rows = worker.rows;
+            event.bytes = worker.bytes;
+            event.parse = worker.parseNanos;
+            if (worker.stats != null) {
+                event.lookups = worker.stats.lookups();
+                event.probes = worker.stats.probes();
+            }
+            event.commit();
+        }
+        var event = new RunEvent();
+        event.engine = engine;
+        event.workers = workers.size();
+        event.segments = segments;
+        event.rows = rows();
+        event.bytes = bytes();
+        event.split = splitNanos;
+        event.parse = parseNanos;
+        event.merge = mergeNanos;
+        event.skew = skew();
+        var table = table();
+        if (table != null) {
+            event.lookups = table.lookups();
+            event.probes = table.probes();
+        }
+        event.commit();
+    }
+
+    String toJson(int stations) {
+        long wall = splitNanos + parseNanos + mergeNanos;
+        var json = new StringBuilder();
+        json.append("{\"engine\":").append(quote(engine))
+                .append(",\"stations\":").append(stations)
+                .append(",\"segments\":").append(segments)
+                .append(",\"rows\":").append(rows())
+                .append(",\"bytes\":").append(bytes())
+                .append(",\"wallMs\":").append(millis(wall))
+                .append(",\"splitMs\":").append(millis(splitNanos))
+                .append(",\"parseMs\":").append(millis(parseNanos))
+                .append(",\"mergeMs\":").append(millis(mergeNanos))
+                .append(",\"rowsPerSecond\":").append(perSecond(rows(), wall))
+                .append(",\"bytesPerSecond\":").append(perSecond(bytes(), wall))
+                .append(",\"skew\":").append(String.format(Locale.ROOT, "%.3f", skew()));
+        var table = table();
+        if (table != null) {
+            json.append(",\"table\":{\"name\":").append(quote(table.table()))
+                    .append(",\"hash\":").append(quote(table.hash()))
+                    .append(",\"lookups\":").append(table.lookups())
+                    .append(",\"probes\":").append(table.probes())
+                    .append(",\"maxProbe\":").append(table.maxProbe()).append('}');
+        }
+        json.append(",\"workers\":[");
+        for (int i = 0; i < workers.size(); i++) {
+            Worker worker = workers.get(i);
+            json.append(i == 0 ? "" : ",").append("{\"worker\":").append(worker.index)
+                    .append(",\"thread\":").append(quote(worker.thread))
+                    .append(",\"rows\":").append(worker.rows)
+                    .append(",\"bytes\":").append(worker.bytes)
+                    .append(",\"parseMs\":").append(millis(worker.parseNanos))
+                    .append(",\"rowsPerSecond\":").append(perSecond(worker.rows, worker.parseNanos));
+            if (worker.stats != null) {
+                json.append(",\"lookups\":").append(worker.stats.lookups()).append(",\"probes\":").append(worker.stats.probes());
+            }
+            json.append(",\"segments\":[");
+            for (int j = 0; j < worker.segments.size(); j++) {
+                Segment segment = worker.segments.get(j);
+                json.append(j == 0 ? "" : ",").append("{\"index\":").append(segment.index())
+                        .append(",\"offset\":").append(segment.offset())
+                        .append(",\"bytes\":").append(segment.bytes())
+                        .append(",\"rows\":").append(segment.rows())
+                        .append(",\"parseMs\":").append(millis(segment.nanos())).append('}');
+            }
+            json.append("]}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void export(String json) {
+        if (EXPORT.startsWith("json:")) {
+            try {
+                Files.writeString(Path.of(EXPORT.substring("json:".length())), json + "\n");
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        else {
+            System.err.println(json);
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static long perSecond(long count, long nanos) {
+        return nanos == 0 ? 0 : (long) (count * 1e9 / nanos);
+    }
+
+    private static String quote(String s) {
+        var quoted = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            switch (c) {
+                case '"' -> quoted.append("\\\"");
+                case '\\' -> quoted.append("\\\\");
+                default -> {
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        quoted.append(c);
+                    }
+                }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    @Name("dev.morling.onebrc.Worker")
+    @Label("Worker Summary")
+    @Category({ "1BRC", "Engine" })
+    @Description("What one worker parsed in a run, committed at its end")
+    static final class WorkerEvent extends Event {
+        @Label("Engine")
+        String engine;
+        @Label("Worker")
+        int worker;
+        @Label("Thread")
+        String thread;
+        @Label("Segments")
+        int segments;
+        @Label("Rows")
+        long rows;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Parse Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long parse;
+        @Label("Table Lookups")
+        long lookups;
+        @Label("Table Probes")
+        long probes;
+    }
+
+    @Name("dev.morling.onebrc.Run")
+    @Label("Run Summary")
+    @Category({ "1BRC", "Engine" })
+    @Description("The totals of a run, committed at its end")
+    static final class RunEvent extends Event {
+        @Label("Engine")
+        String engine;
+        @Label("Workers")
+        int workers;
+        @Label("Segments")
+        int segments;
+        @Label("Rows")
+        long rows;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Split Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long split;
+        @Label("Parse Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long parse;
+        @Label("Merge Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long merge;
+        @Label("Skew")
+        @Description("The slowest worker's parse time over the mean one's")
+        double skew;
+        @Label("Table Lookups")
+        long lookups;
+        @Label("Table Probes")
+        long probes;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder events of the implementations, so that a recording shows which segment a
+ * worker was parsing and how long merging, sorting and printing took rather than anonymous
+ * lambda frames. Until a recording is started, e.g. with
+ * {@code -XX:StartFlightRecording=filename=run.jfr} or {@code jcmd <pid> JFR.start}, the methods
+ * here neither create the events nor load their classes, which would pull in a hundred classes of
+ * {@code jdk.jfr} and cost a noticeable part of a second at start-up. The rows of a segment are
+ * counted by the parsing loop itself, so an event never reads its segment a second time.
+ */
+final class FlightEvents {
+
+    private FlightEvents() {
+    }
+
+    /** A segment event that has begun, null without a recording */
+    static SegmentEvent segment(String source) {
+        return FlightRecorder.isInitialized() ? SegmentEvent.begin(source) : null;
+    }
+
+    /** Ends the segment {@code [offset, offset + length)} of its file, whose rows the parser counted as it went */
+    static void endSegment(SegmentEvent event, long offset, long length, long rows) {
+        if (event != null) {
+            event.commit(offset, length, rows);
+        }
+    }
+
+    /** A phase event that has begun, null without a recording */
+    static PhaseEvent phase(String source, String phase) {
+        return FlightRecorder.isInitialized() ? PhaseEvent.begin(source, phase) : null;
+    }
+
+    static void endPhase(PhaseEvent event, long stations) {
+        if (event != null) {
+            event.commit(stations);
+        }
+    }
+
+    /** A table that is done growing */
+    static void tableResized(String source, String table, long previousCapacity, long capacity, long entries) {
+        if (FlightRecorder.isInitialized()) {
+            TableResizeEvent.commit(source, table, previousCapacity, capacity, entries);
+        }
+    }
+
+    @Name("dev.morling.onebrc.Segment")
+    @Label("Segment Parsed")
+    @Category({ "1BRC", "Engine" })
+    @Description("One chunk of the file parsed into the table of a worker")
+    static final class SegmentEvent extends Event {
+        @Label("Source")
+        @Description("The engine or CalculateAverage_* implementation")
+        String source;
+        @Label("Offset")
+        @Description("Where the chunk starts in its file")
+        long offset;
+        @Label("Length")
+        @DataAmount
+        long length;
+        @Label("Rows")
+        long rows;
+
+        static SegmentEvent begin(String source) {
+            var event = new SegmentEvent();
+            event.source = source;
+            event.begin();
+            return event;
+        }
+
+        void commit(long offset, long length, long rows) {
+            end();
+            if (shouldCommit()) {
+                this.offset = offset;
+                this.length = length;
+                this.rows = rows;
+                commit();
+            }
+        }
+    }
+
+    @Name("dev.morling.onebrc.TableResize")
+    @Label("Table Resized")
+    @Category({ "1BRC", "Engine" })
+    @Description("A station table grew, or overflowed into another one, as it ran out of slots")
+    static final class TableResizeEvent extends Event {
+        @Label("Source")
+        @Description("The engine or CalculateAverage_* implementation")
+        String source;
+        @Label("Table")
+        String table;
+        @Label("Previous Capacity")
+        long previousCapacity;
+        @Label("Capacity")
+        long capacity;
+        @Label("Entries")
+        @Description("The stations in the table, 0 if it doesn't count them")
+        long entries;
+
+        static void commit(String source, String table, long previousCapacity, long capacity, long entries) {
+            var event = new TableResizeEvent();
+            if (event.shouldCommit()) {
+                event.source = source;
+                event.table = table;
+                event.previousCapacity = previousCapacity;
+                event.capacity = capacity;
+                event.entries = entries;
+                event.commit();
+            }
+        }
+    }
+
+    @Name("dev.morling.onebrc.Phase")
+    @Label("Phase")
+    @Category({ "1BRC", "Engine" })
+    @Description("Merging the per-thread tables, sorting the stations or printing the result")
+    static final class PhaseEvent extends Event {
+        static final String MERGE = "merge";
+        static final String SORT = "sort";
+        static final String PRINT = "print";
+
+        @Label("Source")
+        @Description("The engine or CalculateAverage_* implementation")
+        String source;
+        @Label("Phase")
+        String phase;
+        @Label("Stations")
+        @Description("The stations merged, sorted or printed, 0 where not known yet")
+        long stations;
+
+        static PhaseEvent begin(String source, String phase) {
+            var event = new PhaseEvent();
+            event.source = source;
+            event.phase = phase;
+            event.begin();
+            return event;
+        }
+
+        void commit(long stations) {
+            end();
+            if (shouldCommit()) {
+                this.stations = stations;
+                commit();
+            }
+        }
+    }
+}
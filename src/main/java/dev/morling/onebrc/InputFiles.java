@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Turns command line arguments into the list of measurement files to aggregate. Every
+ * argument is either a file or a glob such as {@code data/2024-01-*.txt} or
+ * {@code archive/**.txt}; glob matches are sorted, so the order of the result is stable.
+ */
+final class InputFiles {
+
+    private InputFiles() {
+    }
+
+    /** The files named by {@code args}, or {@code defaultFile} if there are no arguments */
+    static List<Path> resolve(String[] args, String defaultFile) throws IOException {
+        if (args.length == 0) {
+            return List.of(Path.of(defaultFile));
+        }
+        List<Path> files = new ArrayList<>();
+        for (String arg : args) {
+            if (isGlob(arg)) {
+                List<Path> matches = glob(arg);
+                if (matches.isEmpty()) {
+                    throw new IllegalArgumentException("No files match " + arg);
+                }
+                files.addAll(matches);
+            }
+            else {
+                files.add(Path.of(arg));
+            }
+        }
+        return files;
+    }
+
+    private static boolean isGlob(String arg) {
+        return arg.chars().anyMatch(c -> c == '*' || c == '?' || c == '[' || c == '{');
+    }
+
+    /** Walks the longest directory prefix without wildcards and matches everything below it */
+    private static List<Path> glob(String pattern) throws IOException {
+        int firstWildcard = 0;
+        while (!isGlob(String.valueOf(pattern.charAt(firstWildcard)))) {
+            firstWildcard++;
+        }
+        int lastSeparator = pattern.lastIndexOf('/', firstWildcard);
+        Path base = Path.of(lastSeparator < 0 ? "." : pattern.substring(0, lastSeparator + 1));
+        String relative = pattern.substring(lastSeparator + 1);
+        if (!Files.isDirectory(base)) {
+            return List.of();
+        }
+        var matcher = base.getFileSystem().getPathMatcher("glob:" + relative);
+        int depth = relative.contains("**") ? Integer.MAX_VALUE : (int) relative.chars().filter(c -> c == '/').count() + 1;
+        try (Stream<Path> paths = Files.walk(base, depth)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(path -> matcher.matches(base.relativize(path)))
+                    .sorted()
+                    .toList();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import dev.morling.onebrc.AggregationEngine.LineParser;
+
+/**
+ * {@link LineParser} strategies of the different implementations, ported from their
+ * ByteBuffer / byte[] loops to work on the mapped {@link MemorySegment}. All of them
+ * produce the temperature in tenths of a degree and count the lines they add as they go.
+ */
+final class LineParsers {
+
+    static final ValueLayout.OfLong LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private LineParsers() {
+    }
+
+    /** Byte by byte with a switch on the value characters, tolerates \r\n line endings */
+    static LineParser jotschi() {
+        return (data, chunk, table) -> {
+            long rows = 0;
+            long pos = chunk.start();
+            long end = chunk.end();
+            while (pos < end) {
+                long nameStart = pos;
+                while (data.get(JAVA_BYTE, pos) != ';') {
+                    pos++;
+                }
+                int nameLength = (int) (pos++ - nameStart);
+                int temp = 0;
+                int negative = 1;
+                byte b;
+                outer: while (pos < end && (b = data.get(JAVA_BYTE, pos++)) != '\n') {
+                    switch (b) {
+                        case '-':
+                            negative = -1;
+                        case '.':
+                            break;
+                        case '\r':
+                            pos++;
+                            break outer;
+                        default:
+                            temp = 10 * temp + (b - '0');
+                    }
+                }
+                table.add(data, nameStart, nameLength, temp * negative);
+                rows++;
+            }
+            return rows;
+        };
+    }
+
+    /**
+     * spullara's processChunk: the name is copied byte by byte into a buffer, which the table
+     * hashes and, for a new station, copies once more. Tolerates \r\n line endings.
+     */
+    static LineParser spullara() {
+        return (data, chunk, table) -> {
+            long rows = 0;
+            byte[] buffer = new byte[128];
+            var name = MemorySegment.ofArray(buffer);
+            long pos = chunk.start();
+            long end = chunk.end();
+            while (pos < end) {
+                int length = 0;
+                byte b;
+                while (pos != end && (b = data.get(JAVA_BYTE, pos++)) != ';') {
+                    if (length == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                        name = MemorySegment.ofArray(buffer);
+                    }
+                    buffer[length++] = b;
+                }
+                int temp = 0;
+                int negative = 1;
+                outer: while (pos != end && (b = data.get(JAVA_BYTE, pos++)) != '\n') {
+                    switch (b) {
+                        case '-':
+                            negative = -1;
+                        case '.':
+                            break;
+                        case '\r':
+                            pos++;
+                            break outer;
+                        default:
+                            temp = 10 * temp + (b - '0');
+                    }
+                }
+                table.add(name, 0, length, temp * negative);
+                rows++;
+            }
+            return rows;
+        };
+    }
+
+    /**
+     * ddimtirov's processSegment: the name is hashed with {@code 31 * h + b} while looking for
+     * the ';', so a table using that hash doesn't read the name a second time to place it.
+     */
+    static LineParser ddimtirov() {
+        return (data, chunk, table) -> {
+            long rows = 0;
+            long pos = chunk.start();
+            long end = chunk.end();
+            while (pos < end) {
+                long nameStart = pos;
+                int nameHash = 0;
+                byte b;
+                while ((b = data.get(JAVA_BYTE, pos++)) != ';') {
+                    nameHash = nameHash * 31 + b;
+                }
+                int nameLength = (int) (pos - nameStart - 1);
+                int temperature = 0;
+                int sign = 1;
+                outer: while (pos < end && (b = data.get(JAVA_BYTE, pos++)) != '\n') {
+                    switch (b) {
+                        case '\r':
+                            pos++;
+                            break outer;
+                        case '.':
+                            break;
+                        case '-':
+                            sign = -1;
+                            break;
+                        default:
+                            temperature = 10 * temperature + (b - '0');
+                    }
+                }
+                table.add(data, nameStart, nameLength, nameHash, temperature * sign);
+                rows++;
+            }
+            return rows;
+        };
+    }
+
+    /** SWAR search for ';', the line end is one of three fixed positions, branchless value parsing */
+    static LineParser royvanrijn() {
+        return (data, chunk, table) -> {
+            long rows = 0;
+            long pos = chunk.start();
+            long end = chunk.end();
+            while (pos < end) {
+                // names are at least one byte, values at least three
+                long separator = findNextSWAR(data, pos + 1, end);
+                long eol = separator + 4;
+                if (eol < end && data.get(JAVA_BYTE, eol) != '\n') {
+                    eol++;
+                    if (eol < end && data.get(JAVA_BYTE, eol) != '\n') {
+                        eol++;
+                    }
+                }
+                eol = Math.min(eol, end);
+                int measured = branchlessParseInt(data, separator + 1, (int) (eol - separator - 1));
+                table.add(data, pos, (int) (separator - pos), measured);
+                rows++;
+                pos = eol + 1;
+            }
+            return rows;
+        };
+    }
+
+    private static final long SEPARATOR_PATTERN = CalculateAverage_royvanrijn.compilePattern((byte) ';');
+
+    private static long findNextSWAR(MemorySegment data, long start, long limit) {
+        long i = start;
+        for (; i <= limit - Long.BYTES; i += Long.BYTES) {
+            int index = CalculateAverage_royvanrijn.firstAnyPattern(data.get(LONG_LE, i), SEPARATOR_PATTERN);
+            if (index < Long.BYTES) {
+                return i + index;
+            }
+        }
+        for (; i < limit; i++) {
+            if (data.get(JAVA_BYTE, i) == ';') {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    /** {@link CalculateAverage_royvanrijn#branchlessParseInt(byte[], int, int)} on a segment */
+    static int branchlessParseInt(MemorySegment data, long start, int length) {
+        final int negative = ~(data.get(JAVA_BYTE, start) >> 4) & 1;
+        final int has4 = ((length - negative) >> 2) & 1;
+
+        final int digit1 = data.get(JAVA_BYTE, start + negative) - '0';
+        final int digit2 = data.get(JAVA_BYTE, start + negative + has4);
+        final int digit3 = data.get(JAVA_BYTE, start + negative + has4 + 2);
+
+        return (-negative ^ (has4 * (digit1 * 100) + digit2 * 10 + digit3 - 528) - negative);
+    }
+
+    /** One byte at a time through a two state machine, '.' is skipped as exactly one fractional digit is assumed */
+    static LineParser ebarlas() {
+        return (data, chunk, table) -> {
+            long rows = 0;
+            long pos = chunk.start();
+            long end = chunk.end();
+            long keyStart = pos;
+            int nameLength = 0;
+            boolean readingKey = true;
+            boolean negative = false;
+            int val = 0;
+            while (pos < end) {
+                byte b = data.get(JAVA_BYTE, pos++);
+                if (readingKey) {
+                    if (b == ';') {
+                        nameLength = (int) (pos - keyStart - 1);
+                        readingKey = false;
+                    }
+                }
+                else {
+                    if (b == '\n') {
+                        table.add(data, keyStart, nameLength, negative ? -val : val);
+                        rows++;
+                        readingKey = true;
+                        val = 0;
+                        negative = false;
+                        keyStart = pos;
+                    }
+                    else if (b == '-') {
+                        negative = true;
+                    }
+                    else if (b != '.') {
+                        val = val * 10 + (b - '0');
+                    }
+                }
+            }
+            if (!readingKey) { // last line without trailing newline
+                table.add(data, keyStart, nameLength, negative ? -val : val);
+                rows++;
+            }
+            return rows;
+        };
+    }
+
+    /** SWAR search for both ';' and '\n' */
+    static LineParser richardstartin() {
+        return (data, chunk, table) -> {
+            long rows = 0;
+            long end = chunk.end();
+            for (long offset = chunk.start(); offset < end;) {
+                long nextSeparator = findIndexOf(data, offset, end, CalculateAverage_richardstartin.DELIMITER);
+                long valueStart = nextSeparator + 1;
+                long newLine = findIndexOf(data, valueStart, end, CalculateAverage_richardstartin.NEW_LINE);
+                table.add(data, offset, (int) (nextSeparator - offset), Tenths.parse(data, valueStart, newLine));
+                rows++;
+                offset = newLine + 1;
+            }
+            return rows;
+        };
+    }
+
+    private static long findIndexOf(MemorySegment data, long offset, long limit, long pattern) {
+        long i = offset;
+        for (; i + Long.BYTES < limit; i += Long.BYTES) {
+            int index = CalculateAverage_richardstartin.firstInstance(data.get(LONG_LE, i), pattern);
+            if (index != Long.BYTES) {
+                return i + index;
+            }
+        }
+        byte b = (byte) (pattern & 0xFF);
+        for (; i < limit; i++) {
+            if (data.get(JAVA_BYTE, i) == b) {
+                return i;
+            }
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import dev.morling.onebrc.AggregationEngine.Merger;
+import dev.morling.onebrc.AggregationEngine.StationTable;
+
+/**
+ * {@link Merger} strategies of the different implementations.
+ */
+final class Mergers {
+
+    private Mergers() {
+    }
+
+    /**
+     * Every entry of every table goes through a String keyed TreeMap, as in jotschi, spullara and
+     * royvanrijn. That means a String and a tree walk per station and table, so once the tables
+     * hold more stations than {@link SortedResults#SORT_THRESHOLD} they are folded instead.
+     */
+    static Merger treeMap() {
+        return tables -> {
+            if (tables.stream().mapToInt(StationTable::size).sum() > SortedResults.SORT_THRESHOLD) {
+                return fold().merge(tables);
+            }
+            var result = new TreeMap<String, StationStats>();
+            for (StationTable table : tables) {
+                table.forEach((name, stats) -> result.merge(new String(name, StandardCharsets.UTF_8), stats.copy(), (a, b) -> {
+                    a.merge(b);
+                    return a;
+                }));
+            }
+            return result;
+        };
+    }
+
+    /**
+     * Tables are folded into one before any String is created, as in ebarlas and ddimtirov.
+     * The largest table is the target, so the fewest stations have to be inserted and it
+     * rarely has to grow.
+     */
+    static Merger fold() {
+        return tables -> {
+            if (tables.isEmpty()) {
+                return new TreeMap<>();
+            }
+            StationTable target = tables.stream().max(Comparator.comparingInt(StationTable::size)).orElseThrow();
+            for (StationTable table : tables) {
+                if (table != target) {
+                    target.mergeFrom(table);
+                }
+            }
+            return toTreeMap(target);
+        };
+    }
+
+    /** Tables are folded pairwise in a fork/join reduction tree, as in richardstartin */
+    static Merger forkJoin() {
+        return tables -> {
+            if (tables.isEmpty()) {
+                return new TreeMap<>();
+            }
+            return toTreeMap(ForkJoinPool.commonPool().invoke(new MergeTask(tables, 0, tables.size() - 1)));
+        };
+    }
+
+    static TreeMap<String, StationStats> toTreeMap(StationTable table) {
+        var result = new SortedResults<StationStats>(table.size());
+        table.forEach((name, stats) -> result.add(new String(name, StandardCharsets.UTF_8), stats.copy()));
+        return result.toTreeMap();
+    }
+
+    private static final class MergeTask extends RecursiveTask<StationTable> {
+        private final List<StationTable> tables;
+        private final int min;
+        private final int max;
+
+        private MergeTask(List<StationTable> tables, int min, int max) {
+            this.tables = tables;
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        protected StationTable compute() {
+            if (min == max) {
+                return tables.get(min);
+            }
+            int mid = (min + max) / 2;
+            var high = new MergeTask(tables, mid + 1, max).fork();
+            StationTable partial = new MergeTask(tables, min, mid).compute();
+            partial.mergeFrom(high.join());
+            return partial;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * The NUMA nodes of the machine and the CPUs of each that this process may run on, for the
+ * {@link AggregationEngine} mode of {@code -Donebrc.numa=true}. The nodes are read from
+ * {@code /sys/devices/system/node}; {@code -Donebrc.numa.nodes=<n>} splits the CPUs into n nodes
+ * instead, to try the mode on a machine with a single node or without {@code /sys}. Threads are
+ * pinned with {@code sched_setaffinity}, on Linux only; elsewhere, or with
+ * {@code -Donebrc.numa.pin=false}, they run where the scheduler puts them.
+ */
+final class NumaTopology {
+
+    static final boolean ENABLED = Boolean.getBoolean("onebrc.numa");
+    private static final boolean PIN = Boolean.parseBoolean(System.getProperty("onebrc.numa.pin", "true"));
+
+    private static final Path NODES = Path.of("/sys/devices/system/node");
+
+    /** A node and the CPUs of it that this process may use */
+    record Node(int id, int[] cpus) {
+    }
+
+    private final List<Node> nodes;
+
+    NumaTopology(List<Node> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("No NUMA node with a CPU this process may use");
+        }
+        this.nodes = List.copyOf(nodes);
+    }
+
+    List<Node> nodes() {
+        return nodes;
+    }
+
+    int cpus() {
+        return nodes.stream().mapToInt(node -> node.cpus().length).sum();
+    }
+
+    /** The topology of this machine, or as many nodes as {@code -Donebrc.numa.nodes} asks for */
+    static NumaTopology detect() {
+        int[] allowed = allowedCpus();
+        Integer split = Integer.getInteger("onebrc.numa.nodes");
+        if (split != null) {
+            return split(allowed, split);
+        }
+        List<Node> nodes = new ArrayList<>();
+        try (Stream<Path> dirs = Files.list(NODES)) {
+            for (Path dir : dirs.filter(d -> d.getFileName().toString().matches("node[0-9]+")).sorted().toList()) {
+                int id = Integer.parseInt(dir.getFileName().toString().substring("node".length()));
+                int[] cpus = Arrays.stream(parseCpuList(Files.readString(dir.resolve("cpulist"))))
+                        .filter(cpu -> Arrays.binarySearch(allowed, cpu) >= 0)
+                        .toArray();
+                if (cpus.length > 0) { // memory-only nodes and nodes we aren't allowed on have no workers
+                    nodes.add(new Node(id, cpus));
+                }
+            }
+        }
+        catch (IOException e) {
+            return split(allowed, 1);
+        }
+        return nodes.isEmpty() ? split(allowed, 1) : new NumaTopology(nodes);
+    }
+
+    /** The CPUs cut into {@code count} nodes of consecutive CPUs, nodes share CPUs if there are fewer */
+    static NumaTopology split(int[] cpus, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Expected at least one node, got " + count);
+        }
+        List<Node> nodes = new ArrayList<>();
+        for (int node = 0; node < count; node++) {
+            int from = cpus.length * node / count;
+            int to = Math.max(from + 1, cpus.length * (node + 1) / count);
+            nodes.add(new Node(node, Arrays.copyOfRange(cpus, from, to)));
+        }
+        return new NumaTopology(nodes);
+    }
+
+    /** The CPUs of the process' affinity mask, or simply as many as the JVM sees */
+    private static int[] allowedCpus() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("Cpus_allowed_list:")) {
+                    return parseCpuList(line.substring("Cpus_allowed_list:".length()));
+                }
+            }
+        }
+        catch (IOException e) {
+            // not Linux
+        }
+        return IntStream.range(0, Runtime.getRuntime().availableProcessors()).toArray();
+    }
+
+    /** "0-3,8,10-11" to 0, 1, 2, 3, 8, 10, 11 */
+    static int[] parseCpuList(String list) {
+        return Arrays.stream(list.trim().split(","))
+                .filter(range -> !range.isBlank())
+                .flatMapToInt(range -> {
+                    String[] bounds = range.trim().split("-");
+                    int from = Integer.parseInt(bounds[0]);
+                    return IntStream.rangeClosed(from, bounds.length == 1 ? from : Integer.parseInt(bounds[1]));
+                })
+                .sorted()
+                .toArray();
+    }
+
+    /**
+     * Cuts {@code data} into one range of complete lines per node, sized by the node's share of
+     * the CPUs; range i is {@code [bounds[i], bounds[i + 1])} and may be empty.
+     */
+    long[] ranges(MemorySegment data) {
+        long size = data.byteSize();
+        long[] bounds = new long[nodes.size() + 1];
+        int total = cpus();
+        int cpus = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            cpus += nodes.get(i).cpus().length;
+            long end = i == nodes.size() - 1 ? size : Math.max(bounds[i], size * cpus / total);
+            while (end > 0 && end < size && data.get(JAVA_BYTE, end - 1) != '\n') {
+                end++;
+            }
+            bounds[i + 1] = end;
+        }
+        return bounds;
+    }
+
+    /** Runs every task on a thread of its own, pinned to the CPUs of the node next to it, and waits for all */
+    static void runPinned(List<Node> nodes, List<Runnable> tasks) {
+        var failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            var node = nodes.get(i);
+            var task = tasks.get(i);
+            threads.add(Thread.ofPlatform().name("numa-" + node.id() + "-" + i).start(() -> {
+                try {
+                    pin(node.cpus());
+                    task.run();
+                }
+                catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the workers", e);
+        }
+        if (failure.get()instanceof RuntimeException e) {
+            throw e;
+        }
+        if (failure.get()instanceof Error e) {
+            throw e;
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException(failure.get());
+        }
+    }
+
+    /** Restricts the calling thread to the CPUs, returns whether that worked */
+    static boolean pin(int[] cpus) {
+        if (!PIN || Affinity.SET == null) {
+            return false;
+        }
+        long[] mask = new long[Arrays.stream(cpus).max().orElse(0) / Long.SIZE + 1];
+        for (int cpu : cpus) {
+            mask[cpu / Long.SIZE] |= 1L << (cpu % Long.SIZE);
+        }
+        try (var arena = Arena.ofConfined()) {
+            var set = arena.allocateArray(JAVA_LONG, mask);
+            // pid 0 is the calling thread
+            return (int) Affinity.SET.invokeExact(0, set.byteSize(), set) == 0;
+        }
+        catch (Throwable e) {
+            return false;
+        }
+    }
+
+    /** Only loaded once a thread is pinned */
+    private static final class Affinity {
+        static final MethodHandle SET = Linker.nativeLinker().defaultLookup().find("sched_setaffinity")
+                .map(address -> Linker.nativeLinker().downcallHandle(address, FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_LONG, ADDRESS)))
+                .orElse(null);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Puts a file into the page cache or takes it out again, so that a benchmark starts from the
+ * same state every time. Evicting uses {@code posix_fadvise(POSIX_FADV_DONTNEED)}, which needs
+ * neither root nor dropping the caches of the whole machine, but only works on Linux.
+ */
+final class PageCache {
+
+    private static final int O_RDONLY = 0;
+    private static final int POSIX_FADV_DONTNEED = 4;
+
+    private PageCache() {
+    }
+
+    /** Reads the whole file once, so that all of it is cached */
+    static void warm(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var buffer = ByteBuffer.allocateDirect(1 << 20);
+            long position = 0;
+            int read;
+            while ((read = channel.read(buffer.clear(), position)) > 0) {
+                position += read;
+            }
+        }
+    }
+
+    /** Drops the cached pages of the file, unless they are dirty or mapped by someone else */
+    static void evict(Path file) {
+        var linker = Linker.nativeLinker();
+        var lookup = linker.defaultLookup();
+        MethodHandle open = linker.downcallHandle(lookup.find("open").orElseThrow(PageCache::unsupported),
+                FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT), Linker.Option.firstVariadicArg(2));
+        MethodHandle fadvise = linker.downcallHandle(lookup.find("posix_fadvise").orElseThrow(PageCache::unsupported),
+                FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_LONG, JAVA_LONG, JAVA_INT));
+        MethodHandle close = linker.downcallHandle(lookup.find("close").orElseThrow(PageCache::unsupported),
+                FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+        try (var arena = Arena.ofConfined()) {
+            int fd = (int) open.invokeExact(arena.allocateUtf8String(file.toAbsolutePath().toString()), O_RDONLY);
+            if (fd < 0) {
+                throw new IllegalStateException("Cannot open " + file + " to evict it from the page cache");
+            }
+            try {
+                int result = (int) fadvise.invokeExact(fd, 0L, 0L, POSIX_FADV_DONTNEED);
+                if (result != 0) {
+                    throw new IllegalStateException("posix_fadvise failed with " + result + " for " + file);
+                }
+            }
+            finally {
+                int ignored = (int) close.invokeExact(fd);
+            }
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException("Evicting a file from the page cache needs posix_fadvise, i.e. Linux");
+    }
+}
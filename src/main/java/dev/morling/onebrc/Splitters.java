@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.List;
+
+import dev.morling.onebrc.AggregationEngine.Chunk;
+import dev.morling.onebrc.AggregationEngine.Splitter;
+
+/**
+ * {@link Splitter} strategies of the different implementations.
+ */
+final class Splitters {
+
+    private Splitters() {
+    }
+
+    /**
+     * One chunk per core, as in spullara's getFileSegments() which jotschi, royvanrijn and
+     * ddimtirov adopted.
+     */
+    static Splitter perCore() {
+        return data -> split(data, Math.max(1, data.byteSize() / Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Chunks of a fixed size, richardstartin uses 10MiB, padreati 1MiB. Many small chunks
+     * let fast threads pick up the work of slow ones.
+     */
+    static Splitter fixedSize(long chunkSize) {
+        return data -> split(data, chunkSize);
+    }
+
+    static List<Chunk> split(MemorySegment data, long chunkSize) {
+        long size = data.byteSize();
+        List<Chunk> chunks = new ArrayList<>();
+        long start = 0;
+        while (start < size) {
+            long end = nextLineStart(data, Math.min(size, start + chunkSize));
+            chunks.add(new Chunk(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    /** First offset at or after {@code offset} that starts a line, or the end of data */
+    static long nextLineStart(MemorySegment data, long offset) {
+        long size = data.byteSize();
+        if (offset == 0 || offset >= size) {
+            return Math.min(offset, size);
+        }
+        while (offset < size && data.get(ValueLayout.JAVA_BYTE, offset - 1) != '\n') {
+            offset++;
+        }
+        return offset;
+    }
+}
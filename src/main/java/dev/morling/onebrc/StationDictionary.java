@@ -0,0 +1,405 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Station name to dense integer id, shared by all threads of a run, generalizing the
+ * {@code Dictionary} of richardstartin. Ids are handed out in order of first sight, so each
+ * thread can aggregate into plain arrays indexed by id ({@link Pages}) and partitions merge by
+ * position, without hashing or even looking at the names again.
+ *
+ * <p>Lookups are lock-free: slots are read with acquire semantics and a new name is published
+ * with a single CAS. Names are kept as zero padded little endian words and compared eight
+ * bytes at a time, the same words the hash is computed from. Once every station has been seen
+ * the table is only read, so threads share its cache lines without ever invalidating them.
+ *
+ * <p>The insert that takes the table past 3/4 load doubles it under the dictionary's monitor:
+ * the empty slots of the old table are frozen one by one with a CAS to {@link #MOVED}, which
+ * either wins or returns a key that raced in and is copied along. Known names are still found
+ * in the old table, only threads that meet a frozen slot wait for the copy and continue in it.
+ */
+final class StationDictionary {
+
+    static final int DEFAULT_CAPACITY = 1 << 15; // the 10K stations of the challenge at a load below 1/3, more grow it
+
+    private static final ValueLayout.OfLong LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Key[].class);
+    // an empty slot of a table that is being copied, see grow()
+    private static final Key MOVED = new Key(new long[0], new byte[0], 0, -1);
+
+    private volatile Table table;
+    private final AtomicInteger nextId = new AtomicInteger();
+    // shared by all threads, so with -Donebrc.tablestats=true the counts are racy and approximate
+    private final TableStats stats = new TableStats();
+
+    StationDictionary() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    StationDictionary(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two, got " + capacity);
+        }
+        this.table = new Table(capacity);
+    }
+
+    private static final class Table {
+        final Key[] slots;
+        final int mask;
+        final int threshold;
+
+        Table(int capacity) {
+            this.slots = new Key[capacity];
+            this.mask = capacity - 1;
+            this.threshold = capacity / 4 * 3;
+        }
+    }
+
+    private record Key(long[] words, byte[] name, int hash, int id) {
+
+        boolean matches(MemorySegment data, long offset, int length, int hash) {
+            if (this.hash != hash || name.length != length) {
+                return false;
+            }
+            for (int i = 0; i < words.length; i++) {
+                if (words[i] != word(data, offset + i * Long.BYTES, length - i * Long.BYTES)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** Upper bound of the ids handed out so far, the length dense arrays need */
+    int size() {
+        return nextId.get();
+    }
+
+    int id(MemorySegment data, long offset, int length) {
+        return id(data, offset, length, hash(data, offset, length));
+    }
+
+    int id(byte[] name, int length) {
+        return id(MemorySegment.ofArray(name), 0, length);
+    }
+
+    /** Id of the name at {@code offset}, whose hash has been computed while parsing, see {@link #mix(long, long)} */
+    int id(MemorySegment data, long offset, int length, int hash) {
+        Table table = this.table;
+        int index = hash & table.mask;
+        Key candidate = null;
+        for (int probes = 0;; probes++) {
+            var key = (Key) SLOTS.getAcquire(table.slots, index);
+            if (key == null) {
+                if (candidate == null) {
+                    candidate = newKey(data, offset, length, hash);
+                }
+                key = (Key) SLOTS.compareAndExchangeRelease(table.slots, index, null, candidate);
+                if (key == null) {
+                    stats.record(probes);
+                    if (candidate.id >= table.threshold) { // ids count the entries, plus gaps
+                        grow(table);
+                    }
+                    return candidate.id;
+                }
+                // lost the race, the winner may have inserted this very name; then the id of
+                // the candidate is never used, which leaves a gap but does no harm
+            }
+            if (key == MOVED) { // not in the part that has been copied, start over in the copy
+                table = grown();
+                index = hash & table.mask;
+                continue;
+            }
+            if (key.matches(data, offset, length, hash)) {
+                stats.record(probes);
+                return key.id;
+            }
+            index = (index + 1) & table.mask;
+        }
+    }
+
+    /** Doubles {@code full}, unless another thread has already done so */
+    private synchronized void grow(Table full) {
+        if (table != full) {
+            return;
+        }
+        var grown = new Table(full.slots.length * 2);
+        int entries = 0;
+        for (int i = 0; i < full.slots.length; i++) {
+            var key = (Key) SLOTS.compareAndExchange(full.slots, i, null, MOVED);
+            if (key != null) {
+                int index = key.hash & grown.mask;
+                while (grown.slots[index] != null) {
+                    index = (index + 1) & grown.mask;
+                }
+                grown.slots[index] = key;
+                entries++;
+            }
+        }
+        table = grown; // the volatile write publishes the copied slots
+        FlightEvents.tableResized("dictionary", "StationDictionary", full.slots.length, grown.slots.length, entries);
+    }
+
+    /** The table after the copy in progress, which holds the monitor until it is published */
+    private synchronized Table grown() {
+        return table;
+    }
+
+    TableStats.Report stats() {
+        Key[] slots = table.slots;
+        int entries = 0;
+        for (Key key : slots) {
+            entries += key == null ? 0 : 1;
+        }
+        return stats.report("dictionary", StationHash.SWAR, entries, slots.length, i -> slots[i] != null);
+    }
+
+    private Key newKey(MemorySegment data, long offset, int length, int hash) {
+        if (length == 0) {
+            throw new IllegalArgumentException("Empty station name");
+        }
+        int id = nextId.getAndIncrement();
+        long[] words = new long[(length + Long.BYTES - 1) / Long.BYTES];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = word(data, offset + i * Long.BYTES, length - i * Long.BYTES);
+        }
+        byte[] name = data.asSlice(offset, length).toArray(ValueLayout.JAVA_BYTE);
+        return new Key(words, name, hash, id);
+    }
+
+    @FunctionalInterface
+    interface IdConsumer {
+        void accept(byte[] name, int id);
+    }
+
+    /** Every name and its id, once the lookups are done */
+    void forEach(IdConsumer consumer) {
+        Key[] slots = table.slots;
+        for (int i = 0; i < slots.length; i++) {
+            var key = (Key) SLOTS.getAcquire(slots, i);
+            if (key != null) {
+                consumer.accept(key.name, key.id);
+            }
+        }
+    }
+
+    static int hash(MemorySegment data, long offset, int length) {
+        long hash = 0;
+        for (int i = 0; i < length; i += Long.BYTES) {
+            hash = mix(hash, word(data, offset + i, length - i));
+        }
+        return finish(hash);
+    }
+
+    /** Folds the next (zero padded) word of the name into the hash */
+    static long mix(long hash, long word) {
+        return (hash ^ word) * 0x9E3779B97F4A7C15L;
+    }
+
+    static int finish(long hash) {
+        return (int) (hash ^ (hash >>> 29));
+    }
+
+    /** Little endian word of up to eight name bytes, the bytes past the name are zeroed */
+    static long word(MemorySegment data, long offset, int remaining) {
+        long word;
+        if (offset + Long.BYTES <= data.byteSize()) {
+            word = data.get(LONG_LE, offset);
+        }
+        else { // last line of the file, don't read past the mapping
+            word = 0;
+            for (int i = (int) Math.min(Math.min(remaining, Long.BYTES), data.byteSize() - offset) - 1; i >= 0; i--) {
+                word = (word << 8) | (data.get(ValueLayout.JAVA_BYTE, offset + i) & 0xFF);
+            }
+        }
+        return remaining >= Long.BYTES ? word : word & (-1L >>> ((Long.BYTES - remaining) * 8));
+    }
+
+    /**
+     * A name as its length followed by its bytes in zero padded words, at least two of them, for
+     * tables that verify their slots with {@link #matches(long[], MemorySegment, long, int)}.
+     */
+    static long[] key(MemorySegment data, long offset, int length) {
+        long[] key = new long[1 + Math.max(2, (length + Long.BYTES - 1) / Long.BYTES)];
+        key[0] = length;
+        for (int w = 1; w < key.length; w++) {
+            int remaining = length - (w - 1) * Long.BYTES;
+            key[w] = remaining > 0 ? word(data, offset + (w - 1) * Long.BYTES, remaining) : 0;
+        }
+        return key;
+    }
+
+    /**
+     * Whether {@code data[offset, offset + length)} is the name of {@code key}. Compares whole
+     * words, masking the bytes past the name, so there is no branch on the length and nothing
+     * to call unless the name ends within the last word of {@code data}.
+     */
+    static boolean matches(long[] key, MemorySegment data, long offset, int length) {
+        if (offset + (key.length - 1) * (long) Long.BYTES > data.byteSize()) {
+            return matchesAtEnd(key, data, offset, length);
+        }
+        long diff = (key[0] ^ length)
+                | ((data.get(LONG_LE, offset) ^ key[1]) & mask(length))
+                | ((data.get(LONG_LE, offset + Long.BYTES) ^ key[2]) & mask(length - Long.BYTES));
+        for (int w = 3; w < key.length; w++) {
+            diff |= (data.get(LONG_LE, offset + (w - 1) * Long.BYTES) ^ key[w]) & mask(length - (w - 1) * Long.BYTES);
+        }
+        return diff == 0;
+    }
+
+    private static boolean matchesAtEnd(long[] key, MemorySegment data, long offset, int length) {
+        if (key[0] != length) {
+            return false;
+        }
+        for (int w = 1; w < key.length; w++) {
+            int remaining = length - (w - 1) * Long.BYTES;
+            if (remaining > 0 && key[w] != word(data, offset + (w - 1) * Long.BYTES, remaining)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Selects the bytes of a word that still belong to the name */
+    private static long mask(int remaining) {
+        return remaining <= 0 ? 0 : -1L >>> (Math.max(0, Long.BYTES - remaining) * 8);
+    }
+
+    /** A new set of pages for one thread */
+    Pages pages() {
+        return new Pages(this);
+    }
+
+    /**
+     * Per thread aggregates indexed by station id, in tenths. Struct of arrays in pages of
+     * {@link #PAGE_SIZE} stations, which are allocated as ids show up, so the number of stations
+     * grows along with the dictionary.
+     */
+    static final class Pages {
+        static final int PAGE_SIZE = 1024;
+        private static final int PAGE_SHIFT = Integer.numberOfTrailingZeros(PAGE_SIZE);
+        private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+        private final StationDictionary dictionary;
+        private Page[] pages = new Page[1];
+
+        private Pages(StationDictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        private static final class Page {
+            final int[] min = new int[PAGE_SIZE];
+            final int[] max = new int[PAGE_SIZE];
+            final long[] sum = new long[PAGE_SIZE];
+            final long[] count = new long[PAGE_SIZE];
+
+            Page() {
+                Arrays.fill(min, Integer.MAX_VALUE);
+                Arrays.fill(max, Integer.MIN_VALUE);
+            }
+
+            void mergeFrom(Page other) {
+                for (int i = 0; i < PAGE_SIZE; i++) {
+                    min[i] = Math.min(min[i], other.min[i]);
+                    max[i] = Math.max(max[i], other.max[i]);
+                    sum[i] += other.sum[i];
+                    count[i] += other.count[i];
+                }
+            }
+        }
+
+        private Page page(int id) {
+            int index = id >>> PAGE_SHIFT;
+            if (index >= pages.length) {
+                pages = Arrays.copyOf(pages, Math.max(pages.length * 2, index + 1));
+            }
+            Page page = pages[index];
+            if (page == null) {
+                pages[index] = page = new Page();
+            }
+            return page;
+        }
+
+        void add(int id, int tenths) {
+            Page page = page(id);
+            int i = id & PAGE_MASK;
+            page.min[i] = Math.min(page.min[i], tenths);
+            page.max[i] = Math.max(page.max[i], tenths);
+            page.sum[i] += tenths;
+            page.count[i]++;
+        }
+
+        void merge(int id, int min, int max, long sum, long count) {
+            Page page = page(id);
+            int i = id & PAGE_MASK;
+            page.min[i] = Math.min(page.min[i], min);
+            page.max[i] = Math.max(page.max[i], max);
+            page.sum[i] += sum;
+            page.count[i] += count;
+        }
+
+        /** Folds {@code other}, filled against the same dictionary, into these pages by position */
+        Pages mergeFrom(Pages other) {
+            if (other.dictionary != dictionary) {
+                throw new IllegalArgumentException("Pages of different dictionaries");
+            }
+            if (other.pages.length > pages.length) {
+                pages = Arrays.copyOf(pages, other.pages.length);
+            }
+            for (int i = 0; i < other.pages.length; i++) {
+                if (pages[i] == null) {
+                    pages[i] = other.pages[i];
+                }
+                else if (other.pages[i] != null) {
+                    pages[i].mergeFrom(other.pages[i]);
+                }
+            }
+            return this;
+        }
+
+        /** The aggregates of station {@code id}, or null if it wasn't seen by this thread */
+        StationStats stats(int id) {
+            int index = id >>> PAGE_SHIFT;
+            Page page = index < pages.length ? pages[index] : null;
+            int i = id & PAGE_MASK;
+            if (page == null || page.count[i] == 0) {
+                return null;
+            }
+            return new StationStats(page.min[i], page.max[i], page.sum[i], page.count[i]);
+        }
+
+        TreeMap<String, StationStats> toMap() {
+            var result = new TreeMap<String, StationStats>();
+            dictionary.forEach((name, id) -> {
+                StationStats stats = stats(id);
+                if (stats != null) {
+                    result.put(new String(name, StandardCharsets.UTF_8), stats);
+                }
+            });
+            return result;
+        }
+    }
+}
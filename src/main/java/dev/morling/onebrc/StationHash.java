@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+import java.lang.foreign.MemorySegment;
+import java.util.Map;
+
+/**
+ * Hash of a station name, as used to pick the first slot in the {@link StationTables}. Every
+ * table defaults to the hash of the implementation it was ported from; {@code -Donebrc.hash=name}
+ * swaps in another one for all of them, e.g. to see with {@code -Donebrc.tablestats=true} how
+ * a table copes with a larger or more skewed station set:
+ *
+ * <ul>
+ * <li>{@code polynomial31}: {@code 31 * h + b} per byte, jotschi, spullara, royvanrijn and ddimtirov</li>
+ * <li>{@code polynomial278}: {@code 278 * h + b} per byte, ebarlas</li>
+ * <li>{@code swar}: multiply-xor per little endian word, eight bytes at a time, jotschi's off-heap table</li>
+ * <li>{@code xxhash}: xxHash64 style rounds per word plus avalanche, richardstartin</li>
+ * <li>{@code fxhash}: FxHash style rotate-xor-multiply per word, as in rustc</li>
+ * </ul>
+ */
+@FunctionalInterface
+interface StationHash {
+
+    int hash(MemorySegment data, long offset, int length);
+
+    StationHash POLYNOMIAL_31 = StationTables::hash31;
+
+    StationHash POLYNOMIAL_278 = (data, offset, length) -> {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 278 * hash + data.get(JAVA_BYTE, offset + i);
+        }
+        return hash;
+    };
+
+    StationHash SWAR = StationDictionary::hash;
+
+    StationHash XXHASH = (data, offset, length) -> {
+        long hash = length + CalculateAverage_richardstartin.PRIME_5;
+        for (int i = 0; i < length; i += Long.BYTES) {
+            hash = CalculateAverage_richardstartin.hashLong(hash, StationDictionary.word(data, offset + i, length - i));
+        }
+        hash = CalculateAverage_richardstartin.mix(hash);
+        return (int) (hash ^ (hash >>> 32));
+    };
+
+    StationHash FXHASH = (data, offset, length) -> {
+        long hash = 0;
+        for (int i = 0; i < length; i += Long.BYTES) {
+            hash = (Long.rotateLeft(hash, 5) ^ StationDictionary.word(data, offset + i, length - i)) * 0x517CC1B727220A95L;
+        }
+        return (int) (hash ^ (hash >>> 32));
+    };
+
+    Map<String, StationHash> BY_NAME = Map.of(
+            "polynomial31", POLYNOMIAL_31,
+            "polynomial278", POLYNOMIAL_278,
+            "swar", SWAR,
+            "xxhash", XXHASH,
+            "fxhash", FXHASH);
+
+    static StationHash forName(String name) {
+        StationHash hash = BY_NAME.get(name);
+        if (hash == null) {
+            throw new IllegalArgumentException("Unknown hash " + name + ", expected one of " + BY_NAME.keySet());
+        }
+        return hash;
+    }
+
+    /** The hash picked with -Donebrc.hash, or {@code fallback} if none is */
+    static StationHash configured(StationHash fallback) {
+        String name = System.getProperty("onebrc.hash");
+        return name == null ? fallback : forName(name);
+    }
+
+    static String nameOf(StationHash hash) {
+        return BY_NAME.entrySet().stream()
+                .filter(e -> e.getValue() == hash)
+                .map(Map.Entry::getKey)
+                .findFirst()
+                .orElse(hash.getClass().getSimpleName());
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+/**
+ * Per station aggregate. min, max and sum are kept in tenths of a degree, i.e. exactly as
+ * parsed from the file, so nothing is converted to floating point until the result is printed.
+ */
+public final class StationStats {
+    int min = Integer.MAX_VALUE;
+    int max = Integer.MIN_VALUE;
+    long sum;
+    long count;
+
+    public StationStats() {
+    }
+
+    public StationStats(int min, int max, long sum, long count) {
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+        this.count = count;
+    }
+
+    public void add(int tenths) {
+        min = Math.min(min, tenths);
+        max = Math.max(max, tenths);
+        sum += tenths;
+        count++;
+    }
+
+    public void merge(int min, int max, long sum, long count) {
+        this.min = Math.min(this.min, min);
+        this.max = Math.max(this.max, max);
+        this.sum += sum;
+        this.count += count;
+    }
+
+    public void merge(StationStats other) {
+        merge(other.min, other.max, other.sum, other.count);
+    }
+
+    public StationStats copy() {
+        var copy = new StationStats();
+        copy.merge(this);
+        return copy;
+    }
+
+    public int min() {
+        return min;
+    }
+
+    public int max() {
+        return max;
+    }
+
+    public long sum() {
+        return sum;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    /**
+     * The mean in tenths, rounded half up like {@code Math.round(mean * 10.0)} in the reference
+     * implementation. Integer division keeps it exact: the reference sums doubles, so on an exact
+     * .x5 tie its result depends on the accumulated representation error, e.g. -0.1 and -0.2
+     * average to -0.2 there but to -0.1 here. Away from ties both agree.
+     */
+    public long meanTenths() {
+        return Math.floorDiv(2 * sum + count, 2 * count);
+    }
+
+    @Override
+    public String toString() { // prints like the reference implementation's ResultRow
+        return min / 10.0 + "/" + meanTenths() / 10.0 + "/" + max / 10.0;
+    }
+}
@@ -0,0 +1,647 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+import java.lang.foreign.MemorySegment;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import dev.morling.onebrc.AggregationEngine.StationTable;
+
+/**
+ * {@link StationTable} strategies of the different implementations. Unlike some of the
+ * originals, every table compares the full key, so colliding stations are never merged.
+ */
+final class StationTables {
+
+    private StationTables() {
+    }
+
+    static StationTable jotschi() {
+        return new OpenAddressing(StationHash.configured(StationHash.POLYNOMIAL_31));
+    }
+
+    static StationTable spullara() {
+        return new ByteArrayKeys(StationHash.configured(StationHash.POLYNOMIAL_31));
+    }
+
+    static StationTable royvanrijn() {
+        return new BitTwiddled(StationHash.configured(StationHash.POLYNOMIAL_31));
+    }
+
+    static StationTable ebarlas() {
+        return new DirectIndexed(StationHash.configured(StationHash.POLYNOMIAL_278));
+    }
+
+    static StationTable ddimtirov() {
+        return new Columnar(StationHash.configured(StationHash.POLYNOMIAL_31));
+    }
+
+    static StationTable richardstartin(StationDictionary dictionary) {
+        return new DictionaryPages(dictionary);
+    }
+
+    static boolean keyEquals(byte[] key, MemorySegment data, long offset, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != data.get(JAVA_BYTE, offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static byte[] copyKey(MemorySegment data, long offset, int length) {
+        byte[] key = new byte[length];
+        MemorySegment.copy(data, JAVA_BYTE, offset, key, 0, length);
+        return key;
+    }
+
+    static int hash31(MemorySegment data, long offset, int length) {
+        int result = 0;
+        for (int i = 0; i < length; i++) {
+            result = 31 * result + data.get(JAVA_BYTE, offset + i);
+        }
+        return result;
+    }
+
+    /** Smallest prime at least {@code n}, for the tables indexed by a hash modulo a prime */
+    static int primeAtLeast(int n) {
+        return BigInteger.valueOf(n - 1).nextProbablePrime().intValueExact();
+    }
+
+    /**
+     * Port of jotschi's ByteArrayToResultMap2, before it moved off-heap: linear probing over
+     * parallel key and value arrays. The hash of every slot is kept alongside, so a probe only
+     * follows the key of a slot with the same hash, and the table doubles without hashing any
+     * name again once it is half full.
+     */
+    static final class OpenAddressing implements StationTable {
+        static final int INITIAL_CAPACITY = 1 << 14;
+        StationStats[] slots = new StationStats[INITIAL_CAPACITY];
+        byte[][] keys = new byte[INITIAL_CAPACITY][];
+        int[] hashes = new int[INITIAL_CAPACITY];
+        private final StationHash hash;
+        private final TableStats stats = new TableStats();
+        private int size;
+
+        OpenAddressing(StationHash hash) {
+            this.hash = hash;
+        }
+
+        StationStats getOrCreate(MemorySegment data, long offset, int length) {
+            int keyHash = hash.hash(data, offset, length);
+            int mask = keys.length - 1;
+            int slot = keyHash & mask;
+            int probes = 0;
+            for (; keys[slot] != null; probes++) {
+                if (hashes[slot] == keyHash && keyEquals(keys[slot], data, offset, length)) {
+                    stats.record(probes);
+                    return slots[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            stats.record(probes);
+            if (++size > keys.length / 2) {
+                grow();
+                slot = freeSlot(keyHash);
+            }
+            hashes[slot] = keyHash;
+            keys[slot] = copyKey(data, offset, length);
+            return slots[slot] = new StationStats();
+        }
+
+        private int freeSlot(int keyHash) {
+            int mask = keys.length - 1;
+            int slot = keyHash & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            var oldSlots = slots;
+            var oldKeys = keys;
+            var oldHashes = hashes;
+            slots = new StationStats[oldKeys.length * 2];
+            keys = new byte[oldKeys.length * 2][];
+            hashes = new int[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int slot = freeSlot(oldHashes[i]);
+                    slots[slot] = oldSlots[i];
+                    keys[slot] = oldKeys[i];
+                    hashes[slot] = oldHashes[i];
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public TableStats.Report stats() {
+            return stats.report("open addressing", hash, size, keys.length, i -> keys[i] != null);
+        }
+
+        @Override
+        public void add(MemorySegment data, long nameOffset, int nameLength, int tenths) {
+            getOrCreate(data, nameOffset, nameLength).add(tenths);
+        }
+
+        @Override
+        public void merge(byte[] name, StationStats stats) {
+            getOrCreate(MemorySegment.ofArray(name), 0, name.length).merge(stats);
+        }
+
+        @Override
+        public void forEach(BiConsumer<byte[], StationStats> consumer) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    consumer.accept(keys[i], slots[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Port of spullara's ByteArrayToResultMap: linear probing over parallel key and value arrays
+     * without stored hashes, a probe compares the length and then the bytes of every key it
+     * passes. Doubles once half full, hashing every name again.
+     */
+    static final class ByteArrayKeys implements StationTable {
+        static final int INITIAL_CAPACITY = 1 << 17;
+        StationStats[] slots = new StationStats[INITIAL_CAPACITY];
+        byte[][] keys = new byte[INITIAL_CAPACITY][];
+        private final StationHash hash;
+        private final TableStats stats = new TableStats();
+        private int size;
+
+        ByteArrayKeys(StationHash hash) {
+            this.hash = hash;
+        }
+
+        StationStats getOrCreate(MemorySegment data, long offset, int length) {
+            int mask = keys.length - 1;
+            int slot = hash.hash(data, offset, length) & mask;
+            int probes = 0;
+            for (; keys[slot] != null; probes++) {
+                if (keyEquals(keys[slot], data, offset, length)) {
+                    stats.record(probes);
+                    return slots[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            stats.record(probes);
+            byte[] key = copyKey(data, offset, length);
+            if (++size > keys.length / 2) {
+                grow();
+                slot = freeSlot(key);
+            }
+            keys[slot] = key;
+            return slots[slot] = new StationStats();
+        }
+
+        private int freeSlot(byte[] key) {
+            int mask = keys.length - 1;
+            int slot = hash.hash(MemorySegment.ofArray(key), 0, key.length) & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            var oldSlots = slots;
+            var oldKeys = keys;
+            slots = new StationStats[oldKeys.length * 2];
+            keys = new byte[oldKeys.length * 2][];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int slot = freeSlot(oldKeys[i]);
+                    slots[slot] = oldSlots[i];
+                    keys[slot] = oldKeys[i];
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public TableStats.Report stats() {
+            return stats.report("byte array keys", hash, size, keys.length, i -> keys[i] != null);
+        }
+
+        @Override
+        public void add(MemorySegment data, long nameOffset, int nameLength, int tenths) {
+            getOrCreate(data, nameOffset, nameLength).add(tenths);
+        }
+
+        @Override
+        public void merge(byte[] name, StationStats stats) {
+            getOrCreate(MemorySegment.ofArray(name), 0, name.length).merge(stats);
+        }
+
+        @Override
+        public void forEach(BiConsumer<byte[], StationStats> consumer) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    consumer.accept(keys[i], slots[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Port of royvanrijn's BitTwiddledMap: an int[] of indices into a compact entry list. The
+     * indices double once they are half full, rehashed from the hashes in the entries.
+     */
+    static final class BitTwiddled implements StationTable {
+        private static final int INITIAL_SIZE = 16384;
+        private int[] indices = new int[INITIAL_SIZE];
+        private final List<Entry> values = new ArrayList<>(512);
+
+        record Entry(int hash, byte[] key, StationStats stats) {
+        }
+
+        private final StationHash hashFunction;
+        private final TableStats stats = new TableStats();
+
+        BitTwiddled(StationHash hashFunction) {
+            this.hashFunction = hashFunction;
+            Arrays.fill(indices, -1);
+        }
+
+        StationStats getOrCreate(MemorySegment data, long offset, int length) {
+            int hash = hashFunction.hash(data, offset, length);
+            int mask = indices.length - 1;
+            int index = hash & mask;
+            int valueIndex;
+            int probes = 0;
+            for (; (valueIndex = indices[index]) != -1; probes++) {
+                Entry entry = values.get(valueIndex);
+                if (entry.hash == hash && keyEquals(entry.key, data, offset, length)) {
+                    stats.record(probes);
+                    return entry.stats;
+                }
+                index = (index + 1) & mask;
+            }
+            stats.record(probes);
+            Entry entry = new Entry(hash, copyKey(data, offset, length), new StationStats());
+            values.add(entry);
+            if (values.size() > indices.length / 2) {
+                grow(); // indexes the new entry as well
+            }
+            else {
+                indices[index] = values.size() - 1;
+            }
+            return entry.stats;
+        }
+
+        private void grow() {
+            indices = new int[indices.length * 2];
+            Arrays.fill(indices, -1);
+            int mask = indices.length - 1;
+            for (int i = 0; i < values.size(); i++) {
+                int index = values.get(i).hash & mask;
+                while (indices[index] != -1) {
+                    index = (index + 1) & mask;
+                }
+                indices[index] = i;
+            }
+        }
+
+        @Override
+        public int size() {
+            return values.size();
+        }
+
+        @Override
+        public TableStats.Report stats() {
+            return stats.report("bit twiddled", hashFunction, values.size(), indices.length, i -> indices[i] != -1);
+        }
+
+        @Override
+        public void add(MemorySegment data, long nameOffset, int nameLength, int tenths) {
+            getOrCreate(data, nameOffset, nameLength).add(tenths);
+        }
+
+        @Override
+        public void merge(byte[] name, StationStats stats) {
+            getOrCreate(MemorySegment.ofArray(name), 0, name.length).merge(stats);
+        }
+
+        @Override
+        public void forEach(BiConsumer<byte[], StationStats> consumer) {
+            for (Entry entry : values) {
+                consumer.accept(entry.key, entry.stats);
+            }
+        }
+    }
+
+    /**
+     * Port of ebarlas's stats array, indexed by a multiplicative hash modulo a prime. Once half
+     * full, the table moves to a prime twice as large.
+     */
+    static final class DirectIndexed implements StationTable {
+        private static final int INITIAL_HASH_MOD = 3_487;
+        private int hashMod = INITIAL_HASH_MOD;
+        private StationStats[] stats = new StationStats[INITIAL_HASH_MOD * 2];
+        private byte[][] keys = new byte[INITIAL_HASH_MOD * 2][];
+        private int[] hashes = new int[INITIAL_HASH_MOD * 2];
+        private final StationHash hash;
+        private final TableStats tableStats = new TableStats();
+        private int size;
+
+        DirectIndexed(StationHash hash) {
+            this.hash = hash;
+        }
+
+        StationStats getOrCreate(MemorySegment data, long offset, int length) {
+            int keyHash = hash.hash(data, offset, length);
+            int idx = hashMod + keyHash % hashMod;
+            int probes = 0;
+            for (; keys[idx] != null; probes++) {
+                if (hashes[idx] == keyHash && keyEquals(keys[idx], data, offset, length)) {
+                    tableStats.record(probes);
+                    return stats[idx];
+                }
+                idx = idx + 1 == keys.length ? 0 : idx + 1;
+            }
+            tableStats.record(probes);
+            if (++size > keys.length / 2) {
+                grow();
+                idx = freeSlot(keyHash);
+            }
+            hashes[idx] = keyHash;
+            keys[idx] = copyKey(data, offset, length);
+            return stats[idx] = new StationStats();
+        }
+
+        private int freeSlot(int keyHash) {
+            int idx = hashMod + keyHash % hashMod;
+            while (keys[idx] != null) {
+                idx = idx + 1 == keys.length ? 0 : idx + 1;
+            }
+            return idx;
+        }
+
+        private void grow() {
+            var oldStats = stats;
+            var oldKeys = keys;
+            var oldHashes = hashes;
+            hashMod = primeAtLeast(hashMod * 2);
+            stats = new StationStats[hashMod * 2];
+            keys = new byte[hashMod * 2][];
+            hashes = new int[hashMod * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int idx = freeSlot(oldHashes[i]);
+                    stats[idx] = oldStats[i];
+                    keys[idx] = oldKeys[i];
+                    hashes[idx] = oldHashes[i];
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public TableStats.Report stats() {
+            return tableStats.report("direct indexed", hash, size, keys.length, i -> keys[i] != null);
+        }
+
+        @Override
+        public void add(MemorySegment data, long nameOffset, int nameLength, int tenths) {
+            getOrCreate(data, nameOffset, nameLength).add(tenths);
+        }
+
+        @Override
+        public void merge(byte[] name, StationStats stats) {
+            getOrCreate(MemorySegment.ofArray(name), 0, name.length).merge(stats);
+        }
+
+        @Override
+        public void forEach(BiConsumer<byte[], StationStats> consumer) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    consumer.accept(keys[i], stats[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Port of ddimtirov's Tracker: min/max/count and sums in flat primitive arrays. Once half
+     * full, the arrays move to a prime modulus twice as large.
+     */
+    static final class Columnar implements StationTable {
+        private static final int INITIAL_MODULUS = 49999;
+        private static final int OFFSET_MIN = 0;
+        private static final int OFFSET_MAX = 1;
+        private static final int OFFSET_COUNT = 2;
+        private int modulus = INITIAL_MODULUS;
+        private int[] minMaxCount = new int[INITIAL_MODULUS * 3];
+        private long[] sums = new long[INITIAL_MODULUS];
+        private byte[][] names = new byte[INITIAL_MODULUS][];
+        private int[] hashes = new int[INITIAL_MODULUS];
+        private final StationHash hash;
+        private final TableStats stats = new TableStats();
+        private int size;
+
+        Columnar(StationHash hash) {
+            this.hash = hash;
+        }
+
+        int slot(MemorySegment data, long offset, int length) {
+            return slot(hash.hash(data, offset, length), data, offset, length);
+        }
+
+        int slot(int keyHash, MemorySegment data, long offset, int length) {
+            int i = Math.abs(keyHash % modulus);
+            int probes = 0;
+            for (; names[i] != null; probes++) {
+                if (hashes[i] == keyHash && keyEquals(names[i], data, offset, length)) {
+                    stats.record(probes);
+                    return i;
+                }
+                i = i + 1 == modulus ? 0 : i + 1;
+            }
+            stats.record(probes);
+            if (++size > modulus / 2) {
+                grow();
+                i = freeSlot(keyHash);
+            }
+            hashes[i] = keyHash;
+            names[i] = copyKey(data, offset, length);
+            minMaxCount[i * 3 + OFFSET_MIN] = Integer.MAX_VALUE;
+            minMaxCount[i * 3 + OFFSET_MAX] = Integer.MIN_VALUE;
+            return i;
+        }
+
+        private int freeSlot(int keyHash) {
+            int i = Math.abs(keyHash % modulus);
+            while (names[i] != null) {
+                i = i + 1 == modulus ? 0 : i + 1;
+            }
+            return i;
+        }
+
+        private void grow() {
+            var oldMinMaxCount = minMaxCount;
+            var oldSums = sums;
+            var oldNames = names;
+            var oldHashes = hashes;
+            modulus = primeAtLeast(modulus * 2);
+            minMaxCount = new int[modulus * 3];
+            sums = new long[modulus];
+            names = new byte[modulus][];
+            hashes = new int[modulus];
+            for (int old = 0; old < oldNames.length; old++) {
+                if (oldNames[old] != null) {
+                    int i = freeSlot(oldHashes[old]);
+                    System.arraycopy(oldMinMaxCount, old * 3, minMaxCount, i * 3, 3);
+                    sums[i] = oldSums[old];
+                    names[i] = oldNames[old];
+                    hashes[i] = oldHashes[old];
+                }
+            }
+        }
+
+        @Override
+        public void add(MemorySegment data, long nameOffset, int nameLength, int tenths) {
+            add(slot(data, nameOffset, nameLength), tenths);
+        }
+
+        @Override
+        public void add(MemorySegment data, long nameOffset, int nameLength, int hash31, int tenths) {
+            // the hash of ddimtirov's parser is only of use while the table hashes the same way
+            add(hash == StationHash.POLYNOMIAL_31 ? slot(hash31, data, nameOffset, nameLength) : slot(data, nameOffset, nameLength), tenths);
+        }
+
+        private void add(int i, int tenths) {
+            int mmcIndex = i * 3;
+            sums[i] += tenths;
+            if (tenths < minMaxCount[mmcIndex + OFFSET_MIN])
+                minMaxCount[mmcIndex + OFFSET_MIN] = tenths;
+            if (tenths > minMaxCount[mmcIndex + OFFSET_MAX])
+                minMaxCount[mmcIndex + OFFSET_MAX] = tenths;
+            minMaxCount[mmcIndex + OFFSET_COUNT]++;
+        }
+
+        @Override
+        public void merge(byte[] name, StationStats stats) {
+            int i = slot(MemorySegment.ofArray(name), 0, name.length);
+            int mmcIndex = i * 3;
+            sums[i] += stats.sum;
+            minMaxCount[mmcIndex + OFFSET_MIN] = Math.min(minMaxCount[mmcIndex + OFFSET_MIN], stats.min);
+            minMaxCount[mmcIndex + OFFSET_MAX] = Math.max(minMaxCount[mmcIndex + OFFSET_MAX], stats.max);
+            minMaxCount[mmcIndex + OFFSET_COUNT] += (int) stats.count;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public TableStats.Report stats() {
+            return stats.report("columnar", hash, size, modulus, i -> names[i] != null);
+        }
+
+        @Override
+        public void forEach(BiConsumer<byte[], StationStats> consumer) {
+            for (int i = 0; i < modulus; i++) {
+                if (names[i] != null) {
+                    var stats = new StationStats();
+                    stats.merge(minMaxCount[i * 3 + OFFSET_MIN], minMaxCount[i * 3 + OFFSET_MAX], sums[i], minMaxCount[i * 3 + OFFSET_COUNT]);
+                    consumer.accept(names[i], stats);
+                }
+            }
+        }
+    }
+
+    /**
+     * Port of richardstartin's Page: a dictionary shared by all threads hands out global
+     * station ids, each table aggregates into pages indexed by id so that tables merge by
+     * position without looking at the names.
+     */
+    static final class DictionaryPages implements StationTable {
+        private final StationDictionary dictionary;
+        private final StationDictionary.Pages pages;
+
+        DictionaryPages(StationDictionary dictionary) {
+            this.dictionary = dictionary;
+            this.pages = dictionary.pages();
+        }
+
+        @Override
+        public void add(MemorySegment data, long nameOffset, int nameLength, int tenths) {
+            pages.add(dictionary.id(data, nameOffset, nameLength), tenths);
+        }
+
+        @Override
+        public void merge(byte[] name, StationStats stats) {
+            pages.merge(dictionary.id(name, name.length), stats.min, stats.max, stats.sum, stats.count);
+        }
+
+        @Override
+        public void mergeFrom(StationTable other) {
+            if (other instanceof DictionaryPages that && that.dictionary == dictionary) {
+                pages.mergeFrom(that.pages);
+            }
+            else {
+                StationTable.super.mergeFrom(other);
+            }
+        }
+
+        @Override
+        public int size() { // the ids handed out to all tables, good enough to pick a merge strategy
+            return dictionary.size();
+        }
+
+        @Override
+        public TableStats.Report stats() {
+            return dictionary.stats();
+        }
+
+        @Override
+        public void forEach(BiConsumer<byte[], StationStats> consumer) {
+            dictionary.forEach((name, id) -> {
+                StationStats stats = pages.stats(id);
+                if (stats != null) {
+                    consumer.accept(name, stats);
+                }
+            });
+        }
+    }
+}
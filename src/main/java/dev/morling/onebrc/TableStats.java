@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.stream.Stream;
+
+/**
+ * Probe counters of one station table, collected with {@code -Donebrc.tablestats=true} or
+ * {@code -Donebrc.metrics} only; otherwise {@link #record(int)} folds away. At the end of a run the tables report how many
+ * slots a lookup had to look at beyond the first one, on average and at most, the longest run
+ * of occupied slots and the load factor, so a table that starts degrading under a larger or
+ * skewed station set shows up before it gets slow.
+ */
+final class TableStats {
+
+    // the metrics need the counters, but report them in their own way
+    static final boolean PRINT = Boolean.getBoolean("onebrc.tablestats");
+    static final boolean ENABLED = PRINT || EngineMetrics.ENABLED;
+
+    private long lookups;
+    private long probes;
+    private int maxProbe;
+
+    /** Records a lookup that probed {@code probes} slots after its home slot */
+    void record(int probes) {
+        if (ENABLED) {
+            lookups++;
+            this.probes += probes;
+            maxProbe = Math.max(maxProbe, probes);
+        }
+    }
+
+    Report report(String table, StationHash hash, int entries, int capacity, IntPredicate occupied) {
+        return report(table, hash, entries, capacity, longestRun(capacity, occupied));
+    }
+
+    /** For tables that only probe part of their slots, e.g. the overflow behind directly indexed ones */
+    Report report(String table, StationHash hash, int entries, int capacity, int longestRun) {
+        return new Report(table, StationHash.nameOf(hash), entries, capacity, lookups, probes, maxProbe, longestRun);
+    }
+
+    /** Prints the reports of one run's tables as one line to stderr, if enabled; the stream is only consumed then */
+    static void print(String name, Stream<Report> reports) {
+        if (PRINT) {
+            var report = Report.combine(reports.toList());
+            if (report != null) {
+                System.err.println(name + ": " + report);
+            }
+        }
+    }
+
+    /** Longest run of occupied slots, wrapping around at the end as linear probing does */
+    static int longestRun(int capacity, IntPredicate occupied) {
+        int leading = 0;
+        while (leading < capacity && occupied.test(leading)) {
+            leading++;
+        }
+        if (leading == capacity) {
+            return capacity;
+        }
+        int longest = leading;
+        int run = 0;
+        for (int i = leading; i < capacity; i++) {
+            run = occupied.test(i) ? run + 1 : 0;
+            longest = Math.max(longest, run);
+        }
+        return Math.max(longest, run + leading);
+    }
+
+    record Report(String table, String hash, int entries, int capacity, long lookups, long probes, int maxProbe, int longestRun) {
+
+        double load() {
+            return (double) entries / capacity;
+        }
+
+        double meanProbe() {
+            return lookups == 0 ? 0 : (double) probes / lookups;
+        }
+
+        /**
+         * Totals over the tables of all threads. Entries and capacity are those of the fullest table,
+         * taken together so that the load is one a table actually has; runs are per table, so the
+         * longest one is kept.
+         */
+        static Report combine(List<Report> reports) {
+            return reports.stream().reduce((a, b) -> {
+                var fullest = b.entries > a.entries ? b : a;
+                return new Report(a.table, a.hash, fullest.entries, fullest.capacity,
+                        a.lookups + b.lookups, a.probes + b.probes,
+                        Math.max(a.maxProbe, b.maxProbe), Math.max(a.longestRun, b.longestRun));
+            }).orElse(null);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s table, %s hash: %d entries in %d slots (load %.3f), %d lookups, %.3f probes on average, at most %d, longest run %d",
+                    table, hash, entries, capacity, load(), lookups, meanProbe(), maxProbe, longestRun);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses a measurement into tenths of a degree straight from the file, without allocating.
+ * Values are expected in the fixed format {@code -?\d?\d\.\d}, which is handled by a fast path
+ * in the spirit of royvanrijn's {@code branchlessParseInt}: the position of the digits only
+ * depends on the length and the sign. Anything else goes to a slow path, which also accepts
+ * values without fraction or with a trailing {@code \r}, and rejects malformed ones.
+ */
+final class Tenths {
+
+    private Tenths() {
+    }
+
+    /** The value in {@code data[start, end)}, in tenths */
+    static int parse(MemorySegment data, long start, long end) {
+        int length = (int) (end - start);
+        if (length >= 3 && length <= 5 && data.get(JAVA_BYTE, end - 2) == '.') {
+            int negative = data.get(JAVA_BYTE, start) == '-' ? 1 : 0;
+            int integerDigits = length - negative - 2;
+            int tens = integerDigits == 2 ? data.get(JAVA_BYTE, end - 4) - '0' : 0;
+            int ones = data.get(JAVA_BYTE, end - 3) - '0';
+            int tenths = data.get(JAVA_BYTE, end - 1) - '0';
+            // a digit is in [0, 9], so or-ing them leaves no bits above the lowest four unless one isn't
+            if ((integerDigits == 1 || integerDigits == 2) && ((tens | ones | tenths) & ~0xF) == 0 && tens <= 9 && ones <= 9 && tenths <= 9) {
+                int value = tens * 100 + ones * 10 + tenths;
+                return (value ^ -negative) + negative;
+            }
+        }
+        return parseSlow(data, start, end);
+    }
+
+    private static int parseSlow(MemorySegment data, long start, long end) {
+        if (end > start && data.get(JAVA_BYTE, end - 1) == '\r') {
+            end--;
+        }
+        long i = start;
+        boolean negative = i < end && data.get(JAVA_BYTE, i) == '-';
+        if (negative) {
+            i++;
+        }
+        int value = 0;
+        int digits = 0;
+        for (; i < end && isDigit(data.get(JAVA_BYTE, i)); i++, digits++) {
+            value = value * 10 + (data.get(JAVA_BYTE, i) - '0');
+        }
+        if (digits == 0 || digits > 3) {
+            throw malformed(data, start, end);
+        }
+        value *= 10;
+        if (i < end) {
+            if (i + 2 != end || data.get(JAVA_BYTE, i) != '.' || !isDigit(data.get(JAVA_BYTE, i + 1))) {
+                throw malformed(data, start, end);
+            }
+            value += data.get(JAVA_BYTE, i + 1) - '0';
+        }
+        return negative ? -value : value;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static NumberFormatException malformed(MemorySegment data, long start, long end) {
+        byte[] bytes = data.asSlice(start, end - start).toArray(JAVA_BYTE);
+        return new NumberFormatException("Not a measurement: '" + new String(bytes, StandardCharsets.UTF_8) + "'");
+    }
+}
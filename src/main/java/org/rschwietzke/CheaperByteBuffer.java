@@ -0,0 +1,254 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.rschwietzke;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>The byte sibling of {@link CheaperCharBuffer}, for everything that ends up in
+ * a file anyway. Text is appended as UTF-8 bytes that have been encoded once
+ * up front, see {@link #encode(String)}, and numbers are formatted straight into
+ * the buffer, so neither a String nor a char to byte transcoding is needed per
+ * row.
+ *
+ * <p>Same rules as for the char buffer: it is mutable and meant to be reused,
+ * and it avoids the runtime checks that will result in an exception anyway.
+ */
+public class CheaperByteBuffer {
+    // our data, can grow
+    public byte[] data_;
+
+    // the current size of the data
+    public int length_;
+
+    // how much do we grow if needed
+    private final int growBy_;
+
+    // how much do we grow if needed, half a cache line
+    public static final int CAPACITY_GROWTH = 64 / 2;
+
+    // what is our start size?
+    // a cache line is 64 byte mostly, the overhead is mostly 24 bytes
+    public static final int INITIAL_CAPACITY = 64 - 24;
+
+    // sign, ten digits of an int, the dot and the tenth
+    private static final int MAX_TENTHS_LENGTH = 13;
+
+    /**
+     * Constructs a buffer with a default size.
+     */
+    public CheaperByteBuffer() {
+        this(INITIAL_CAPACITY, CAPACITY_GROWTH);
+    }
+
+    /**
+     * Constructs a buffer with a desired size.
+     *
+     * @param startSize the size of the buffer to start with
+     */
+    public CheaperByteBuffer(final int startSize) {
+        this(startSize, CAPACITY_GROWTH);
+    }
+
+    /**
+     * Constructs a buffer with a desired size.
+     *
+     * @param startSize the size of the buffer to start with
+     * @param growBy by how much do we want to grow when needed
+     */
+    public CheaperByteBuffer(final int startSize, final int growBy) {
+        this.data_ = new byte[startSize];
+        this.length_ = 0;
+        this.growBy_ = Math.max(1, growBy);
+    }
+
+    /**
+     * Encodes text once so that it can be appended as often as needed without
+     * encoding it again, e.g. a station name together with its separator.
+     *
+     * @param s the text to encode
+     * @return the UTF-8 bytes of the text
+     */
+    public static byte[] encode(final String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Check capacity and grow if needed automatically
+     *
+     * @param minimumCapacity how much space do we need at least
+     */
+    private void ensureCapacity(final int minimumCapacity) {
+        if (minimumCapacity > this.data_.length) {
+            final int newSize = Math.max(minimumCapacity + this.growBy_, (this.data_.length << 1) + 2);
+            this.data_ = Arrays.copyOf(this.data_, newSize);
+        }
+    }
+
+    /**
+     * Returns the current max capacity without growth. Does not
+     * indicate how much capacity is already in use. Use {@link #length()}
+     * for that.
+     *
+     * @return the current capacity, not taken any usage into account
+     */
+    public int capacity() {
+        return this.data_.length;
+    }
+
+    /**
+     * Appends a single byte to the buffer, e.g. an ASCII character.
+     *
+     * @param b the byte to append
+     * @return this instance
+     */
+    public CheaperByteBuffer append(final byte b) {
+        final int oldLength = this.length_++;
+
+        // same as for the char buffer, the most called append keeps
+        // its capacity check inline
+        if (oldLength == this.data_.length) {
+            final int newSize = Math.max(oldLength + this.growBy_, (this.data_.length << 1) + 2);
+            this.data_ = Arrays.copyOf(this.data_, newSize);
+        }
+
+        this.data_[oldLength] = b;
+
+        return this;
+    }
+
+    /**
+     * Appends pre-encoded bytes, see {@link #encode(String)}.
+     *
+     * @param src the bytes to append
+     * @return this instance
+     */
+    public CheaperByteBuffer append(final byte[] src) {
+        return append(src, 0, src.length);
+    }
+
+    /**
+     * Add data from a byte array to this buffer with the ability to specify
+     * a range to copy from
+     *
+     * @param src the source byte array
+     * @param offset the pos to start to copy from
+     * @param length the length of the data to copy
+     *
+     * @return this instance
+     */
+    public CheaperByteBuffer append(final byte[] src, final int offset, final int length) {
+        final int start = this.length_;
+        this.length_ = start + length;
+
+        ensureCapacity(this.length_);
+
+        System.arraycopy(src, offset, this.data_, start, length);
+
+        return this;
+    }
+
+    /**
+     * Appends a value given in tenths with one decimal, e.g. -123 as "-12.3"
+     * and 5 as "0.5", without creating a String.
+     *
+     * @param tenths the value times ten
+     * @return this instance
+     */
+    public CheaperByteBuffer appendTenths(final int tenths) {
+        ensureCapacity(this.length_ + MAX_TENTHS_LENGTH);
+
+        // long, so that Integer.MIN_VALUE can be negated as well
+        long value = tenths;
+        if (value < 0) {
+            this.data_[this.length_++] = '-';
+            value = -value;
+        }
+
+        // the whole part back to front, it has at least one digit
+        long whole = value / 10;
+        int digits = 1;
+        for (long w = whole; w >= 10; w /= 10) {
+            digits++;
+        }
+        this.length_ += digits;
+        for (int pos = this.length_ - 1; pos >= this.length_ - digits; pos--) {
+            this.data_[pos] = (byte) ('0' + whole % 10);
+            whole /= 10;
+        }
+
+        this.data_[this.length_++] = '.';
+        this.data_[this.length_++] = (byte) ('0' + value % 10);
+
+        return this;
+    }
+
+    /**
+     * Returns the current length
+     *
+     * @return the length of the data
+     */
+    public int length() {
+        return length_;
+    }
+
+    /**
+     * Resets the buffer to 0 length. It won't resize it to avoid memory
+     * churn.
+     *
+     * @return this instance for fluid programming
+     */
+    public CheaperByteBuffer clear() {
+        this.length_ = 0;
+
+        return this;
+    }
+
+    /**
+     * Copies the data to the target at its position, which moves on by
+     * {@link #length()}.
+     *
+     * @param target the buffer to copy to, must have enough room left
+     * @return the target
+     */
+    public ByteBuffer writeTo(final ByteBuffer target) {
+        return target.put(this.data_, 0, this.length_);
+    }
+
+    /**
+     * Copies the data to the target, e.g. a mapped region of a file.
+     *
+     * @param target the segment to copy to
+     * @param offset where in the segment to start
+     * @return the offset right after the copied data
+     */
+    public long writeTo(final MemorySegment target, final long offset) {
+        MemorySegment.copy(this.data_, 0, target, ValueLayout.JAVA_BYTE, offset, this.length_);
+        return offset + this.length_;
+    }
+
+    /**
+     * Decodes the data, for debugging and tests, don't use it in hot code.
+     */
+    @Override
+    public String toString() {
+        return new String(this.data_, 0, this.length_, StandardCharsets.UTF_8);
+    }
+}
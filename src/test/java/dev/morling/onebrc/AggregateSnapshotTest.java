@@ -0,0 +1,237 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * {@link AggregateSnapshot} and the {@link TailAggregator2} that keeps it: the checksum that is
+ * extended poll by poll must be the one a single pass over the prefix yields, and a snapshot is
+ * only used while it describes the start of the file; otherwise the file is aggregated anew.
+ */
+class AggregateSnapshotTest {
+
+    private static final String FIRST = "Hamburg;12.0\nBulawayo;8.9\nPalembang;38.8\nHamburg;-3.4\n";
+    private static final String SECOND = "St. John's;15.2\nBulawayo;-0.1\nCracow;12.6\n";
+    private static final String THIRD = "Palembang;21.7\nHamburg;0.0\n";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void extendedChecksumMatchesOnePass() {
+        byte[] data = new byte[3 * AggregateSnapshot.BLOCK_SIZE + 12_345];
+        new Random(42).nextBytes(data);
+        long expected = crc32c(data, 0, data.length);
+
+        // whole blocks, pieces not aligned to blocks, and pieces of a byte or a few
+        for (long pieceSize : new long[]{ AggregateSnapshot.BLOCK_SIZE, 1_000_003, 4_099, 7, 1 }) {
+            byte[] input = pieceSize < 16 ? Arrays.copyOf(data, 300) : data;
+            assertThat(AggregateSnapshot.extendChecksum(0, MemorySegment.ofArray(input), pieceSize))
+                    .as("pieces of " + pieceSize + " bytes")
+                    .isEqualTo(crc32c(input, 0, input.length));
+        }
+
+        // extended in uneven steps, as polls do
+        long checksum = 0;
+        int[] cuts = { 0, 1, 17, 65_536, AggregateSnapshot.BLOCK_SIZE + 3, 2 * AggregateSnapshot.BLOCK_SIZE, data.length };
+        for (int i = 1; i < cuts.length; i++) {
+            var appended = MemorySegment.ofArray(data).asSlice(cuts[i - 1], cuts[i] - cuts[i - 1]);
+            checksum = AggregateSnapshot.extendChecksum(checksum, appended, 100_000);
+            assertThat(checksum).as("prefix of " + cuts[i] + " bytes").isEqualTo(crc32c(data, 0, cuts[i]));
+        }
+        assertThat(checksum).isEqualTo(expected);
+        assertThat(AggregateSnapshot.extendChecksum(checksum, MemorySegment.ofArray(new byte[0]))).as("nothing appended").isEqualTo(expected);
+    }
+
+    @Test
+    void writtenSnapshotReadsBack() throws IOException {
+        var stations = expected(FIRST);
+        var file = dir.resolve("measurements.snapshot");
+        new AggregateSnapshot(123, 456, 789, stations).write(file);
+
+        var read = AggregateSnapshot.read(file);
+        assertThat(read.coveredBytes()).isEqualTo(123);
+        assertThat(read.modifiedMillis()).isEqualTo(456);
+        assertThat(read.prefixChecksum()).isEqualTo(789);
+        assertThat(read.stations()).hasToString(stations.toString());
+        assertThat(dir.resolve("measurements.snapshot.tmp")).doesNotExist();
+    }
+
+    @Test
+    void unreadableSnapshotsCountAsMissing() throws IOException {
+        assertThat(AggregateSnapshot.read(dir.resolve("missing.snapshot"))).isNull();
+        assertThat(AggregateSnapshot.read(header(dir.resolve("v1.snapshot"), AggregateSnapshot.MAGIC, 1))).as("older version").isNull();
+        assertThat(AggregateSnapshot.read(header(dir.resolve("other.snapshot"), 0xCAFEBABE, AggregateSnapshot.VERSION))).as("not a snapshot").isNull();
+
+        var file = dir.resolve("cut.snapshot");
+        new AggregateSnapshot(FIRST.length(), 0, 0, expected(FIRST)).write(file);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 5));
+        assertThat(AggregateSnapshot.read(file)).as("cut short").isNull();
+    }
+
+    @Test
+    void appendedLinesAreFoldedAndSaved() throws IOException {
+        var file = write(FIRST);
+        var snapshot = dir.resolve("measurements.snapshot");
+        var tail = new TailAggregator2(file, DelimiterScanner.forName("scalar"), snapshot);
+
+        assertThat(tail.poll()).isTrue();
+        assertThat(tail.poll()).as("nothing appended").isFalse();
+        append(file, SECOND + "Cracow;1");
+        assertThat(tail.poll()).isTrue();
+
+        // the incomplete last line is neither folded in nor covered by the snapshot
+        String complete = FIRST + SECOND;
+        assertThat(tail.offset()).isEqualTo(complete.length());
+        assertThat(tail.results()).hasToString(expected(complete).toString());
+        var saved = AggregateSnapshot.read(snapshot);
+        assertThat(saved.coveredBytes()).isEqualTo(complete.length());
+        assertThat(saved.prefixChecksum()).isEqualTo(crc32c(complete));
+        assertThat(saved.stations()).hasToString(expected(complete).toString());
+
+        append(file, "2.5\n");
+        assertThat(tail.poll()).isTrue();
+        assertThat(tail.results()).hasToString(expected(complete + "Cracow;12.5\n").toString());
+    }
+
+    @Test
+    void restoresAMatchingSnapshot() throws IOException {
+        var file = write(FIRST);
+        var snapshot = dir.resolve("measurements.snapshot");
+        new TailAggregator2(file, DelimiterScanner.forName("scalar"), snapshot).poll();
+
+        // unchanged: size and modification time
+        var restored = new TailAggregator2(file, DelimiterScanner.forName("scalar"), snapshot);
+        assertThat(restored.offset()).isEqualTo(FIRST.length());
+        assertThat(restored.results()).hasToString(expected(FIRST).toString());
+        assertThat(restored.poll()).isFalse();
+
+        // grown: the prefix checksum
+        append(file, SECOND);
+        restored = new TailAggregator2(file, DelimiterScanner.forName("scalar"), snapshot);
+        assertThat(restored.offset()).isEqualTo(FIRST.length());
+        assertThat(restored.poll()).isTrue();
+        assertThat(restored.results()).hasToString(expected(FIRST + SECOND).toString());
+        assertThat(AggregateSnapshot.read(snapshot).prefixChecksum()).isEqualTo(crc32c(FIRST + SECOND));
+    }
+
+    @Test
+    void rebuildsFromAStaleOrForeignSnapshot() throws IOException {
+        var file = write(FIRST);
+        var snapshot = dir.resolve("measurements.snapshot");
+        new TailAggregator2(file, DelimiterScanner.forName("scalar"), snapshot).poll();
+
+        // rewritten in place, one digit changed in the prefix and the file grown
+        write(FIRST.replace("12.0", "13.0") + SECOND);
+        var stale = new TailAggregator2(file, DelimiterScanner.forName("scalar"), snapshot);
+        assertThat(stale.offset()).isZero();
+        assertThat(stale.poll()).isTrue();
+        assertThat(stale.results()).hasToString(expected(FIRST.replace("12.0", "13.0") + SECOND).toString());
+
+        header(snapshot, AggregateSnapshot.MAGIC, 1);
+        var foreign = new TailAggregator2(file, DelimiterScanner.forName("scalar"), snapshot);
+        assertThat(foreign.offset()).isZero();
+        assertThat(foreign.poll()).isTrue();
+        assertThat(AggregateSnapshot.read(snapshot).coveredBytes()).as("saved anew").isEqualTo(FIRST.length() + SECOND.length());
+    }
+
+    @Test
+    void startsOverWhenTruncatedOrReplaced() throws IOException {
+        var file = write(FIRST + SECOND);
+        var snapshot = dir.resolve("measurements.snapshot");
+        var tail = new TailAggregator2(file, DelimiterScanner.forName("scalar"), snapshot);
+        tail.poll();
+
+        write(THIRD);
+        assertThat(tail.poll()).as("truncated").isTrue();
+        assertThat(tail.offset()).isEqualTo(THIRD.length());
+        assertThat(tail.results()).hasToString(expected(THIRD).toString());
+        assertThat(AggregateSnapshot.read(snapshot).prefixChecksum()).isEqualTo(crc32c(THIRD));
+
+        // a longer file moved over it, which appending alone would never explain
+        var other = dir.resolve("other.txt");
+        Files.writeString(other, SECOND + FIRST);
+        Files.move(other, file, StandardCopyOption.REPLACE_EXISTING);
+        assertThat(tail.poll()).as("replaced").isTrue();
+        assertThat(tail.offset()).isEqualTo(SECOND.length() + FIRST.length());
+        assertThat(tail.results()).hasToString(expected(SECOND + FIRST).toString());
+        assertThat(AggregateSnapshot.read(snapshot).prefixChecksum()).isEqualTo(crc32c(SECOND + FIRST));
+    }
+
+    private Path write(String content) throws IOException {
+        var file = dir.resolve("measurements.txt");
+        boolean existed = Files.exists(file);
+        Files.writeString(file, content);
+        if (existed) { // a rewrite within the same millisecond must not look unchanged
+            Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 1_000));
+        }
+        return file;
+    }
+
+    private static void append(Path file, String lines) throws IOException {
+        Files.writeString(file, lines, StandardOpenOption.APPEND);
+    }
+
+    private static Path header(Path file, int magic, int version) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeLong(0);
+        }
+        return Files.write(file, bytes.toByteArray());
+    }
+
+    private static TreeMap<String, StationStats> expected(String lines) {
+        var stations = new TreeMap<String, StationStats>();
+        for (String line : lines.split("\n")) {
+            String[] parts = line.split(";");
+            stations.computeIfAbsent(parts[0], _ -> new StationStats()).add(Math.toIntExact(Math.round(Double.parseDouble(parts[1]) * 10)));
+        }
+        return stations;
+    }
+
+    private static long crc32c(String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        return crc32c(bytes, 0, bytes.length);
+    }
+
+    private static long crc32c(byte[] data, int offset, int length) {
+        var crc = new CRC32C();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+}
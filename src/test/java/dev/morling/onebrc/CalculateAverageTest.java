@@ -0,0 +1,338 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assumptions.assumeThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.rschwietzke.CheaperByteBuffer;
+
+/**
+ * Runs every {@code CalculateAverage_*} class and every {@link AggregationEngine} over the
+ * hand-written samples in {@code samples/} and over files generated with each distribution of
+ * {@link CreateMeasurements2}, and compares the result with the one of the baseline
+ * {@link CalculateAverage}: the same stations in the same order with the same min, mean and max.
+ * The baseline sums doubles, so a mean that is a tie, x.x5 exactly, rounds either way, -0.1 and
+ * -0.2 for instance to -0.2, where the implementations summing tenths get the -0.1 that rounding
+ * half up gives. Whether a mean is a tie is worked out from the input in tenths, and only then
+ * may it be either of the two tenths around it. Where a sample comes with a {@code .out}, the
+ * engines and the classes printing {@link StationStats} have to match it exactly, ties included.
+ * <p>
+ * The classes are run in a JVM of their own, in a directory with just the measurements.txt.
+ */
+class CalculateAverageTest {
+
+    // prints its results in a format of its own
+    private static final Set<String> UNCOMPARABLE = Set.of("naive");
+
+    // print StationStats like the engines do
+    private static final Set<String> STATION_STATS = Set.of("jotschi", "spullara");
+
+    // their tables grow, so they get a fixture well past the challenge's 10K stations as well
+    private static final Set<String> GROWING = Set.of("ddimtirov", "ebarlas", "jotschi", "palmr", "royvanrijn", "spullara");
+
+    // the challenge's lines end with '\n' only, these take a '\r' before it as part of the value
+    private static final Set<String> NO_CRLF = Set.of("ebarlas", "palmr", "royvanrijn", "seijikun");
+
+    private static final List<String> SAMPLES = List.of(
+            "measurements-1",
+            "measurements-shortest",
+            "measurements-boundaries",
+            "measurements-rounding",
+            "measurements-complex-utf8",
+            "measurements-crlf");
+
+    // the classes split the file by CPU, so a fixed count runs the code at the thread boundaries
+    // on any machine, a single CPU one included
+    private static final int CPUS = 8;
+
+    private static final long SEED = 1;
+    private static final int GENERATED_ROWS = 20_000;
+
+    private static final Pattern STATION = Pattern.compile("(.+?)=(-?[0-9.E]+)/(-?[0-9.E]+)/(-?[0-9.E]+)(, |$)");
+
+    @TempDir
+    static Path work;
+
+    private static final Map<String, Path> FIXTURES = new ConcurrentHashMap<>();
+    private static final Map<String, Map<String, double[]>> BASELINE = new ConcurrentHashMap<>();
+    private static final Map<String, Map<String, long[]>> TOTALS = new ConcurrentHashMap<>();
+
+    static Stream<Arguments> implementations() throws Exception {
+        List<String> names = new ArrayList<>();
+        Path classes = Path.of(CalculateAverage.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        try (Stream<Path> files = Files.list(classes.resolve("dev/morling/onebrc"))) {
+            files.map(f -> f.getFileName().toString())
+                    .filter(f -> f.startsWith("CalculateAverage_") && f.endsWith(".class") && !f.contains("$"))
+                    .map(f -> f.substring("CalculateAverage_".length(), f.length() - ".class".length()))
+                    .filter(name -> !UNCOMPARABLE.contains(name))
+                    .sorted()
+                    .forEach(names::add);
+        }
+        return Stream.concat(withFixtures(names), GROWING.stream().sorted().map(name -> Arguments.of(name, "generated-uniform-100000")));
+    }
+
+    static Stream<Arguments> engines() {
+        // the tables of all engines grow, so they get a fixture well past the challenge's 10K stations
+        return withFixtures(AggregationEngine.names(), "generated-uniform-100000");
+    }
+
+    static Stream<Arguments> dictionaryModes() {
+        // the shared dictionary has to grow under eight threads for the high cardinality fixture
+        return withFixtures(List.of("jotschi", "palmr", "spullara"), "generated-uniform-100000");
+    }
+
+    private static Stream<Arguments> withFixtures(List<String> names, String... extra) {
+        List<String> fixtures = new ArrayList<>(SAMPLES);
+        for (CreateMeasurements2.Distribution distribution : CreateMeasurements2.Distribution.values()) {
+            fixtures.add("generated-" + distribution.name().toLowerCase(Locale.ROOT));
+        }
+        fixtures.add("generated-uniform-10000");
+        fixtures.addAll(List.of(extra));
+        return names.stream().flatMap(name -> fixtures.stream().map(fixture -> Arguments.of(name, fixture)));
+    }
+
+    @ParameterizedTest(name = "{0} {1}")
+    @MethodSource("implementations")
+    void implementation(String name, String fixture) throws Exception {
+        assumeThat(fixture.endsWith("crlf") && NO_CRLF.contains(name)).as("handles \\r\\n").isFalse();
+
+        Path dir = Files.createTempDirectory(work, name);
+        Files.copy(fixture(fixture), dir.resolve("measurements.txt"));
+        String output = switch (name) {
+            case "ebarlas" -> run(dir, "CalculateAverage_ebarlas", "measurements.txt", "4");
+            case "columnar" -> {
+                run(dir, "ConvertMeasurements", "measurements.txt", "measurements.bin");
+                yield run(dir, "CalculateAverage_columnar", "measurements.bin");
+            }
+            default -> run(dir, "CalculateAverage_" + name);
+        };
+        assertMatchesBaseline(fixture, output);
+        if (STATION_STATS.contains(name)) {
+            assertMatchesExpected(fixture, output);
+        }
+    }
+
+    /** The classes that aggregate by the id of a {@link StationDictionary} with -Donebrc.dictionary=true */
+    @ParameterizedTest(name = "{0} {1}")
+    @MethodSource("dictionaryModes")
+    void dictionary(String name, String fixture) throws Exception {
+        assumeThat(fixture.endsWith("crlf") && NO_CRLF.contains(name)).as("handles \\r\\n").isFalse();
+
+        Path dir = Files.createTempDirectory(work, name);
+        Files.copy(fixture(fixture), dir.resolve("measurements.txt"));
+        String output = run(dir, List.of("-Donebrc.dictionary=true"), "CalculateAverage_" + name);
+        assertMatchesBaseline(fixture, output);
+        assertMatchesExpected(fixture, output);
+    }
+
+    @ParameterizedTest(name = "{0} {1}")
+    @MethodSource("engines")
+    void engine(String name, String fixture) throws Exception {
+        assumeThat(fixture.endsWith("crlf") && NO_CRLF.contains(name)).as("handles \\r\\n").isFalse();
+
+        String output = AggregationEngine.forName(name).run(fixture(fixture)).toString();
+        assertMatchesBaseline(fixture, output);
+        assertMatchesExpected(fixture, output);
+    }
+
+    /** NUMA mode with three nodes, which each get a range of the file and fold their tables first */
+    @ParameterizedTest(name = "{0} {1}")
+    @MethodSource("engines")
+    void enginePerNode(String name, String fixture) throws Exception {
+        assumeThat(fixture.endsWith("crlf") && NO_CRLF.contains(name)).as("handles \\r\\n").isFalse();
+
+        try (var arena = Arena.ofShared(); var channel = FileChannel.open(fixture(fixture), StandardOpenOption.READ)) {
+            var data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            var topology = NumaTopology.split(new int[]{ 0 }, 3);
+            String output = AggregationEngine.forName(name).runPerNode(List.of(data), topology).toString();
+            assertMatchesBaseline(fixture, output);
+            assertMatchesExpected(fixture, output);
+        }
+    }
+
+    private static void assertMatchesBaseline(String fixture, String output) throws Exception {
+        Map<String, double[]> expected = BASELINE.get(fixture);
+        if (expected == null) {
+            Path dir = Files.createTempDirectory(work, "baseline");
+            Files.copy(fixture(fixture), dir.resolve("measurements.txt"));
+            expected = parse(run(dir, "CalculateAverage"));
+            BASELINE.put(fixture, expected);
+        }
+        Map<String, double[]> actual = parse(output);
+        Map<String, long[]> totals = TOTALS.computeIfAbsent(fixture, CalculateAverageTest::totals);
+
+        assertThat(actual.keySet()).as("stations").containsExactlyElementsOf(expected.keySet());
+        expected.forEach((station, values) -> {
+            assertThat(actual.get(station)[0]).as("min of " + station).isEqualTo(values[0]);
+            long mean = Math.round(actual.get(station)[1] * 10);
+            long sum = totals.get(station)[0];
+            long count = totals.get(station)[1];
+            if (Math.floorMod(2 * sum, 2 * count) == count) { // the exact mean lies halfway between two tenths
+                long below = Math.floorDiv(sum, count);
+                assertThat(mean).as("mean of " + station + ", " + sum + "/" + count + " tenths").isBetween(below, below + 1);
+            }
+            else {
+                assertThat(mean).as("mean of " + station).isEqualTo(Math.round(values[1] * 10));
+            }
+            assertThat(actual.get(station)[2]).as("max of " + station).isEqualTo(values[2]);
+        });
+    }
+
+    /** The sum in tenths and the count of every station of the fixture, read straight from its lines */
+    private static Map<String, long[]> totals(String fixture) {
+        Map<String, long[]> totals = new LinkedHashMap<>();
+        try {
+            String content = Files.readString(fixture(fixture), StandardCharsets.UTF_8);
+            for (String line : content.split("\n")) {
+                if (line.endsWith("\r")) {
+                    line = line.substring(0, line.length() - 1);
+                }
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int separator = line.lastIndexOf(';');
+                long[] total = totals.computeIfAbsent(line.substring(0, separator), _ -> new long[2]);
+                total[0] += Math.round(Double.parseDouble(line.substring(separator + 1)) * 10);
+                total[1]++;
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return totals;
+    }
+
+    /** Compares with the {@code .out} of the sample exactly, if there is one */
+    private static void assertMatchesExpected(String fixture, String output) throws IOException {
+        try (InputStream in = CalculateAverageTest.class.getResourceAsStream("/samples/" + fixture + ".out")) {
+            if (in != null) {
+                assertThat(results(output)).as("results of " + fixture).isEqualTo(new String(in.readAllBytes(), StandardCharsets.UTF_8).strip());
+            }
+        }
+    }
+
+    private static Path fixture(String name) {
+        return FIXTURES.computeIfAbsent(name, n -> {
+            try {
+                Path file = work.resolve(n + ".txt");
+                if (n.startsWith("generated-")) {
+                    Files.write(file, generate(n.substring("generated-".length())));
+                }
+                else {
+                    try (InputStream in = CalculateAverageTest.class.getResourceAsStream("/samples/" + n + ".txt")) {
+                        Files.copy(in, file);
+                    }
+                }
+                return file;
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * "zipf" for the 413 cities with that distribution, "uniform-10000" for 10,000 stations. There
+     * are at least two rows per station, so most of them do show up.
+     */
+    private static byte[] generate(String spec) {
+        String[] parts = spec.split("-");
+        var distribution = CreateMeasurements2.Distribution.forName(parts[0]);
+        var cities = CreateMeasurements2.cities();
+        var stations = distribution.rename(parts.length == 1 ? cities : CreateMeasurements2.stations(cities, Integer.parseInt(parts[1])));
+        var buffer = new CheaperByteBuffer();
+        CreateMeasurements2.generate(buffer, stations, distribution.picker(stations.size(), SEED), SEED, 0, Math.max(GENERATED_ROWS, 2 * stations.size()));
+        return Arrays.copyOf(buffer.data_, buffer.length());
+    }
+
+    /** Runs the main class in the directory, returns what it printed */
+    private static String run(Path dir, String mainClass, String... args) throws Exception {
+        return run(dir, List.of(), mainClass, args);
+    }
+
+    private static String run(Path dir, List<String> options, String mainClass, String... args) throws Exception {
+        Path classes = Path.of(CalculateAverage.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        List<String> command = new ArrayList<>(List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "--enable-preview", "--add-modules", "jdk.incubator.vector", "-Dstdout.encoding=UTF-8",
+                "-XX:ActiveProcessorCount=" + CPUS));
+        command.addAll(options);
+        command.addAll(List.of("-cp", classes.toString(), "dev.morling.onebrc." + mainClass));
+        command.addAll(List.of(args));
+        Process process = new ProcessBuilder(command).directory(dir.toFile()).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertThat(process.waitFor(2, TimeUnit.MINUTES)).as(mainClass + " finished").isTrue();
+        assertThat(process.exitValue()).as(mainClass + " exit code, output:\n" + output).isZero();
+        return output;
+    }
+
+    /** The last {@code {a=min/mean/max, b=...}} line of the output */
+    private static String results(String output) {
+        return output.lines()
+                .filter(line -> line.startsWith("{"))
+                .reduce((first, second) -> second)
+                .orElseThrow(() -> new AssertionError("No results in:\n" + output))
+                .strip();
+    }
+
+    /** The last {@code {a=min/mean/max, b=...}} line into the values by station, in the order printed */
+    private static Map<String, double[]> parse(String output) {
+        String stations = results(output);
+        assertThat(stations).endsWith("}");
+        stations = stations.substring(1, stations.length() - 1);
+
+        Map<String, double[]> result = new LinkedHashMap<>();
+        Matcher matcher = STATION.matcher(stations);
+        int end = 0;
+        while (end < stations.length()) {
+            int at = end;
+            String all = stations;
+            // described lazily, the results of a high cardinality fixture run into megabytes
+            assertThat(matcher.find(end) && matcher.start() == end).as(() -> "station at " + at + " of " + all).isTrue();
+            result.put(matcher.group(1), new double[]{
+                    Double.parseDouble(matcher.group(2)), Double.parseDouble(matcher.group(3)), Double.parseDouble(matcher.group(4)) });
+            end = matcher.end();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link SortedResults} past its threshold, where the entries are sorted as an array and handed
+ * to the TreeMap as a {@link SortedResults.SortedRun}, whose range views must agree with a TreeMap's.
+ */
+class SortedResultsTest {
+
+    @Test
+    void sortsPastTheThreshold() {
+        var names = names(SortedResults.SORT_THRESHOLD + 1_000);
+        var results = new SortedResults<Integer>(16);
+        var expected = new TreeMap<String, Integer>();
+        for (int i = 0; i < names.size(); i++) {
+            results.add(names.get(i), i);
+            expected.put(names.get(i), i);
+        }
+        assertThat(results.toTreeMap()).containsExactlyEntriesOf(expected);
+    }
+
+    @Test
+    void rangeViewsMatchATreeMap() {
+        var names = names(1_000);
+        var expected = new TreeMap<String, Integer>();
+        for (int i = 0; i < names.size(); i++) {
+            expected.put(names.get(i), i);
+        }
+        var entries = expected.entrySet().stream().map(e -> Map.entry(e.getKey(), e.getValue())).toList();
+        @SuppressWarnings("unchecked")
+        Map.Entry<String, Integer>[] array = entries.toArray(new Map.Entry[0]);
+        SortedMap<String, Integer> run = new SortedResults.SortedRun<>(array, array.length);
+
+        assertThat(run).containsExactlyEntriesOf(expected);
+        assertThat(run.firstKey()).isEqualTo(expected.firstKey());
+        assertThat(run.lastKey()).isEqualTo(expected.lastKey());
+
+        // bounds that are keys, that fall between keys and that lie outside all of them
+        List<String> bounds = new ArrayList<>(List.of("", "Station", "Station 5", "Station 50", "Station 999", "zzz"));
+        bounds.addAll(names.subList(0, 20));
+        for (String low : bounds) {
+            assertThat(run.tailMap(low)).as("tail from " + low).containsExactlyEntriesOf(expected.tailMap(low));
+            assertThat(run.headMap(low)).as("head to " + low).containsExactlyEntriesOf(expected.headMap(low));
+            for (String high : bounds) {
+                if (low.compareTo(high) <= 0) {
+                    var view = run.subMap(low, high);
+                    var expectedView = expected.subMap(low, high);
+                    assertThat(view).as("from " + low + " to " + high).containsExactlyEntriesOf(expectedView);
+                    for (String key : bounds) {
+                        // views of views, or the same exception for keys outside the range
+                        assertSameView(() -> view.headMap(key), () -> expectedView.headMap(key));
+                        assertSameView(() -> view.tailMap(key), () -> expectedView.tailMap(key));
+                        assertSameView(() -> view.subMap(key, high), () -> expectedView.subMap(key, high));
+                    }
+                }
+            }
+        }
+
+        assertThatThrownBy(() -> run.subMap("b", "a")).isInstanceOf(IllegalArgumentException.class);
+        var empty = run.headMap("");
+        assertThat(empty).isEmpty();
+        assertThatThrownBy(empty::firstKey).isInstanceOf(NoSuchElementException.class);
+        assertThatThrownBy(empty::lastKey).isInstanceOf(NoSuchElementException.class);
+    }
+
+    private static void assertSameView(Supplier<SortedMap<String, Integer>> actual, Supplier<SortedMap<String, Integer>> expected) {
+        SortedMap<String, Integer> expectedView;
+        try {
+            expectedView = expected.get();
+        }
+        catch (IllegalArgumentException e) {
+            assertThatThrownBy(actual::get).isInstanceOf(IllegalArgumentException.class);
+            return;
+        }
+        assertThat(actual.get()).containsExactlyEntriesOf(expectedView);
+    }
+
+    private static List<String> names(int count) {
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add("Station " + i);
+        }
+        Collections.shuffle(names, new Random(42));
+        return names;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Growth of the shared {@link StationDictionary}: its tables start at 1,024 slots here, so the
+ * names below take it through several doublings, in the concurrent case while other threads
+ * are inserting into and looking up in the table that is being copied.
+ */
+class StationDictionaryTest {
+
+    private static final int NAMES = 300_000;
+    private static final int THREADS = 8;
+
+    private static final byte[][] NAME_BYTES = new byte[NAMES][];
+    static {
+        for (int i = 0; i < NAMES; i++) {
+            NAME_BYTES[i] = ("Station " + i).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    void growsPastTheInitialCapacity() {
+        var dictionary = new StationDictionary(1024);
+        int[] ids = new int[NAMES];
+        for (int i = 0; i < NAMES; i++) {
+            ids[i] = id(dictionary, i);
+        }
+        for (int i = 0; i < NAMES; i++) {
+            assertThat(id(dictionary, i)).as("id of name " + i + " after growing").isEqualTo(ids[i]);
+        }
+        // a single thread never loses a race, so the ids are dense
+        assertThat(dictionary.size()).isEqualTo(NAMES);
+        assertThat(names(dictionary)).hasSize(NAMES);
+    }
+
+    @Test
+    void concurrentInsertsWhileGrowing() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int round = 0; round < 3; round++) {
+                var dictionary = new StationDictionary(1024);
+                var start = new CyclicBarrier(THREADS);
+                List<Future<int[]>> results = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    long seed = round * THREADS + t;
+                    results.add(pool.submit(() -> {
+                        // every thread inserts all names in an order of its own
+                        List<Integer> order = new ArrayList<>(NAMES);
+                        for (int i = 0; i < NAMES; i++) {
+                            order.add(i);
+                        }
+                        Collections.shuffle(order, new Random(seed));
+                        int[] ids = new int[NAMES];
+                        start.await();
+                        for (int i : order) {
+                            ids[i] = id(dictionary, i);
+                        }
+                        return ids;
+                    }));
+                }
+                int[] ids = results.get(0).get();
+                for (int t = 1; t < THREADS; t++) {
+                    assertThat(results.get(t).get()).as("ids seen by thread " + t).isEqualTo(ids);
+                }
+
+                var distinct = new HashSet<Integer>();
+                for (int id : ids) {
+                    distinct.add(id);
+                }
+                assertThat(distinct).as("one id per name").hasSize(NAMES);
+
+                Map<String, Integer> names = names(dictionary);
+                assertThat(names).hasSize(NAMES);
+                for (int i = 0; i < NAMES; i++) {
+                    assertThat(names.get("Station " + i)).as("id of name " + i).isEqualTo(ids[i]);
+                }
+                // lost races leave gaps, but never hand out an id twice
+                assertThat(dictionary.size()).isGreaterThanOrEqualTo(NAMES);
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static int id(StationDictionary dictionary, int name) {
+        return dictionary.id(MemorySegment.ofArray(NAME_BYTES[name]), 0, NAME_BYTES[name].length);
+    }
+
+    private static Map<String, Integer> names(StationDictionary dictionary) {
+        Map<String, Integer> names = new HashMap<>();
+        dictionary.forEach((name, id) -> assertThat(names.put(new String(name, StandardCharsets.UTF_8), id)).as("listed once").isNull());
+        return names;
+    }
+}
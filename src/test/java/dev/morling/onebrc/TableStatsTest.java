@@ -0,0 +1,54 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The numbers of {@link TableStats}: reports of the tables of several threads combine into
+ * one, whose load is that of an actual table, as tables grow independently of each other.
+ */
+class TableStatsTest {
+
+    @Test
+    void combinedLoadIsThatOfTheFullestTable() {
+        var grown = new TableStats.Report("open addressing", "polynomial31", 900, 2048, 5_000, 400, 7, 12);
+        var small = new TableStats.Report("open addressing", "polynomial31", 300, 1024, 3_000, 100, 9, 4);
+
+        for (var reports : List.of(List.of(small, grown), List.of(grown, small))) {
+            var combined = TableStats.Report.combine(reports);
+            assertThat(combined.entries()).isEqualTo(900);
+            assertThat(combined.capacity()).isEqualTo(2048);
+            assertThat(combined.lookups()).isEqualTo(8_000);
+            assertThat(combined.probes()).isEqualTo(500);
+            assertThat(combined.maxProbe()).isEqualTo(9);
+            assertThat(combined.longestRun()).isEqualTo(12);
+        }
+        assertThat(TableStats.Report.combine(List.of())).isNull();
+    }
+
+    @Test
+    void longestRunWrapsAround() {
+        boolean[] occupied = { true, true, false, true, false, false, true, true, true };
+        assertThat(TableStats.longestRun(occupied.length, i -> occupied[i])).isEqualTo(5);
+        assertThat(TableStats.longestRun(4, _ -> true)).isEqualTo(4);
+        assertThat(TableStats.longestRun(4, _ -> false)).isZero();
+    }
+}